@@ -0,0 +1,263 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.Set;
+import java.util.List;
+import java.util.Random;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.BufferedReader;
+
+import org.xml.sax.SAXException;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.DataSource;
+import no.priv.garshol.duke.ConfigLoader;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.RecordIterator;
+import no.priv.garshol.duke.DukeConfigException;
+import no.priv.garshol.duke.databases.KeyFunction;
+import no.priv.garshol.duke.databases.LuceneDatabase;
+import no.priv.garshol.duke.databases.InMemoryDatabase;
+import no.priv.garshol.duke.databases.KeyValueDatabase;
+import no.priv.garshol.duke.databases.AbstractKeyFunction;
+import no.priv.garshol.duke.databases.InMemoryBlockingDatabase;
+
+/**
+ * Test data for the benchmarks. Values are built from the words in
+ * the bundled example data, so that they look like real data, and
+ * all randomness comes from a fixed seed, so that every run sees the
+ * same values.
+ */
+public class BenchmarkData {
+  // the benchmarks are run from the project directory
+  public static final String EXAMPLE_DATA = "doc/example-data/";
+  public static final String CONFIG = EXAMPLE_DATA + "countries.xml";
+  private static final String[] WORD_FILES = {
+    "countries-dbpedia.csv", "countries-mondial.csv"
+  };
+
+  private Random random;
+  private List<String> words;
+
+  public BenchmarkData() throws IOException {
+    this.random = new Random(4711);
+    this.words = loadWords();
+  }
+
+  /**
+   * Returns a value of the given length class. "short" values are
+   * single words, like first names or cities, "medium" values have
+   * two or three words, like full names, and "long" values four to
+   * eight, like addresses or company names.
+   */
+  public String makeValue(String length) {
+    int tokens;
+    if (length.equals("short"))
+      tokens = 1;
+    else if (length.equals("medium"))
+      tokens = 2 + random.nextInt(2);
+    else if (length.equals("long"))
+      tokens = 4 + random.nextInt(5);
+    else
+      throw new DukeConfigException("Unknown length class " + length);
+
+    StringBuilder buf = new StringBuilder();
+    for (int ix = 0; ix < tokens; ix++) {
+      if (ix > 0)
+        buf.append(' ');
+      buf.append(words.get(random.nextInt(words.size())));
+    }
+    return buf.toString();
+  }
+
+  /**
+   * Returns a noisy copy of the value, with up to two typos, and
+   * sometimes with the first word moved to the end.
+   */
+  public String makeVariant(String value) {
+    StringBuilder buf = new StringBuilder(value);
+    int typos = random.nextInt(3);
+    for (int ix = 0; ix < typos && buf.length() > 1; ix++) {
+      int pos = random.nextInt(buf.length() - 1);
+      switch (random.nextInt(4)) {
+      case 0: // substitution
+        buf.setCharAt(pos, (char) ('a' + random.nextInt(26)));
+        break;
+      case 1: // deletion
+        buf.deleteCharAt(pos);
+        break;
+      case 2: // insertion
+        buf.insert(pos, (char) ('a' + random.nextInt(26)));
+        break;
+      default: // transposition
+        char ch = buf.charAt(pos);
+        buf.setCharAt(pos, buf.charAt(pos + 1));
+        buf.setCharAt(pos + 1, ch);
+      }
+    }
+
+    String variant = buf.toString();
+    int space = variant.indexOf(' ');
+    if (space != -1 && random.nextInt(5) == 0)
+      variant = variant.substring(space + 1) + " " +
+                variant.substring(0, space);
+    return variant;
+  }
+
+  /**
+   * Returns the given number of value pairs, as an array of two
+   * arrays. Half the pairs are noisy copies of the same value, and
+   * the other half unrelated values, since comparators see both in
+   * practice, and often behave differently on the two.
+   */
+  public String[][] makePairs(String kind, String length, int count) {
+    String[][] pairs = new String[2][count];
+    for (int ix = 0; ix < count; ix++) {
+      String v1 = makeValue(kind, length);
+      String v2;
+      if (random.nextBoolean())
+        v2 = makeVariant(kind, v1);
+      else
+        v2 = makeValue(kind, length);
+      pairs[0][ix] = v1;
+      pairs[1][ix] = v2;
+    }
+    return pairs;
+  }
+
+  /**
+   * Returns the given number of values of the given length, dressed
+   * up the way raw data tends to look before cleaning: mixed case,
+   * stray whitespace, punctuation and digits.
+   */
+  public String[] makeDirtyValues(String length, int count) {
+    String[] values = new String[count];
+    for (int ix = 0; ix < count; ix++) {
+      StringBuilder buf = new StringBuilder();
+      if (random.nextBoolean())
+        buf.append("  ");
+      for (String token : makeValue(length).split(" ")) {
+        if (buf.length() > 2)
+          buf.append(random.nextInt(4) == 0 ? ",  " : " ");
+        buf.append(Character.toUpperCase(token.charAt(0)));
+        buf.append(token.substring(1));
+      }
+      if (random.nextInt(3) == 0)
+        buf.append(" +47 " + (10000000 + random.nextInt(90000000)));
+      if (random.nextBoolean())
+        buf.append(". ");
+      values[ix] = buf.toString();
+    }
+    return values;
+  }
+
+  // numbers and geopositions don't come from words, so the kind
+  // decides what the values look like
+  private String makeValue(String kind, String length) {
+    if (kind.equals("numeric"))
+      return "" + (1 + random.nextInt(1000000));
+    else if (kind.equals("geo"))
+      return (random.nextDouble() * 180 - 90) + "," +
+             (random.nextDouble() * 360 - 180);
+    return makeValue(length);
+  }
+
+  private String makeVariant(String kind, String value) {
+    if (kind.equals("numeric"))
+      return "" + (int) (Integer.parseInt(value) *
+                         (0.9 + random.nextDouble() * 0.2));
+    else if (kind.equals("geo")) {
+      String[] parts = value.split(",");
+      return (Double.parseDouble(parts[0]) + random.nextDouble() * 0.0005) +
+        "," + (Double.parseDouble(parts[1]) + random.nextDouble() * 0.0005);
+    }
+    return makeVariant(value);
+  }
+
+  private static List<String> loadWords() throws IOException {
+    Set<String> words = new LinkedHashSet(); // keeps the order stable
+    for (String file : WORD_FILES) {
+      BufferedReader in =
+        new BufferedReader(new FileReader(new File(EXAMPLE_DATA + file)));
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.startsWith("\"http")) // skip the URIs in dbpedia data
+            line = line.substring(line.indexOf(',') + 1);
+          for (String word : line.toLowerCase().split("[^\\p{L}]+"))
+            if (word.length() > 1)
+              words.add(word);
+        }
+      } finally {
+        in.close();
+      }
+    }
+    return new ArrayList(words);
+  }
+
+  // ===== CONFIGURATION AND DATABASES
+
+  /**
+   * Loads the configuration for the countries example data.
+   */
+  public static Configuration loadConfiguration()
+    throws IOException, SAXException {
+    return ConfigLoader.load(CONFIG);
+  }
+
+  /**
+   * Makes an empty, in-memory database of the given kind, for the
+   * countries configuration.
+   */
+  public static Database makeDatabase(String kind, Configuration config) {
+    Database db;
+    if (kind.equals("lucene"))
+      db = new LuceneDatabase();
+    else if (kind.equals("keyvalue"))
+      db = new KeyValueDatabase();
+    else if (kind.equals("inmemory"))
+      db = new InMemoryDatabase();
+    else if (kind.equals("blocking")) {
+      InMemoryBlockingDatabase blocking = new InMemoryBlockingDatabase();
+      Collection<KeyFunction> functions = new ArrayList();
+      functions.add(new NameKeyFunction());
+      blocking.setKeyFunctions(functions);
+      db = blocking;
+    } else
+      throw new DukeConfigException("Unknown database kind " + kind);
+
+    db.setConfiguration(config);
+    db.setOverwrite(true);
+    return db;
+  }
+
+  /**
+   * Reads all the records from the data sources.
+   */
+  public static List<Record> readRecords(Collection<DataSource> sources) {
+    List<Record> records = new ArrayList();
+    for (DataSource source : sources) {
+      RecordIterator it = source.getRecords();
+      while (it.hasNext())
+        records.add(it.next());
+      it.close();
+    }
+    return records;
+  }
+
+  /**
+   * Blocks the countries on the start of their names.
+   */
+  static class NameKeyFunction extends AbstractKeyFunction {
+    public String makeKey(Record record) {
+      String name = firstLongerThan(record.getValue("NAME"), 3);
+      return name.length() > 4 ? name.substring(0, 4) : name;
+    }
+  }
+}
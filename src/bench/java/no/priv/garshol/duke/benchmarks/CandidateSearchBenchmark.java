@@ -0,0 +1,65 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Configuration;
+
+/**
+ * Measures the time it takes to find the candidates for all the
+ * records in the second group of the countries example data, with
+ * the records of the first group indexed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CandidateSearchBenchmark {
+
+  @Param({ "lucene", "keyvalue", "inmemory", "blocking" })
+  public String database;
+
+  private Database db;
+  private List<Record> queries;
+
+  @Setup
+  public void setup() throws Exception {
+    Configuration config = BenchmarkData.loadConfiguration();
+    db = BenchmarkData.makeDatabase(database, config);
+    for (Record record : BenchmarkData.readRecords(config.getDataSources(1)))
+      db.index(record);
+    db.commit();
+    queries = BenchmarkData.readRecords(config.getDataSources(2));
+  }
+
+  @TearDown
+  public void teardown() {
+    db.close();
+  }
+
+  @Benchmark
+  public int findCandidateMatches() {
+    int candidates = 0;
+    for (Record record : queries)
+      candidates += db.findCandidateMatches(record).size();
+    return candidates;
+  }
+}
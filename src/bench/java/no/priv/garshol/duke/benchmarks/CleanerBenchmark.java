@@ -0,0 +1,85 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+
+import no.priv.garshol.duke.Cleaner;
+import no.priv.garshol.duke.cleaners.TrimCleaner;
+import no.priv.garshol.duke.cleaners.RegexpCleaner;
+import no.priv.garshol.duke.cleaners.ChainedCleaner;
+import no.priv.garshol.duke.cleaners.GenericValueCleaner;
+import no.priv.garshol.duke.cleaners.LowerCaseNormalizeCleaner;
+import no.priv.garshol.duke.utils.ObjectUtils;
+
+/**
+ * Measures how many values per millisecond each cleaner can clean.
+ * The cleaners which need configuring get a typical configuration.
+ * MappingFileCleaner is left out, since it needs a mapping file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CleanerBenchmark {
+  private static final int VALUES = 1000;
+
+  @Param({ "ChainedCleaner", "DigitsOnlyCleaner", "FamilyCommaGivenCleaner",
+           "GenericValueCleaner", "HTMLCleaner", "LowerCaseNormalizeCleaner",
+           "NorwegianAddressCleaner", "NorwegianCompanyNameCleaner",
+           "PersonNameCleaner", "PhoneNumberCleaner", "RegexpCleaner",
+           "StripNontextCharacters", "TrimCleaner" })
+  public String cleaner;
+
+  @Param({ "short", "medium", "long" })
+  public String length;
+
+  private Cleaner clean;
+  private String[] values;
+
+  @Setup
+  public void setup() throws Exception {
+    if (cleaner.equals("ChainedCleaner"))
+      clean = new ChainedCleaner(new Cleaner[] {
+        new TrimCleaner(), new LowerCaseNormalizeCleaner() });
+    else if (cleaner.equals("GenericValueCleaner")) {
+      GenericValueCleaner generic = new GenericValueCleaner();
+      generic.setGeneric("Unknown");
+      clean = generic;
+    } else if (cleaner.equals("RegexpCleaner")) {
+      RegexpCleaner regexp = new RegexpCleaner();
+      regexp.setRegexp("(\\d+)");
+      clean = regexp;
+    } else
+      clean = (Cleaner) ObjectUtils.instantiate(
+        "no.priv.garshol.duke.cleaners." + cleaner);
+
+    values = new BenchmarkData().makeDirtyValues(length, VALUES);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(VALUES)
+  public int clean() {
+    int sum = 0;
+    for (int ix = 0; ix < VALUES; ix++) {
+      String value = clean.clean(values[ix]);
+      if (value != null)
+        sum += value.length();
+    }
+    return sum; // so the JIT can't drop the cleaning
+  }
+}
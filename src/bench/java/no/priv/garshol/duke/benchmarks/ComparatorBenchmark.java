@@ -0,0 +1,75 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+
+import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.utils.ObjectUtils;
+
+/**
+ * Measures how many value pairs per millisecond each comparator can
+ * compare, for short, medium, and long values. NumericComparator and
+ * GeopositionComparator get numbers and positions instead, whatever
+ * the length.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComparatorBenchmark {
+  private static final int PAIRS = 1000;
+
+  @Param({ "DiceCoefficientComparator", "DifferentComparator",
+           "ExactComparator", "GeopositionComparator",
+           "JaccardIndexComparator", "JaroWinkler", "JaroWinklerTokenized",
+           "Levenshtein", "LongestCommonSubstring", "MetaphoneComparator",
+           "NorphoneComparator", "NumericComparator", "PersonNameComparator",
+           "QGramComparator", "SoundexComparator", "WeightedLevenshtein" })
+  public String comparator;
+
+  @Param({ "short", "medium", "long" })
+  public String length;
+
+  private Comparator comp;
+  private String[] values1;
+  private String[] values2;
+
+  @Setup
+  public void setup() throws Exception {
+    comp = (Comparator) ObjectUtils.instantiate(
+      "no.priv.garshol.duke.comparators." + comparator);
+
+    String kind = "string";
+    if (comparator.equals("NumericComparator"))
+      kind = "numeric";
+    else if (comparator.equals("GeopositionComparator"))
+      kind = "geo";
+    String[][] pairs = new BenchmarkData().makePairs(kind, length, PAIRS);
+    values1 = pairs[0];
+    values2 = pairs[1];
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(PAIRS)
+  public double compare() {
+    double sum = 0.0;
+    for (int ix = 0; ix < PAIRS; ix++)
+      sum += comp.compare(values1[ix], values2[ix]);
+    return sum; // so the JIT can't drop the comparisons
+  }
+}
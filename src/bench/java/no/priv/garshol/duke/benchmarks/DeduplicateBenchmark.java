@@ -0,0 +1,76 @@
+
+package no.priv.garshol.duke.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.DataSource;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.matchers.AbstractMatchListener;
+
+/**
+ * Measures a complete deduplication run over both groups of the
+ * countries example data, reading, indexing, searching and comparing
+ * included. Each run starts with an empty database.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeduplicateBenchmark {
+  private static final int BATCH_SIZE = 40000;
+
+  @Param({ "lucene", "keyvalue", "inmemory", "blocking" })
+  public String database;
+
+  @Param({ "1", "4" })
+  public int threads;
+
+  private Configuration config;
+  private Collection<DataSource> sources;
+
+  @Setup
+  public void setup() throws Exception {
+    config = BenchmarkData.loadConfiguration();
+    sources = new ArrayList(config.getDataSources(1));
+    sources.addAll(config.getDataSources(2));
+  }
+
+  @Benchmark
+  public int deduplicate() {
+    Processor processor =
+      new Processor(config, BenchmarkData.makeDatabase(database, config));
+    processor.setThreads(threads);
+    MatchCounter counter = new MatchCounter();
+    processor.addMatchListener(counter);
+    processor.deduplicate(sources, BATCH_SIZE);
+    processor.close();
+    return counter.matches;
+  }
+
+  static class MatchCounter extends AbstractMatchListener {
+    private int matches;
+
+    public synchronized void matches(Record r1, Record r2,
+                                     double confidence) {
+      matches++;
+    }
+  }
+}
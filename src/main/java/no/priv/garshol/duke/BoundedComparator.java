@@ -0,0 +1,19 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * A comparator which can stop early once it knows the similarity is
+ * going to be lower than what the caller has any use for. Most value
+ * pairs compared are very different, so this saves a lot of work.
+ * @since 1.3
+ */
+public interface BoundedComparator extends Comparator {
+
+  /**
+   * Returns the similarity of the two values, as compare(v1, v2)
+   * does, if it is minsim or higher. If it is lower, the comparator
+   * may return any value lower than minsim instead.
+   */
+  public double compare(String v1, String v2, double minsim);
+
+}
@@ -0,0 +1,11 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * Marker interface for databases whose index() method is thread-safe.
+ * The Processor only indexes on several threads at once if the
+ * database implements this interface.
+ * @since 1.3
+ */
+public interface ConcurrentIndexing {
+}
@@ -55,6 +55,7 @@ public class ConfigLoader {
     private boolean ignore_prop;
     private Comparator comparator;
     private Property.Lookup lookup;
+    private int cachesize;
 
     private Set<String> keepers;
     private int groupno; // counts datasource groups
@@ -101,6 +102,9 @@ public class ConfigLoader {
           lookup = (Property.Lookup) ObjectUtils.getEnumConstantByName(
                                 Property.Lookup.class,
                                 attributes.getValue("lookup").toUpperCase());
+        cachesize = 0;
+        if (attributes.getValue("cache-size") != null)
+          cachesize = Integer.parseInt(attributes.getValue("cache-size"));
       } else if (localName.equals("csv")) {
         datasource = new CSVDataSource();
         currentobj = datasource;
@@ -194,10 +198,11 @@ public class ConfigLoader {
         if (idprop)
           properties.add(new PropertyImpl(name));
         else {
-          Property p = new PropertyImpl(name, comparator, low, high);
+          PropertyImpl p = new PropertyImpl(name, comparator, low, high);
           if (ignore_prop)
             p.setIgnoreProperty(true);
           p.setLookupBehaviour(lookup);
+          p.setCacheSize(cachesize);
           properties.add(p);
         }
       } else if (localName.equals("low"))
@@ -116,6 +116,10 @@ public class ConfigWriter {
       String value = prop.getLookupBehaviour().toString().toLowerCase();
       atts.addAttribute("lookup", "CDATA", value);
     }
+    if (prop instanceof PropertyImpl &&
+        ((PropertyImpl) prop).getCacheSize() > 0)
+      atts.addAttribute("cache-size", "CDATA",
+                        "" + ((PropertyImpl) prop).getCacheSize());
 
     pp.startElement("property", atts);
     writeElement(pp, "name", prop.getName());
@@ -30,6 +30,7 @@ public class ConfigurationImpl implements Configuration {
   private Map<String, Property> properties;
   private List<Property> proplist; // duplicate to preserve order
   private Collection<Property> lookups; // subset of properties
+  private RecordSchema schema;
   
   private Database database;
   
@@ -37,6 +38,7 @@ public class ConfigurationImpl implements Configuration {
     this.datasources = new ArrayList();
     this.group1 = new ArrayList();
     this.group2 = new ArrayList();
+    this.schema = new RecordSchema(Collections.EMPTY_LIST);
   }
 
   /**
@@ -141,6 +143,7 @@ public class ConfigurationImpl implements Configuration {
     this.properties = new HashMap(props.size());
     for (Property prop : props)
       properties.put(prop.getName(), prop);
+    this.schema = new RecordSchema(props);
 
     // analyze properties to find lookup set
     findLookupProperties();
@@ -174,6 +177,10 @@ public class ConfigurationImpl implements Configuration {
     return properties.get(name);
   }
   
+  public RecordSchema getRecordSchema() {
+    return schema;
+  }
+
   /**
    * Returns the properties Duke queries for in the Lucene index. This
    * is a subset of getProperties(), and is computed based on the
@@ -0,0 +1,539 @@
+
+package no.priv.garshol.duke;
+
+import java.util.Set;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.HashSet;
+import java.io.Writer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.FileWriter;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+
+import no.priv.garshol.duke.utils.NTriplesWriter;
+import no.priv.garshol.duke.utils.LinkFileWriter;
+import no.priv.garshol.duke.utils.CommandLineParser;
+
+/**
+ * Generates synthetic person records with a known set of duplicates,
+ * so that Duke can be tested at scale without using real data. The
+ * records are written as CSV or NTriples, and the duplicates as a
+ * test file of the kind LinkDatabaseUtils.loadTestFile reads.
+ *
+ * <p>All values are made up from random syllables. Names, streets,
+ * cities and domains are drawn from vocabularies with a Zipf
+ * distribution, so that some values are far more common than others,
+ * as in real data. Each field has its own ways of being distorted in
+ * duplicates: names get typos, initials and swapped order, phone
+ * numbers get reformatted, and so on. Memory use does not grow with
+ * the number of records.
+ * @since 1.3
+ */
+public class DataGenerator extends AbstractCmdlineTool {
+  public static final String[] FIELDS = {
+    "ID", "NAME", "ADDRESS", "ZIP", "CITY", "PHONE", "EMAIL"
+  };
+  private static final int ID = 0;
+  private static final int NAME = 1;
+  private static final int ADDRESS = 2;
+  private static final int ZIP = 3;
+  private static final int CITY = 4;
+  private static final int PHONE = 5;
+  private static final int EMAIL = 6;
+
+  private static final String[] SUFFIXES = {
+    "street", "road", "avenue", "lane", "square"
+  };
+  private static final String[] ABBREVIATIONS = {
+    "st.", "rd.", "ave.", "ln.", "sq."
+  };
+  private static final String CONSONANTS = "bcdfghjklmnprstvz";
+  private static final String VOWELS = "aeiouy";
+  private static final String NTRIPLES_BASE = "http://example.org/";
+
+  private double duplicates;      // share of records which are duplicates
+  private int maxduplicates;      // most duplicates of a single record
+  private double[] noise;         // chance of distorting each field
+  private double missing;         // chance of leaving a value out
+  private double skew;            // Zipf exponent for vocabularies
+  private long seed;
+  private boolean ntriples;       // if false, CSV
+  private int spread;             // size of shuffle buffer
+
+  private Random random;
+  private Vocabulary givennames;
+  private Vocabulary familynames;
+  private Vocabulary streets;
+  private Vocabulary cities;
+  private Vocabulary domains;
+
+  public DataGenerator() {
+    this.duplicates = 0.2;
+    this.maxduplicates = 3;
+    this.noise = new double[FIELDS.length];
+    setNoise(0.3);
+    this.missing = 0.05;
+    this.skew = 1.0;
+    this.seed = 4711;
+    this.spread = 10000;
+  }
+
+  public static void main(String[] argv) throws IOException {
+    new DataGenerator().run(argv);
+  }
+
+  public void run(String[] argv) throws IOException {
+    CommandLineParser parser = new CommandLineParser();
+    parser.setMinimumArguments(3);
+    parser.setMaximumArguments(3);
+    parser.addStringOption("format", 'f');
+    parser.addStringOption("duplicates", 'd');
+    parser.addStringOption("max-duplicates", 'm');
+    parser.addStringOption("noise", 'n');
+    parser.addStringOption("field-noise", 'N');
+    parser.addStringOption("missing", 'M');
+    parser.addStringOption("skew", 's');
+    parser.addStringOption("seed", 'S');
+    parser.addStringOption("spread", 'p');
+    try {
+      argv = parser.parse(argv);
+    } catch (CommandLineParser.CommandLineParserException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      usage();
+      System.exit(1);
+    }
+
+    String format = parser.getOptionValue("format");
+    if (format != null && !format.equals("csv") && !format.equals("ntriples")) {
+      System.err.println("ERROR: unknown format " + format);
+      usage();
+      System.exit(1);
+    }
+    setNTriples(format != null && format.equals("ntriples"));
+    setDuplicates(parser.getOptionDouble("duplicates", duplicates));
+    setMaxDuplicates(parser.getOptionInteger("max-duplicates", maxduplicates));
+    setNoise(parser.getOptionDouble("noise", 0.3));
+    if (parser.getOptionValue("field-noise") != null)
+      for (String setting : parser.getOptionValue("field-noise").split(",")) {
+        int pos = setting.indexOf(':');
+        if (pos == -1)
+          throw new DukeConfigException("Bad field noise setting: " + setting);
+        setNoise(setting.substring(0, pos),
+                 Double.parseDouble(setting.substring(pos + 1)));
+      }
+    setMissing(parser.getOptionDouble("missing", missing));
+    setSkew(parser.getOptionDouble("skew", skew));
+    setSeed(parser.getOptionInteger("seed", (int) seed));
+    setSpread(parser.getOptionInteger("spread", spread));
+
+    int records = Integer.parseInt(argv[0]);
+    OutputStream data = new BufferedOutputStream(new FileOutputStream(argv[1]));
+    Writer test = new BufferedWriter(new FileWriter(argv[2]));
+    try {
+      generate(records, data, test);
+    } finally {
+      data.close();
+      test.close();
+    }
+  }
+
+  protected void usage() {
+    System.out.println("");
+    System.out.println("java no.priv.garshol.duke.DataGenerator [options] <records> <datafile> <testfile>");
+    System.out.println("");
+    System.out.println("  --format=csv|ntriples  format of data file (csv)");
+    System.out.println("  --duplicates=n         share of records which are duplicates (0.2)");
+    System.out.println("  --max-duplicates=N     most duplicates of one record (3)");
+    System.out.println("  --noise=n              chance a field in a duplicate is distorted (0.3)");
+    System.out.println("  --field-noise=F:n,...  noise for specific fields, like NAME:0.5");
+    System.out.println("  --missing=n            chance a value in a duplicate is missing (0.05)");
+    System.out.println("  --skew=n               Zipf exponent for value frequencies (1.0)");
+    System.out.println("  --seed=N               random seed (4711)");
+    System.out.println("  --spread=N             how far apart duplicates can end up (10000)");
+    System.out.println("");
+    System.out.println("Fields: " + Arrays.asList(FIELDS));
+    System.out.println("");
+    System.out.println("Duke version " + Duke.getVersionString());
+  }
+
+  // ===== CONFIGURATION
+
+  /**
+   * Sets the share of the records which are duplicates of some other
+   * record, from 0.0 to just below 1.0.
+   */
+  public void setDuplicates(double duplicates) {
+    if (duplicates < 0.0 || duplicates >= 1.0)
+      throw new DukeConfigException("Duplicate share must be in [0.0, 1.0), " +
+                                    "not " + duplicates);
+    this.duplicates = duplicates;
+  }
+
+  /**
+   * Sets the highest number of duplicates a single record can have.
+   */
+  public void setMaxDuplicates(int maxduplicates) {
+    if (maxduplicates < 1)
+      throw new DukeConfigException("Max duplicates must be at least 1");
+    this.maxduplicates = maxduplicates;
+  }
+
+  /**
+   * Sets the chance that a field in a duplicate is distorted, for all
+   * the fields.
+   */
+  public void setNoise(double noise) {
+    Arrays.fill(this.noise, noise);
+  }
+
+  /**
+   * Sets the chance that the given field in a duplicate is distorted.
+   */
+  public void setNoise(String field, double noise) {
+    int ix = Arrays.asList(FIELDS).indexOf(field);
+    if (ix == -1 || ix == ID)
+      throw new DukeConfigException("No such field: " + field);
+    this.noise[ix] = noise;
+  }
+
+  /**
+   * Sets the chance that a value in a duplicate is left out.
+   */
+  public void setMissing(double missing) {
+    this.missing = missing;
+  }
+
+  /**
+   * Sets the Zipf exponent used when drawing values from the
+   * vocabularies. 0.0 means all values are equally common, and the
+   * higher the number the more common the most common values are.
+   */
+  public void setSkew(double skew) {
+    this.skew = skew;
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * Iff true, the data is written as NTriples instead of CSV.
+   */
+  public void setNTriples(boolean ntriples) {
+    this.ntriples = ntriples;
+  }
+
+  /**
+   * Sets the number of records held back and written in random
+   * order, so that duplicates don't come right after their
+   * originals. Duplicates end up at most roughly this many records
+   * apart.
+   */
+  public void setSpread(int spread) {
+    this.spread = Math.max(1, spread);
+  }
+
+  // ===== GENERATION
+
+  /**
+   * Writes the given number of records to the data stream, and a
+   * positive link for each pair of duplicates to the test file.
+   */
+  public void generate(int records, OutputStream data, Writer test)
+    throws IOException {
+    random = new Random(seed);
+    givennames = new Vocabulary(2000, 2);
+    familynames = new Vocabulary(10000, 3);
+    streets = new Vocabulary(3000, 3);
+    cities = new Vocabulary(800, 2);
+    domains = new Vocabulary(200, 2);
+
+    RecordOutput out = ntriples ? new NTriplesOutput(data) :
+                                  new CSVOutput(data);
+    LinkFileWriter links = new LinkFileWriter(test);
+    String[][] buffer = new String[spread][];
+    int buffered = 0;
+
+    // chance that a record has duplicates, worked out so that the
+    // expected share of duplicates comes out right
+    double dupchance = (2 * duplicates) /
+      ((1 - duplicates) * (1 + maxduplicates));
+    dupchance = Math.min(1.0, dupchance);
+
+    int count = 0;
+    String[] ids = new String[maxduplicates + 1];
+    while (count < records) {
+      String[] original = makeRecord(makeId(++count));
+      int copies = 0;
+      if (random.nextDouble() < dupchance)
+        copies = Math.min(1 + random.nextInt(maxduplicates), records - count);
+
+      ids[0] = original[ID];
+      for (int ix = 0; ix <= copies; ix++) {
+        String[] record = original;
+        if (ix > 0) {
+          record = makeDuplicate(original, makeId(++count));
+          ids[ix] = record[ID];
+          for (int prev = 0; prev < ix; prev++)
+            links.write(ids[prev], ids[ix], true, 1.0);
+        }
+
+        // write out a random record from the buffer to make room
+        if (buffered < buffer.length)
+          buffer[buffered++] = record;
+        else {
+          int pos = random.nextInt(buffer.length);
+          out.write(buffer[pos]);
+          buffer[pos] = record;
+        }
+      }
+
+      if (count % 1000000 < copies + 1)
+        System.out.println("" + count + " records generated");
+    }
+
+    // shuffle whatever is left in the buffer
+    for (int ix = buffered - 1; ix >= 0; ix--) {
+      int pos = random.nextInt(ix + 1);
+      out.write(buffer[pos]);
+      buffer[pos] = buffer[ix];
+    }
+    out.done();
+  }
+
+  private String makeId(int number) {
+    if (ntriples)
+      return NTRIPLES_BASE + "record/" + number;
+    return "" + number;
+  }
+
+  private String[] makeRecord(String id) {
+    String given = givennames.pick();
+    String family = familynames.pick();
+    int city = cities.pickIndex();
+
+    String[] record = new String[FIELDS.length];
+    record[ID] = id;
+    record[NAME] = given + " " + family;
+    int suffix = random.nextInt(SUFFIXES.length);
+    record[ADDRESS] = streets.pick() + " " + SUFFIXES[suffix] + " " +
+      (1 + random.nextInt(200));
+    // the zip code depends on the city, as in real data
+    record[ZIP] = "" + (1000 + city * 10 + random.nextInt(10));
+    record[CITY] = cities.get(city);
+    record[PHONE] = "" + (20000000 + random.nextInt(80000000));
+    record[EMAIL] = given.toLowerCase() + "." + family.toLowerCase() + "@" +
+      domains.pick().toLowerCase() + ".com";
+    return record;
+  }
+
+  private String[] makeDuplicate(String[] original, String id) {
+    String[] record = new String[FIELDS.length];
+    record[ID] = id;
+    for (int ix = 1; ix < FIELDS.length; ix++) {
+      String value = original[ix];
+      if (random.nextDouble() < missing)
+        value = null;
+      else if (random.nextDouble() < noise[ix])
+        value = distort(ix, value);
+      record[ix] = value;
+    }
+    return record;
+  }
+
+  // each field has its own kinds of noise
+  private String distort(int field, String value) {
+    int model = random.nextInt(3);
+    switch (field) {
+    case NAME:
+      int space = value.indexOf(' ');
+      if (model == 0)
+        return typo(value);
+      else if (model == 1) // initial instead of given name
+        return value.charAt(0) + ". " + value.substring(space + 1);
+      else // family name first
+        return value.substring(space + 1) + " " + value.substring(0, space);
+
+    case ADDRESS:
+      if (model == 0)
+        return typo(value);
+      else if (model == 1) { // abbreviated street type
+        for (int ix = 0; ix < SUFFIXES.length; ix++)
+          if (value.indexOf(" " + SUFFIXES[ix] + " ") != -1)
+            return value.replace(" " + SUFFIXES[ix] + " ",
+                                 " " + ABBREVIATIONS[ix] + " ");
+        return value;
+      } else // no house number
+        return value.substring(0, value.lastIndexOf(' '));
+
+    case ZIP:
+    case PHONE:
+      if (field == PHONE && model == 0) // formatted
+        return "+47 " + value.substring(0, 3) + " " + value.substring(3, 5) +
+          " " + value.substring(5);
+      return digitTypo(value);
+
+    case CITY:
+      if (model == 0)
+        return value.toUpperCase();
+      return typo(value);
+
+    case EMAIL:
+      if (model == 0)
+        return value.toUpperCase();
+      else if (model == 1) // different domain
+        return value.substring(0, value.indexOf('@') + 1) +
+          domains.pick().toLowerCase() + ".com";
+      return typo(value);
+
+    default:
+      return value;
+    }
+  }
+
+  // one random substitution, deletion, insertion or transposition
+  private String typo(String value) {
+    if (value.length() < 2)
+      return value;
+
+    StringBuilder buf = new StringBuilder(value);
+    int pos = random.nextInt(buf.length() - 1);
+    char ch = VOWELS.charAt(random.nextInt(VOWELS.length()));
+    switch (random.nextInt(4)) {
+    case 0:
+      buf.setCharAt(pos, ch);
+      break;
+    case 1:
+      buf.deleteCharAt(pos);
+      break;
+    case 2:
+      buf.insert(pos, ch);
+      break;
+    default:
+      buf.setCharAt(pos, buf.charAt(pos + 1));
+      buf.setCharAt(pos + 1, value.charAt(pos));
+    }
+    return buf.toString();
+  }
+
+  private String digitTypo(String value) {
+    char[] chars = value.toCharArray();
+    int pos = random.nextInt(chars.length);
+    chars[pos] = (char) ('0' + random.nextInt(10));
+    return new String(chars);
+  }
+
+  /**
+   * A list of made-up words, with a Zipf distribution over them.
+   */
+  class Vocabulary {
+    private String[] words;
+    private double[] cumulative; // cumulative[ix] = sum of weights <= ix
+
+    public Vocabulary(int size, int syllables) {
+      // made-up words can collide, so avoid duplicates
+      Set<String> seen = new HashSet();
+      words = new String[size];
+      cumulative = new double[size];
+      double total = 0.0;
+      for (int ix = 0; ix < size; ix++) {
+        String word;
+        do {
+          word = makeWord(syllables);
+        } while (!seen.add(word));
+
+        words[ix] = word;
+        total += 1.0 / Math.pow(ix + 1, skew);
+        cumulative[ix] = total;
+      }
+    }
+
+    public String pick() {
+      return words[pickIndex()];
+    }
+
+    public int pickIndex() {
+      double target = random.nextDouble() * cumulative[cumulative.length - 1];
+      int ix = Arrays.binarySearch(cumulative, target);
+      if (ix < 0)
+        ix = -(ix + 1);
+      return Math.min(ix, words.length - 1);
+    }
+
+    public String get(int ix) {
+      return words[ix];
+    }
+
+    private String makeWord(int syllables) {
+      // some words get an extra syllable, so lengths vary
+      int count = syllables + random.nextInt(2);
+      StringBuilder buf = new StringBuilder();
+      for (int ix = 0; ix < count; ix++) {
+        buf.append(CONSONANTS.charAt(random.nextInt(CONSONANTS.length())));
+        buf.append(VOWELS.charAt(random.nextInt(VOWELS.length())));
+        if (random.nextInt(4) == 0)
+          buf.append(CONSONANTS.charAt(random.nextInt(CONSONANTS.length())));
+      }
+      buf.setCharAt(0, Character.toUpperCase(buf.charAt(0)));
+      return buf.toString();
+    }
+  }
+
+  // ===== OUTPUT FORMATS
+
+  interface RecordOutput {
+    public void write(String[] record) throws IOException;
+    public void done() throws IOException;
+  }
+
+  static class CSVOutput implements RecordOutput {
+    private Writer out;
+
+    public CSVOutput(OutputStream out) throws IOException {
+      this.out = new OutputStreamWriter(out, "utf-8");
+      for (int ix = 0; ix < FIELDS.length; ix++) {
+        if (ix > 0)
+          this.out.write(',');
+        this.out.write(FIELDS[ix]);
+      }
+      this.out.write('\n');
+    }
+
+    public void write(String[] record) throws IOException {
+      for (int ix = 0; ix < record.length; ix++) {
+        if (ix > 0)
+          out.write(',');
+        if (record[ix] != null)
+          out.write('"' + record[ix].replace("\"", "\"\"") + '"');
+      }
+      out.write('\n');
+    }
+
+    public void done() throws IOException {
+      out.flush();
+    }
+  }
+
+  static class NTriplesOutput implements RecordOutput {
+    private NTriplesWriter out;
+
+    public NTriplesOutput(OutputStream out) {
+      this.out = new NTriplesWriter(out);
+    }
+
+    public void write(String[] record) {
+      for (int ix = 1; ix < record.length; ix++)
+        if (record[ix] != null)
+          out.statement(record[ID], NTRIPLES_BASE + "property/" +
+                        FIELDS[ix].toLowerCase(), record[ix], true);
+    }
+
+    public void done() throws IOException {
+      out.done();
+    }
+  }
+}
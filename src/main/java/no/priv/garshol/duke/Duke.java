@@ -90,6 +90,7 @@ public class Duke {
     Processor processor = new Processor(config, !noreindex);
     processor.setLogger(logger);
     processor.setThreads(threads);
+    processor.setBoundedScoring(parser.getOptionState("bounded"));
 
     // sanity check
     if (noreindex && processor.getDatabase().isInMemory()) {
@@ -219,6 +220,8 @@ public class Duke {
     System.out.println("  --singlematch         (in record linkage mode) only accept");
     System.out.println("                        the best match for each record");
     System.out.println("  --lookups             display lookup properties");
+    System.out.println("  --bounded             stop comparing records once they");
+    System.out.println("                        can no longer match");
     System.out.println("");
     System.out.println("Duke version " + getVersionString());
   }
@@ -245,6 +248,7 @@ public class Duke {
     parser.addBooleanOption("pretty", 'n');
     parser.addBooleanOption("singlematch", 'n');
     parser.addBooleanOption("lookups", 'L');
+    parser.addBooleanOption("bounded", 'B');
     return parser;
   }
 
@@ -0,0 +1,28 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * A comparator which can do the work of analyzing a value (splitting
+ * it into tokens, parsing numbers, producing phonetic keys, etc) up
+ * front, so that it is done only once per value, rather than once for
+ * every comparison the value takes part in. When a record is matched
+ * its values are prepared once and then compared against all the
+ * candidates.
+ * @since 1.3
+ */
+public interface PreparedComparator extends Comparator {
+
+  /**
+   * Returns a precomputed representation of the value, to be passed
+   * to comparePrepared. The object must not be modified by
+   * comparePrepared, since it may be used from several threads.
+   */
+  public Object prepare(String value);
+
+  /**
+   * Compares two prepared values, returning the same as compare would
+   * on the original values.
+   */
+  public double comparePrepared(Object v1, Object v2);
+
+}
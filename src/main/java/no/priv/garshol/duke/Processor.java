@@ -1,16 +1,30 @@
 
 package no.priv.garshol.duke;
 
+import no.priv.garshol.duke.datasources.ColumnarDataSource;
 import no.priv.garshol.duke.matchers.AbstractMatchListener;
+import no.priv.garshol.duke.matchers.AsyncMatchDispatcher;
 import no.priv.garshol.duke.matchers.MatchListener;
 import no.priv.garshol.duke.matchers.PrintMatchListener;
 import no.priv.garshol.duke.utils.Utils;
+import no.priv.garshol.duke.utils.StripedCounter;
+import no.priv.garshol.duke.utils.ThreadUtils.DaemonFactory;
+import static no.priv.garshol.duke.utils.ThreadUtils.waitFor;
+
+import java.lang.management.ManagementFactory;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import java.io.PrintWriter;
 import java.io.Writer;
 import java.util.*;
 import java.util.Comparator;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The class that implements the actual deduplication and record
@@ -20,19 +34,37 @@ public class Processor {
   private Configuration config;
   protected Database database;
   private Collection<MatchListener> listeners;
+  private Collection<MatchListener> targets; // where callbacks go
+  private AsyncMatchDispatcher dispatcher; // null unless async callbacks
   private Logger logger;
   private List<Property> proporder;
   private double[] accprob;
+  private RecordSchema schema;
+  private Property[] slotprops; // property in each slot, null for ID
+  private int[] propslots; // slot of each property in proporder
+  private PropertyStatistics[] propstats; // by slot, null unless turned on
+  private Collection<ObjectName> mbeans; // registered for propstats
+  private int processorno; // to tell processors apart in JMX
+  private static AtomicInteger processorcount = new AtomicInteger();
   private int threads;
+  private boolean bounded; // stop comparing when result can't match
+  private boolean readahead; // read next batch while processing current
+  private ExecutorService executor; // runs matching when threads > 1
+  private boolean ownexecutor; // true iff we made the executor ourselves
+  private ExecutorService batchexecutor; // processes batches on readahead
   private final static int DEFAULT_BATCH_SIZE = 40000;
-
-  // performance statistics
-  private long comparisons; // number of records compared
-  private long srcread; // ms spent reading from data sources
-  private long indexing; // ms spent indexing records
-  private long searching; // ms spent searching for records
-  private long comparing; // ms spent comparing records
-  private long callbacks; // ms spent in callbacks
+  private final static int CHUNK_SIZE = 16; // records per work unit
+  // with property statistics on, one in this many comparisons is timed
+  private final static int SAMPLE_RATE = 64;
+
+  // performance statistics. these are updated from all the matching
+  // threads, hence the striped counters
+  private StripedCounter comparisons; // number of records compared
+  private StripedCounter srcread; // ms spent reading from data sources
+  private StripedCounter indexing; // ms spent indexing records
+  private StripedCounter searching; // ms spent searching for records
+  private StripedCounter comparing; // ms spent comparing records
+  private StripedCounter callbacks; // ms spent in callbacks
   private Profiler profiler;
 
   /**
@@ -60,8 +92,16 @@ public class Processor {
     // using this List implementation so that listeners can be removed
     // while Duke is running (see issue 117)
     this.listeners = new CopyOnWriteArrayList<MatchListener>();
+    this.targets = listeners;
     this.logger = new DummyLogger();
     this.threads = 1;
+    this.comparisons = new StripedCounter();
+    this.srcread = new StripedCounter();
+    this.indexing = new StripedCounter();
+    this.searching = new StripedCounter();
+    this.comparing = new StripedCounter();
+    this.callbacks = new StripedCounter();
+    this.processorno = processorcount.incrementAndGet();
 
     // precomputing for later optimizations
     this.proporder = new ArrayList();
@@ -70,13 +110,28 @@ public class Processor {
         proporder.add(p);
     Collections.sort(proporder, new PropertyComparator());
 
-    // still precomputing
+    // still precomputing. accprob[ix] is the highest probability the
+    // properties from ix onwards can contribute. a property never
+    // contributes less than 0.5 if its values are missing, hence max
     double prob = 0.5;
     accprob = new double[proporder.size()];
     for (int ix = proporder.size() - 1; ix >= 0; ix--) {
-      prob = Utils.computeBayes(prob, proporder.get(ix).getHighProbability());
+      double high = Math.max(0.5, proporder.get(ix).getHighProbability());
+      prob = Utils.computeBayes(prob, high);
       accprob[ix] = prob;
     }
+
+    // the properties by slot, so that we can look up values by index
+    schema = config.getRecordSchema();
+    slotprops = new Property[schema.size()];
+    for (int ix = 0; ix < slotprops.length; ix++) {
+      Property prop = config.getPropertyByName(schema.getName(ix));
+      if (!prop.isIdProperty())
+        slotprops[ix] = prop;
+    }
+    propslots = new int[proporder.size()];
+    for (int ix = 0; ix < propslots.length; ix++)
+      propslots[ix] = schema.getSlot(proporder.get(ix).getName());
   }
 
   /**
@@ -91,6 +146,12 @@ public class Processor {
    * 1.
    */
   public void setThreads(int threads) {
+    if (threads != this.threads && ownexecutor) {
+      // thread pool has the wrong size, so we make a new one when needed
+      executor.shutdown();
+      executor = null;
+      ownexecutor = false;
+    }
     this.threads = threads;
   }
 
@@ -101,6 +162,71 @@ public class Processor {
     return threads;
   }
 
+  /**
+   * Sets the executor used to run matching when there is more than
+   * one thread. By default the processor creates a thread pool of the
+   * size given to setThreads, which is reused across batches. An
+   * executor set with this method is not shut down by close().
+   * @since 1.3
+   */
+  public void setExecutor(ExecutorService executor) {
+    if (ownexecutor)
+      this.executor.shutdown();
+    this.executor = executor;
+    this.ownexecutor = false;
+  }
+
+  /**
+   * Turns read-ahead on or off. With read-ahead, the next batch is
+   * read from the data sources while the current batch is being
+   * processed in a background thread. The default is false.
+   * @since 1.3
+   */
+  public void setReadAhead(boolean readahead) {
+    this.readahead = readahead;
+  }
+
+  /**
+   * Turns asynchronous callbacks on or off. When on, match events are
+   * queued and passed on to the listeners by a separate thread, so
+   * that slow listeners don't hold up matching. All events for one
+   * record are delivered together, and all events for a batch have
+   * been delivered before the batch is done. Listeners are then only
+   * called from a single thread, so they need not be thread-safe. The
+   * default is false.
+   * @since 1.3
+   */
+  public void setAsyncCallbacks(boolean async) {
+    if (async && dispatcher == null) {
+      dispatcher = new AsyncMatchDispatcher(listeners);
+      targets = Collections.singleton((MatchListener) dispatcher);
+    } else if (!async && dispatcher != null) {
+      dispatcher.close();
+      dispatcher = null;
+      targets = listeners;
+    }
+  }
+
+  /**
+   * Turns bounded scoring on or off. With bounded scoring, record
+   * pairs are compared one property at a time in order of increasing
+   * low probability, and the comparison stops as soon as the
+   * probability can no longer rise above the lowest threshold. The
+   * default is false.
+   * @since 1.3
+   */
+  public void setBoundedScoring(boolean bounded) {
+    this.bounded = bounded;
+  }
+
+  /**
+   * Returns true iff bounded scoring is turned on.
+   * @since 1.3
+   */
+  public boolean getBoundedScoring() {
+    return bounded;
+  }
+
   /**
    * Adds a listener to be notified of processing events.
    */
@@ -143,6 +269,7 @@ public class Processor {
 
       this.profiler = new Profiler();
       addMatchListener(profiler);
+      setPropertyStatistics(true);
 
     } else {
       // turn off profiling
@@ -151,9 +278,51 @@ public class Processor {
 
       removeMatchListener(profiler);
       profiler = null;
+      setPropertyStatistics(false);
     }
   }
 
+  /**
+   * Turns collection of statistics on the comparisons of each
+   * property on and off. While on, the statistics are also available
+   * over JMX, as MBeans named
+   * no.priv.garshol.duke:type=PropertyStatistics. Turned on
+   * automatically by performance profiling. Only a sample of the
+   * comparisons is timed, so the overhead is small.
+   * @since 1.3
+   */
+  public void setPropertyStatistics(boolean enabled) {
+    if (enabled == (propstats != null))
+      return; // no change
+
+    if (enabled) {
+      PropertyStatistics[] stats = new PropertyStatistics[slotprops.length];
+      for (int slot = 0; slot < slotprops.length; slot++)
+        if (slotprops[slot] != null)
+          stats[slot] = new PropertyStatistics(slotprops[slot]);
+      propstats = stats;
+      registerMBeans();
+    } else {
+      unregisterMBeans();
+      propstats = null;
+    }
+  }
+
+  /**
+   * Returns the statistics for each property, or an empty collection
+   * if property statistics are turned off.
+   * @since 1.3
+   */
+  public Collection<PropertyStatistics> getPropertyStatistics() {
+    Collection<PropertyStatistics> stats = new ArrayList();
+    PropertyStatistics[] current = propstats;
+    if (current != null)
+      for (int slot = 0; slot < current.length; slot++)
+        if (current[slot] != null)
+          stats.add(current[slot]);
+    return stats;
+  }
+
   /**
    * Returns the performance profiler, if any.
    * @since 1.1
@@ -190,8 +359,10 @@ public class Processor {
     while (it.hasNext()) {
       DataSource source = it.next();
       source.setLogger(logger);
+      setRecordSchema(source);
 
       RecordIterator it2 = source.getRecords();
+      BatchRunner runner = new BatchRunner(it2, true, true);
       try {
         Collection<Record> batch = new ArrayList();
         long start = System.currentTimeMillis();
@@ -200,18 +371,16 @@ public class Processor {
           batch.add(record);
           count++;
           if (count % batch_size == 0) {
-            srcread += (System.currentTimeMillis() - start);
-            deduplicate(batch);
-            it2.batchProcessed();
+            srcread.add(System.currentTimeMillis() - start);
+            runner.process(batch);
             batch = new ArrayList();
             start = System.currentTimeMillis();
           }
         }
 
-        if (!batch.isEmpty()) {
-          deduplicate(batch);
-          it2.batchProcessed();
-        }
+        if (!batch.isEmpty())
+          runner.process(batch);
+        runner.finish();
       } finally {
         it2.close();
       }
@@ -246,26 +415,32 @@ public class Processor {
   }
 
   private void threadedmatch(Collection<Record> records, boolean matchall) {
-    // split batch into n smaller batches
-    MatchThread[] threads = new MatchThread[this.threads];
-    for (int ix = 0; ix < threads.length; ix++)
-      threads[ix] = new MatchThread(ix, records.size() / threads.length,
-                                    matchall);
-    int ix = 0;
-    for (Record record : records)
-      threads[ix++ % threads.length].addRecord(record);
+    // the workers pick small chunks of records off the batch as they
+    // go, so that one slow record doesn't leave the other threads idle
+    List<Record> list;
+    if (records instanceof List && records instanceof RandomAccess)
+      list = (List<Record>) records;
+    else
+      list = new ArrayList(records);
 
-    // kick off threads
-    for (ix = 0; ix < threads.length; ix++)
-      threads[ix].start();
+    ExecutorService executor = getExecutor();
+    AtomicInteger next = new AtomicInteger();
+    List<Future> futures = new ArrayList(threads);
+    for (int ix = 0; ix < threads; ix++)
+      futures.add(executor.submit(new MatchTask(list, next, matchall)));
+
+    // wait for all chunks to finish
+    for (Future future : futures)
+      waitFor(future);
+  }
 
-    // wait for threads to finish
-    try {
-      for (ix = 0; ix < threads.length; ix++)
-        threads[ix].join();
-    } catch (InterruptedException e) {
-      // argh
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(threads,
+                                              new DaemonFactory("MatchThread"));
+      ownexecutor = true;
     }
+    return executor;
   }
 
   /**
@@ -346,20 +521,26 @@ public class Processor {
                           int batch_size) {
     for (DataSource source : sources) {
       source.setLogger(logger);
+      setRecordSchema(source);
 
       Collection<Record> batch = new ArrayList(batch_size);
       RecordIterator it = source.getRecords();
-      while (it.hasNext()) {
-        batch.add(it.next());
-        if (batch.size() == batch_size) {
-          linkBatch(batch, matchall);
-          batch.clear();
+      BatchRunner runner = new BatchRunner(it, false, matchall);
+      try {
+        while (it.hasNext()) {
+          batch.add(it.next());
+          if (batch.size() == batch_size) {
+            runner.process(batch);
+            batch = new ArrayList(batch_size);
+          }
         }
-      }
-      it.close();
 
-      if (!batch.isEmpty())
-        linkBatch(batch, matchall);
+        if (!batch.isEmpty())
+          runner.process(batch);
+        runner.finish();
+      } finally {
+        it.close();
+      }
     }
 
     endProcessing();
@@ -378,19 +559,25 @@ public class Processor {
    */
   public void index(Collection<DataSource> sources, int batch_size) {
     int count = 0;
+    List<Record> batch = new ArrayList(batch_size);
     for (DataSource source : sources) {
       source.setLogger(logger);
+      setRecordSchema(source);
 
       RecordIterator it2 = source.getRecords();
       while (it2.hasNext()) {
         Record record = it2.next();
-        database.index(record);
+        batch.add(record);
         count++;
-        if (count % batch_size == 0)
+        if (count % batch_size == 0) {
+          indexRecords(batch);
+          batch.clear();
           batchReady(batch_size);
+        }
       }
       it2.close();
     }
+    indexRecords(batch);
     if (count % batch_size == 0)
       batchReady(count % batch_size);
     database.commit();
@@ -412,18 +599,50 @@ public class Processor {
    */
   public void index(Collection<Record> records){
     long start = System.currentTimeMillis();
-    for (Record record : records)
-      database.index(record);
-
+    indexRecords(records);
     database.commit();
-    indexing += System.currentTimeMillis() - start;
+    indexing.add(System.currentTimeMillis() - start);
+  }
+
+  // indexes the records on all threads if the database supports it
+  private void indexRecords(Collection<Record> records) {
+    if (threads == 1 || records.size() <= CHUNK_SIZE ||
+        !(database instanceof ConcurrentIndexing)) {
+      for (Record record : records)
+        database.index(record);
+      return;
+    }
+
+    List<Record> list;
+    if (records instanceof List && records instanceof RandomAccess)
+      list = (List<Record>) records;
+    else
+      list = new ArrayList(records);
+
+    ExecutorService executor = getExecutor();
+    AtomicInteger next = new AtomicInteger();
+    List<Future> futures = new ArrayList(threads);
+    for (int ix = 0; ix < threads; ix++)
+      futures.add(executor.submit(new IndexTask(list, next)));
+    for (Future future : futures)
+      waitFor(future);
   }
 
   /**
    * Returns the number of records that have been compared.
    */
   public long getComparisonCount() {
-    return comparisons;
+    return comparisons.sum();
+  }
+
+  /**
+   * Returns a snapshot of the performance statistics collected so
+   * far. The snapshot does not change as processing continues.
+   * @since 1.3
+   */
+  public Statistics getStatistics() {
+    return new Statistics(comparisons.sum(), srcread.sum(), indexing.sum(),
+                          searching.sum(), comparing.sum(), callbacks.sum());
   }
 
   public void match(Record record, boolean matchall) {
@@ -433,7 +652,7 @@ public class Processor {
   public void match(Record record,Collection<Filter> filters, boolean matchall) {
     long start = System.currentTimeMillis();
     Collection<Record> candidates = database.findCandidateMatches(record,filters);
-    searching += System.currentTimeMillis() - start;
+    searching.add(System.currentTimeMillis() - start);
     if (logger.isDebugEnabled())
       logger.debug("Matching record " +
                    PrintMatchListener.toString(record, config.getProperties()) +
@@ -444,7 +663,14 @@ public class Processor {
       compareCandidatesSimple(record, candidates);
     else
       compareCandidatesBest(record, candidates);
-    comparing += System.currentTimeMillis() - start;
+    comparing.add(System.currentTimeMillis() - start);
+
+    if (dispatcher != null) {
+      // hand over all the events for this record in one go
+      start = System.currentTimeMillis();
+      dispatcher.endRecord();
+      callbacks.add(System.currentTimeMillis() - start);
+    }
   }
 
   // ===== RECORD LINKAGE STRATEGIES
@@ -468,11 +694,14 @@ public class Processor {
   protected void compareCandidatesSimple(Record record,
                                          Collection<Record> candidates) {
     boolean found = false;
+    double cutoff = getCutoff();
+    PreparedRecord prepared = makePreparedRecord(record);
     for (Record candidate : candidates) {
       if (isSameAs(record, candidate))
         continue;
 
-      double prob = compare(record, candidate);
+      double prob = bounded ? compare(prepared, candidate, cutoff) :
+                              compare(prepared, candidate);
       if (prob > config.getThreshold()) {
         found = true;
         registerMatch(record, candidate, prob);
@@ -482,6 +711,7 @@ public class Processor {
         registerMatchPerhaps(record, candidate, prob);
       }
     }
+    prepared.flushCounts();
     if (!found)
       registerNoMatchFor(record);
   }
@@ -493,18 +723,24 @@ public class Processor {
                                          Collection<Record> candidates) {
     double max = 0.0;
     Record best = null;
+    double cutoff = getCutoff();
+    PreparedRecord prepared = makePreparedRecord(record);
 
-    // go through all candidates, and find the best
+    // go through all candidates, and find the best. once we have a
+    // candidate we only care about candidates that beat it
     for (Record candidate : candidates) {
       if (isSameAs(record, candidate))
         continue;
 
-      double prob = compare(record, candidate);
+      double prob = bounded ?
+        compare(prepared, candidate, Math.max(cutoff, max)) :
+        compare(prepared, candidate);
       if (prob > max) {
         max = prob;
         best = candidate;
       }
     }
+    prepared.flushCounts();
 
     // pass on the best match, if any
     if (max > config.getThreshold())
@@ -521,41 +757,82 @@ public class Processor {
    * represent the same real-world entity.
    */
   public double compare(Record r1, Record r2) {
-    comparisons++;
+    PreparedRecord prepared = makePreparedRecord(r1);
+    double prob = compare(prepared, r2);
+    prepared.flushCounts();
+    return prob;
+  }
+
+  /**
+   * Compares two records and returns the probability that they
+   * represent the same real-world entity, unless that probability
+   * cannot be higher than the cutoff. In that case the comparison
+   * stops early, and some value no higher than the cutoff is
+   * returned. Properties are compared in order of increasing low
+   * probability, so that non-matches are detected as early as
+   * possible. Used when bounded scoring is turned on.
+   * @since 1.3
+   */
+  public double compare(Record r1, Record r2, double cutoff) {
+    PreparedRecord prepared = makePreparedRecord(r1);
+    double prob = compare(prepared, r2, cutoff);
+    prepared.flushCounts();
+    return prob;
+  }
+
+  private double compare(PreparedRecord r1, Record r2) {
+    comparisons.increment();
     double prob = 0.5;
-    for (String propname : r1.getProperties()) {
-      Property prop = config.getPropertyByName(propname);
-      if (prop == null)
-        continue; // means the property is unknown
-      if (prop.isIdProperty() || prop.isIgnoreProperty())
+    for (int slot = 0; slot < slotprops.length; slot++) {
+      Property prop = slotprops[slot];
+      if (prop == null || prop.isIgnoreProperty())
         continue;
 
-      Collection<String> vs1 = r1.getValues(propname);
-      Collection<String> vs2 = r2.getValues(propname);
-      if (vs1 == null || vs1.isEmpty() || vs2 == null || vs2.isEmpty())
+      PreparedValues vs1 = r1.getValues(slot, prop);
+      if (vs1 == null)
         continue; // no values to compare, so skip
+      String[] vs2 = getValues(r2, schema, slot);
+      if (vs2 == null)
+        continue;
 
-      double high = 0.0;
-      for (String v1 : vs1) {
-        if (v1.equals("")) // FIXME: these values shouldn't be here at all
-          continue;
-
-        for (String v2 : vs2) {
-          if (v2.equals("")) // FIXME: these values shouldn't be here at all
-            continue;
-
-          try {
-            double p = prop.compare(v1, v2);
-            high = Math.max(high, p);
-          } catch (Exception e) {
-            throw new DukeException("Comparison of values '" + v1 + "' and "+
-                                    "'" + v2 + "' with " +
-                                    prop.getComparator() + " failed", e);
-          }
-        }
+      prob = Utils.computeBayes(prob,
+                                compareValues(r1, slot, prop, vs1, vs2, 0.0));
+    }
+    return prob;
+  }
+
+  private double compare(PreparedRecord r1, Record r2, double cutoff) {
+    comparisons.increment();
+    double prob = 0.5;
+    for (int ix = 0; ix < proporder.size(); ix++) {
+      // can the remaining properties still lift us above the cutoff?
+      double best = Utils.computeBayes(prob, accprob[ix]);
+      if (best <= cutoff) {
+        if (r1.counts != null)
+          r1.counts.skipped[propslots[ix]]++;
+        return best;
       }
 
-      prob = Utils.computeBayes(prob, high);
+      Property prop = proporder.get(ix);
+      if (prop.isIgnoreProperty())
+        continue;
+
+      int slot = propslots[ix];
+      PreparedValues vs1 = r1.getValues(slot, prop);
+      if (vs1 == null)
+        continue; // no values to compare, so skip
+      String[] vs2 = getValues(r2, schema, slot);
+      if (vs2 == null)
+        continue;
+
+      // how high does this property have to go for the remaining
+      // properties to be able to lift us above the cutoff? the
+      // comparator can stop early if it can't get that high.
+      double rest = ix + 1 < accprob.length ? accprob[ix + 1] : 0.5;
+      double minprob =
+        Utils.inverseBayes(Utils.computeBayes(prob, rest), cutoff);
+      prob = Utils.computeBayes(prob, compareValues(r1, slot, prop, vs1, vs2,
+                                                    minprob));
     }
     return prob;
   }
@@ -564,11 +841,165 @@ public class Processor {
    * Commits all state to disk and frees up resources.
    */
   public void close() {
+    setAsyncCallbacks(false);
+    unregisterMBeans();
+    if (ownexecutor) {
+      executor.shutdown();
+      executor = null;
+      ownexecutor = false;
+    }
+    if (batchexecutor != null) {
+      batchexecutor.shutdown();
+      batchexecutor = null;
+    }
     database.close();
   }
 
   // ===== INTERNALS
 
+  private synchronized ExecutorService getBatchExecutor() {
+    if (batchexecutor == null)
+      batchexecutor =
+        Executors.newSingleThreadExecutor(new DaemonFactory("BatchThread"));
+    return batchexecutor;
+  }
+
+  private PreparedRecord makePreparedRecord(Record record) {
+    PreparedRecord prepared = new PreparedRecord(record, schema);
+    PropertyStatistics[] stats = propstats;
+    if (stats != null)
+      prepared.counts = new PropertyCounts(stats);
+    return prepared;
+  }
+
+  /**
+   * Compares the two sets of values, collecting statistics on the
+   * comparison if property statistics are turned on.
+   */
+  private double compareValues(PreparedRecord r1, int slot, Property prop,
+                               PreparedValues vs1, String[] vs2,
+                               double minprob) {
+    PropertyCounts counts = r1.counts;
+    if (counts == null)
+      return compareValues(prop, vs1, vs2, minprob);
+
+    double prob;
+    counts.calls[slot]++;
+    if (++counts.ticks % SAMPLE_RATE != 0)
+      prob = compareValues(prop, vs1, vs2, minprob);
+    else {
+      long start = System.nanoTime();
+      prob = compareValues(prop, vs1, vs2, minprob);
+      counts.stats[slot].addSample(System.nanoTime() - start,
+                                   Math.max(vs1.values[0].length(),
+                                            vs2[0].length()));
+    }
+    if (prob < minprob)
+      counts.belowmin[slot]++;
+    return prob;
+  }
+
+  private void registerMBeans() {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    mbeans = new ArrayList();
+    for (PropertyStatistics stats : getPropertyStatistics()) {
+      try {
+        ObjectName name = new ObjectName(
+          "no.priv.garshol.duke:type=PropertyStatistics,processor=" +
+          processorno + ",property=" + ObjectName.quote(stats.getProperty()));
+        server.registerMBean(stats, name);
+        mbeans.add(name);
+      } catch (JMException e) {
+        logger.warn("Couldn't register MBean for property " +
+                    stats.getProperty(), e);
+      }
+    }
+  }
+
+  private void unregisterMBeans() {
+    if (mbeans == null)
+      return;
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    for (ObjectName name : mbeans) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn("Couldn't unregister MBean " + name, e);
+      }
+    }
+    mbeans = null;
+  }
+
+  /**
+   * Returns the highest probability produced by comparing the two
+   * sets of values with the given property, or some value lower than
+   * minprob if the highest probability is lower than that. Once one
+   * pair of values has been compared, the others only matter if they
+   * do better, so that becomes the new minimum.
+   */
+  private double compareValues(Property prop, PreparedValues vs1,
+                               String[] vs2, double minprob) {
+    double high = 0.0;
+    for (String v2 : vs2) {
+      if (v2.equals("")) // FIXME: these values shouldn't be here at all
+        continue;
+
+      Object p2 = null;
+      for (int ix = 0; ix < vs1.values.length; ix++) {
+        String v1 = vs1.values[ix];
+        try {
+          if (ix == 0)
+            p2 = prop.prepare(v2);
+          double p = prop.comparePrepared(vs1.prepared[ix], p2,
+                                          Math.max(minprob, high));
+          high = Math.max(high, p);
+        } catch (Exception e) {
+          throw new DukeException("Comparison of values '" + v1 + "' and "+
+                                  "'" + v2 + "' with " +
+                                  prop.getComparator() + " failed", e);
+        }
+      }
+    }
+    return high;
+  }
+
+  /**
+   * Returns the values in the given slot of the record, or null if
+   * there are none. Records built for the same schema give us their
+   * values directly, while for other records we have to go by name.
+   */
+  static String[] getValues(Record record, RecordSchema schema, int slot) {
+    if (record instanceof SchemaRecord &&
+        ((SchemaRecord) record).getSchema() == schema)
+      return ((SchemaRecord) record).getValues(slot);
+
+    Collection<String> vs = record.getValues(schema.getName(slot));
+    if (vs == null || vs.isEmpty())
+      return null;
+    return vs.toArray(new String[vs.size()]);
+  }
+
+  /**
+   * Makes columnar data sources build records that use the schema of
+   * the configuration, so that their values can be found by slot.
+   */
+  private void setRecordSchema(DataSource source) {
+    if (source instanceof ColumnarDataSource)
+      ((ColumnarDataSource) source).setRecordSchema(schema);
+  }
+
+  /**
+   * Returns the probability a comparison has to beat for its result
+   * to be of any interest.
+   */
+  private double getCutoff() {
+    double cutoff = config.getThreshold();
+    if (config.getMaybeThreshold() != 0.0)
+      cutoff = Math.min(cutoff, config.getMaybeThreshold());
+    return cutoff;
+  }
+
   private boolean isSameAs(Record r1, Record r2) {
     for (Property idp : config.getIdentityProperties()) {
       Collection<String> vs2 = r2.getValues(idp.getName());
@@ -584,30 +1015,30 @@ public class Processor {
 
   private void startProcessing() {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.startProcessing();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   private void endProcessing() {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.endProcessing();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   private void batchReady(int size) {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.batchReady(size);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   private void batchDone() {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.batchDone();
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   /**
@@ -615,9 +1046,9 @@ public class Processor {
    */
   private void registerMatch(Record r1, Record r2, double confidence) {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.matches(r1, r2, confidence);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   /**
@@ -625,9 +1056,9 @@ public class Processor {
    */
   private void registerMatchPerhaps(Record r1, Record r2, double confidence) {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.matchesPerhaps(r1, r2, confidence);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   /**
@@ -635,9 +1066,9 @@ public class Processor {
    */
   private void registerNoMatchFor(Record current) {
     long start = System.currentTimeMillis();
-    for (MatchListener listener : listeners)
+    for (MatchListener listener : targets)
       listener.noMatchFor(current);
-    callbacks += (System.currentTimeMillis() - start);
+    callbacks.add(System.currentTimeMillis() - start);
   }
 
   /**
@@ -656,34 +1087,277 @@ public class Processor {
     }
   }
 
+  /**
+   * A record whose values have been prepared for comparison, so that
+   * the comparators only have to analyze them once, no matter how
+   * many candidates the record is compared against. Values are
+   * prepared the first time they are needed. Not thread-safe.
+   */
+  static class PreparedRecord {
+    private Record record;
+    private RecordSchema schema;
+    private PreparedValues[] values; // indexed by slot
+    private boolean[] done; // true iff slot has been prepared
+    private PropertyCounts counts; // null unless collecting statistics
+
+    public PreparedRecord(Record record, RecordSchema schema) {
+      this.record = record;
+      this.schema = schema;
+      this.values = new PreparedValues[schema.size()];
+      this.done = new boolean[schema.size()];
+    }
+
+    public Record getRecord() {
+      return record;
+    }
+
+    /**
+     * Adds the statistics collected while comparing this record to
+     * the property statistics.
+     */
+    public void flushCounts() {
+      if (counts == null)
+        return;
+      for (int slot = 0; slot < counts.stats.length; slot++)
+        if (counts.stats[slot] != null)
+          counts.stats[slot].addCounts(counts.calls[slot],
+                                       counts.skipped[slot],
+                                       counts.belowmin[slot]);
+      counts = new PropertyCounts(counts.stats);
+    }
+
+    /**
+     * Returns the prepared values of the property in the given slot,
+     * or null if the record has none.
+     */
+    public PreparedValues getValues(int slot, Property prop) {
+      if (!done[slot]) {
+        values[slot] = prepare(slot, prop);
+        done[slot] = true;
+      }
+      return values[slot];
+    }
+
+    private PreparedValues prepare(int slot, Property prop) {
+      String[] vs = Processor.getValues(record, schema, slot);
+      if (vs == null)
+        return null;
+
+      List<String> nonempty = new ArrayList(vs.length);
+      for (String v : vs)
+        if (!v.equals("")) // FIXME: these values shouldn't be here at all
+          nonempty.add(v);
+      if (nonempty.isEmpty())
+        return null;
+
+      PreparedValues prepared = new PreparedValues();
+      prepared.values = nonempty.toArray(new String[nonempty.size()]);
+      prepared.prepared = new Object[prepared.values.length];
+      for (int ix = 0; ix < prepared.values.length; ix++)
+        prepared.prepared[ix] = prop.prepare(prepared.values[ix]);
+      return prepared;
+    }
+  }
+
+  /**
+   * Counts for each slot, collected while comparing one record with
+   * its candidates, so that the shared property statistics only have
+   * to be updated once per record.
+   */
+  static class PropertyCounts {
+    private PropertyStatistics[] stats;
+    private int[] calls;
+    private int[] skipped;
+    private int[] belowmin;
+    private int ticks; // decides which comparisons to time
+
+    public PropertyCounts(PropertyStatistics[] stats) {
+      this.stats = stats;
+      this.calls = new int[stats.length];
+      this.skipped = new int[stats.length];
+      this.belowmin = new int[stats.length];
+      // start at a random point, so that even records with few
+      // comparisons have a fair chance of being sampled
+      this.ticks = (int) (System.nanoTime() & 0xFFFF);
+    }
+  }
+
+  /**
+   * The values of one property in a record, and their prepared forms.
+   */
+  static class PreparedValues {
+    String[] values;
+    Object[] prepared;
+  }
+
   // ===== THREADS
 
   /**
-   * The thread that actually runs parallell matching. It holds the
-   * thread's share of the current batch.
+   * The task that actually runs parallell matching. It keeps taking
+   * chunks of records off the batch until there are none left.
    */
-  class MatchThread extends Thread {
-    private Collection<Record> records;
+  class MatchTask implements Runnable {
+    private List<Record> records;
+    private AtomicInteger next;
     private boolean matchall;
 
-    public MatchThread(int threadno, int recordcount, boolean matchall) {
-      super("MatchThread " + threadno);
-      this.records = new ArrayList(recordcount);
+    public MatchTask(List<Record> records, AtomicInteger next,
+                     boolean matchall) {
+      this.records = records;
+      this.next = next;
       this.matchall = matchall;
     }
 
     public void run() {
-      for (Record record : records)
-        match(record, matchall);
+      int size = records.size();
+      int start = next.getAndAdd(CHUNK_SIZE);
+      while (start < size) {
+        int end = Math.min(start + CHUNK_SIZE, size);
+        for (int ix = start; ix < end; ix++)
+          match(records.get(ix), matchall);
+        start = next.getAndAdd(CHUNK_SIZE);
+      }
+    }
+  }
+
+  class IndexTask implements Runnable {
+    private List<Record> records;
+    private AtomicInteger next;
+
+    public IndexTask(List<Record> records, AtomicInteger next) {
+      this.records = records;
+      this.next = next;
     }
 
-    public void addRecord(Record record) {
-      records.add(record);
+    public void run() {
+      int size = records.size();
+      int start = next.getAndAdd(CHUNK_SIZE);
+      while (start < size) {
+        int end = Math.min(start + CHUNK_SIZE, size);
+        for (int ix = start; ix < end; ix++)
+          database.index(records.get(ix));
+        start = next.getAndAdd(CHUNK_SIZE);
+      }
+    }
+  }
+
+  /**
+   * Hands batches read from an iterator over for processing. Without
+   * read-ahead the batch is processed right away, on the calling
+   * thread. With read-ahead it is processed on a background thread,
+   * so that the caller can read the next batch in the meantime. Only
+   * one batch is processed at a time.
+   */
+  class BatchRunner {
+    private RecordIterator it;
+    private boolean dedup;
+    private boolean matchall;
+    private Future pending;
+
+    public BatchRunner(RecordIterator it, boolean dedup, boolean matchall) {
+      this.it = it;
+      this.dedup = dedup;
+      this.matchall = matchall;
+    }
+
+    public void process(final Collection<Record> batch) {
+      if (!readahead) {
+        run(batch);
+        it.batchProcessed();
+        return;
+      }
+
+      finish(); // wait for the previous batch
+      pending = getBatchExecutor().submit(new Runnable() {
+          public void run() {
+            BatchRunner.this.run(batch);
+          }
+        });
+    }
+
+    /**
+     * Waits for the batch being processed, if any, to complete.
+     */
+    public void finish() {
+      if (pending == null)
+        return;
+
+      try {
+        waitFor(pending);
+      } finally {
+        pending = null;
+      }
+      it.batchProcessed();
+    }
+
+    private void run(Collection<Record> batch) {
+      if (dedup)
+        deduplicate(batch);
+      else
+        linkBatch(batch, matchall);
     }
   }
 
   // ===== PERFORMANCE PROFILING
 
+  /**
+   * A snapshot of the performance statistics of a processor. All
+   * times are in milliseconds, summed over all threads.
+   * @since 1.3
+   */
+  public static class Statistics {
+    private long comparisons;
+    private long srcread;
+    private long indexing;
+    private long searching;
+    private long comparing;
+    private long callbacks;
+
+    public Statistics(long comparisons, long srcread, long indexing,
+                      long searching, long comparing, long callbacks) {
+      this.comparisons = comparisons;
+      this.srcread = srcread;
+      this.indexing = indexing;
+      this.searching = searching;
+      this.comparing = comparing;
+      this.callbacks = callbacks;
+    }
+
+    /**
+     * Returns the number of record pairs that have been compared.
+     */
+    public long getComparisons() {
+      return comparisons;
+    }
+
+    public long getReadingTime() {
+      return srcread;
+    }
+
+    public long getIndexingTime() {
+      return indexing;
+    }
+
+    public long getSearchingTime() {
+      return searching;
+    }
+
+    public long getComparingTime() {
+      return comparing;
+    }
+
+    public long getCallbackTime() {
+      return callbacks;
+    }
+
+    /**
+     * Returns the sum of all the times.
+     */
+    public long getTotalTime() {
+      return srcread + indexing + searching + comparing + callbacks;
+    }
+  }
+
   public class Profiler extends AbstractMatchListener {
     private long processing_start;
     private long batch_start;
@@ -731,22 +1405,50 @@ public class Processor {
       System.out.println("" + records + " records total in " +
                          ((end - processing_start) / 1000) + " seconds");
 
-      long total = srcread + indexing + searching + comparing + callbacks;
+      Statistics stats = getStatistics();
+      long total = stats.getTotalTime();
       System.out.println("Reading from source: " +
-                         seconds(srcread) + " (" +
-                         percent(srcread, total) + "%)");
+                         seconds(stats.getReadingTime()) + " (" +
+                         percent(stats.getReadingTime(), total) + "%)");
       System.out.println("Indexing: " +
-                         seconds(indexing) + " (" +
-                         percent(indexing, total) + "%)");
+                         seconds(stats.getIndexingTime()) + " (" +
+                         percent(stats.getIndexingTime(), total) + "%)");
       System.out.println("Searching: " +
-                         seconds(searching) + " (" +
-                         percent(searching, total) + "%)");
+                         seconds(stats.getSearchingTime()) + " (" +
+                         percent(stats.getSearchingTime(), total) + "%)");
       System.out.println("Comparing: " +
-                         seconds(comparing) + " (" +
-                         percent(comparing, total) + "%)");
+                         seconds(stats.getComparingTime()) + " (" +
+                         percent(stats.getComparingTime(), total) + "%)");
       System.out.println("Callbacks: " +
-                         seconds(callbacks) + " (" +
-                         percent(callbacks, total) + "%)");
+                         seconds(stats.getCallbackTime()) + " (" +
+                         percent(stats.getCallbackTime(), total) + "%)");
+      if (getDatabase() instanceof SearchStatistics) {
+        SearchStatistics db = (SearchStatistics) getDatabase();
+        System.out.println("Searches: " + db.getQueryCount() +
+                           ", re-run with higher limit: " +
+                           db.getRequeryCount());
+      }
+      for (PropertyStatistics ps : getPropertyStatistics()) {
+        System.out.println("Property " + ps.getProperty() + ": " +
+                           ps.getCalls() + " comparisons, " +
+                           (int) ps.getAverageTime() + " ns each, " +
+                           "about " + ps.getEstimatedTime() + " ms (" +
+                           percent(ps.getEstimatedTime(),
+                                   stats.getComparingTime()) +
+                           "% of comparing)");
+        System.out.print("  stopped before: " + ps.getSkipped() +
+                         ", below minimum: " + ps.getBelowMinimum());
+        if (ps.getCacheHitRate() >= 0.0)
+          System.out.print(", cache hits: " +
+                           (int) (ps.getCacheHitRate() * 100) + "%");
+        System.out.println();
+        System.out.print("  value lengths:");
+        String[] buckets = ps.getLengthBuckets();
+        long[] histogram = ps.getLengthHistogram();
+        for (int ix = 0; ix < buckets.length; ix++)
+          System.out.print(" " + buckets[ix] + ": " + histogram[ix]);
+        System.out.println();
+      }
       System.out.println();
       Runtime r = Runtime.getRuntime();
       System.out.println("Total memory: " + r.totalMemory() + ", " +
@@ -759,6 +1461,8 @@ public class Processor {
     }
 
     private String percent(long ms, long total) {
+      if (total == 0)
+        return "0";
       return "" + (int) ((double) (ms * 100) / (double) total);
     }
   }
@@ -70,6 +70,29 @@ public interface Property {
    */
   public double compare(String v1, String v2);
 
+  /**
+   * Like compare(v1, v2), except that if the probability is lower
+   * than minprob some other value lower than minprob may be returned.
+   * This allows comparators to stop early.
+   * @since 1.3
+   */
+  public double compare(String v1, String v2, double minprob);
+
+  /**
+   * Returns the value in the form expected by comparePrepared. If the
+   * comparator is a PreparedComparator this is whatever it produces,
+   * otherwise the value itself.
+   * @since 1.3
+   */
+  public Object prepare(String value);
+
+  /**
+   * Like compare(v1, v2, minprob), except that the values have been
+   * passed through prepare first.
+   * @since 1.3
+   */
+  public double comparePrepared(Object v1, Object v2, double minprob);
+
   /**
    * Returns a copy of the property.
    */
@@ -1,6 +1,8 @@
 
 package no.priv.garshol.duke;
 
+import no.priv.garshol.duke.utils.ComparisonCache;
+
 /**
  * The default implementation of the Property interface.
  */
@@ -13,6 +15,8 @@ public class PropertyImpl implements Property {
   private double high;           // irrelevant if ID
   private double low;            // irrelevant if ID
   private Lookup lookup;         // irrelevant if ID
+  private int cachesize;         // 0 means no cache
+  private ComparisonCache cache; // null unless caching comparisons
 
   // used to initialize ID properties
   public PropertyImpl(String name) {
@@ -69,6 +73,7 @@ public class PropertyImpl implements Property {
    */
   public void setComparator(Comparator comparator) {
     this.comparator = comparator;
+    setCacheSize(cachesize); // old results are no longer valid
   }
 
   /**
@@ -112,20 +117,131 @@ public class PropertyImpl implements Property {
   public void setLookupBehaviour(Lookup lookup) {
     this.lookup = lookup;
   }
+
+  /**
+   * Makes the property remember the results of comparing up to this
+   * many pairs of values, so that pairs which are compared again
+   * need not go through the comparator. Worth it for properties with
+   * few distinct values, like postcodes, cities, or first names. 0
+   * (the default) means no cache.
+   * @since 1.3
+   */
+  public void setCacheSize(int cachesize) {
+    this.cachesize = cachesize;
+    if (cachesize > 0)
+      this.cache = new ComparisonCache(cachesize);
+    else
+      this.cache = null;
+  }
+
+  /**
+   * @since 1.3
+   */
+  public int getCacheSize() {
+    return cachesize;
+  }
+
+  /**
+   * Returns the comparison cache, or null if the property has none.
+   * @since 1.3
+   */
+  public ComparisonCache getCache() {
+    return cache;
+  }
   
   /**
    * Returns the probability that the records v1 and v2 came from represent
    * the same entity, based on high and low probability settings etc.
    */
   public double compare(String v1, String v2) {
+    return compare(v1, v2, 0.0);
+  }
+
+  public double compare(String v1, String v2, double minprob) {
     // FIXME: it should be possible here to say that, actually, we
     // didn't learn anything from comparing these two values, so that
     // probability is set to 0.5.
 
     if (comparator == null)
       return 0.5; // we ignore properties with no comparator
-    
-    double sim = comparator.compare(v1, v2);
+    if (cache != null)
+      return toProbability(getCachedSimilarity(v1, v2, null, null));
+
+    double sim;
+    if (comparator instanceof BoundedComparator)
+      sim = ((BoundedComparator) comparator).compare(v1, v2,
+                                                     getMinSimilarity(minprob));
+    else
+      sim = comparator.compare(v1, v2);
+    return toProbability(sim);
+  }
+
+  public Object prepare(String value) {
+    if (cache != null && comparator instanceof PreparedComparator)
+      return new CachedValue(value); // only prepared on a cache miss
+    if (comparator instanceof PreparedComparator)
+      return ((PreparedComparator) comparator).prepare(value);
+    return value;
+  }
+
+  public double comparePrepared(Object v1, Object v2, double minprob) {
+    if (v1 instanceof CachedValue)
+      return toProbability(getCachedSimilarity(null, null, (CachedValue) v1,
+                                               (CachedValue) v2));
+    if (comparator instanceof PreparedComparator) {
+      PreparedComparator pcomp = (PreparedComparator) comparator;
+      return toProbability(pcomp.comparePrepared(v1, v2));
+    }
+    return compare((String) v1, (String) v2, minprob);
+  }
+
+  // looks up the similarity of the two values in the cache, and
+  // compares them if they are not there. either the strings or the
+  // cached values are given.
+  private double getCachedSimilarity(String v1, String v2,
+                                     CachedValue c1, CachedValue c2) {
+    if (c1 != null) {
+      v1 = c1.value;
+      v2 = c2.value;
+    }
+
+    ComparisonCache cache = this.cache; // may be switched off meanwhile
+    double sim = cache == null ? Double.NaN : cache.get(v1, v2);
+    if (!Double.isNaN(sim))
+      return sim;
+
+    // we compare without a minimum similarity, so that the result is
+    // correct no matter what minimum the next lookup needs. below
+    // 0.5 all similarities give the low probability, so we don't
+    // need precision down there.
+    if (c1 != null) {
+      PreparedComparator pcomp = (PreparedComparator) comparator;
+      sim = pcomp.comparePrepared(c1.getPrepared(pcomp),
+                                  c2.getPrepared(pcomp));
+    } else if (comparator instanceof BoundedComparator)
+      sim = ((BoundedComparator) comparator).compare(v1, v2, 0.5);
+    else
+      sim = comparator.compare(v1, v2);
+
+    if (cache != null)
+      cache.put(v1, v2, sim);
+    return sim;
+  }
+
+  // the similarity a bounded comparator needs to produce for the
+  // probability to reach minprob
+  private double getMinSimilarity(double minprob) {
+    // any similarity below 0.5 gives the low probability, so the
+    // comparator never has to go below that. if the caller needs
+    // more than 0.5 we can find the lowest useful similarity by
+    // inverting the formula in toProbability.
+    double minsim = 0.5;
+    if (minprob > 0.5 && high > 0.5 && low < minprob)
+      minsim = Math.max(minsim, Math.sqrt((minprob - 0.5) / (high - 0.5)));
+    return minsim;
+  }
+
+  private double toProbability(double sim) {
     if (sim >= 0.5)
       return ((high - 0.5) * (sim * sim)) + 0.5;
     else
@@ -139,10 +255,36 @@ public class PropertyImpl implements Property {
     PropertyImpl p = new PropertyImpl(name, comparator, low, high);
     p.setIgnoreProperty(ignore);
     p.setLookupBehaviour(lookup);
+    p.setCacheSize(cachesize);
     return p;
   }
 
   public String toString() {
     return "[Property " + name + "]";
   }
+
+  /**
+   * A value prepared for comparison on a property with a cache. The
+   * cache is keyed on the original value, and the comparator's
+   * preparation is only done if the value is compared with one it
+   * hasn't been compared with before. Not thread-safe, but prepared
+   * values are never shared between threads.
+   */
+  static class CachedValue {
+    private String value;
+    private Object prepared;
+    private boolean done;
+
+    public CachedValue(String value) {
+      this.value = value;
+    }
+
+    public Object getPrepared(PreparedComparator comparator) {
+      if (!done) {
+        prepared = comparator.prepare(value);
+        done = true;
+      }
+      return prepared;
+    }
+  }
 }
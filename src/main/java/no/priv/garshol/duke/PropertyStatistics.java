@@ -0,0 +1,182 @@
+
+package no.priv.garshol.duke;
+
+import no.priv.garshol.duke.utils.StripedCounter;
+import no.priv.garshol.duke.utils.ComparisonCache;
+
+/**
+ * Statistics on how one property is used when comparing records:
+ * how many times its values were compared, how long that took, how
+ * long the values were, and how often bounded scoring and the
+ * comparison cache saved work. Collected by the Processor when
+ * property statistics are turned on, and available over JMX.
+ *
+ * <p>Timing every comparison would cost more than many comparisons
+ * do, so only a sample of the comparisons is timed, and the total
+ * time is estimated from the sample. The value lengths are also
+ * taken from the sample.
+ * @since 1.3
+ */
+public class PropertyStatistics implements PropertyStatisticsMBean {
+  private Property property;
+  private StripedCounter calls;      // number of times values compared
+  private StripedCounter sampled;    // number of those which were timed
+  private StripedCounter sampletime; // ns spent in the timed ones
+  private StripedCounter skipped;    // bounded scoring stopped before us
+  private StripedCounter belowmin;   // result lower than caller needed
+  private StripedCounter[] lengths;  // sampled comparisons by length
+
+  private static final String[] BUCKETS = {
+    "0-3", "4-7", "8-15", "16-31", "32-63", "64-127", "128+"
+  };
+
+  public PropertyStatistics(Property property) {
+    this.property = property;
+    this.calls = new StripedCounter();
+    this.sampled = new StripedCounter();
+    this.sampletime = new StripedCounter();
+    this.skipped = new StripedCounter();
+    this.belowmin = new StripedCounter();
+    this.lengths = new StripedCounter[BUCKETS.length];
+    for (int ix = 0; ix < lengths.length; ix++)
+      lengths[ix] = new StripedCounter();
+  }
+
+  // ===== UPDATING
+
+  /**
+   * Records a timed comparison, where the longest value compared had
+   * the given length.
+   */
+  public void addSample(long nanos, int length) {
+    sampled.increment();
+    sampletime.add(nanos);
+    int bucket = 32 - Integer.numberOfLeadingZeros(length >> 2);
+    lengths[Math.min(bucket, BUCKETS.length - 1)].increment();
+  }
+
+  /**
+   * Adds counts collected elsewhere. The Processor counts in plain
+   * ints while comparing a record with its candidates, and adds the
+   * counts here afterwards, so that the shared counters are touched
+   * once per record rather than once per comparison.
+   */
+  public void addCounts(int calls, int skipped, int belowmin) {
+    if (calls > 0)
+      this.calls.add(calls);
+    if (skipped > 0)
+      this.skipped.add(skipped);
+    if (belowmin > 0)
+      this.belowmin.add(belowmin);
+  }
+
+  // ===== READING
+
+  public String getProperty() {
+    return property.getName();
+  }
+
+  public String getComparator() {
+    if (property.getComparator() == null)
+      return null;
+    return property.getComparator().getClass().getName();
+  }
+
+  /**
+   * Returns the number of times values of this property were
+   * compared.
+   */
+  public long getCalls() {
+    return calls.sum();
+  }
+
+  /**
+   * Returns the number of comparisons which were timed.
+   */
+  public long getSampledCalls() {
+    return sampled.sum();
+  }
+
+  /**
+   * Returns the average time per comparison in nanoseconds, based on
+   * the sample.
+   */
+  public double getAverageTime() {
+    long count = sampled.sum();
+    if (count == 0)
+      return 0.0;
+    return sampletime.sum() / (double) count;
+  }
+
+  /**
+   * Returns the estimated total time spent comparing values of this
+   * property, in milliseconds.
+   */
+  public long getEstimatedTime() {
+    return (long) ((getAverageTime() * calls.sum()) / 1000000);
+  }
+
+  /**
+   * Returns the number of record comparisons bounded scoring stopped
+   * just before reaching this property, because the records could
+   * no longer match.
+   */
+  public long getSkipped() {
+    return skipped.sum();
+  }
+
+  /**
+   * Returns the number of comparisons where the result was below the
+   * probability the Processor needed for the records to match. These
+   * are the comparisons where bounded comparators can stop early.
+   */
+  public long getBelowMinimum() {
+    return belowmin.sum();
+  }
+
+  /**
+   * Returns the share of lookups in the comparison cache which were
+   * hits, or -1 if the property has no cache.
+   */
+  public double getCacheHitRate() {
+    if (!(property instanceof PropertyImpl))
+      return -1.0;
+    ComparisonCache cache = ((PropertyImpl) property).getCache();
+    if (cache == null)
+      return -1.0;
+    return cache.getHitRate();
+  }
+
+  /**
+   * Returns the number of sampled comparisons by the length of the
+   * longest value, using the buckets from getLengthBuckets.
+   */
+  public long[] getLengthHistogram() {
+    long[] histogram = new long[lengths.length];
+    for (int ix = 0; ix < lengths.length; ix++)
+      histogram[ix] = lengths[ix].sum();
+    return histogram;
+  }
+
+  /**
+   * Returns the value length ranges of the buckets in the histogram.
+   */
+  public String[] getLengthBuckets() {
+    return BUCKETS.clone();
+  }
+
+  public void reset() {
+    calls.reset();
+    sampled.reset();
+    sampletime.reset();
+    skipped.reset();
+    belowmin.reset();
+    for (int ix = 0; ix < lengths.length; ix++)
+      lengths[ix].reset();
+  }
+
+  public String toString() {
+    return "[PropertyStatistics " + getProperty() + " calls=" + getCalls() +
+      "]";
+  }
+}
@@ -0,0 +1,35 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * The JMX view of the statistics for one property. See
+ * PropertyStatistics for what the numbers mean.
+ * @since 1.3
+ */
+public interface PropertyStatisticsMBean {
+
+  public String getProperty();
+
+  public String getComparator();
+
+  public long getCalls();
+
+  public long getSampledCalls();
+
+  public double getAverageTime();
+
+  public long getEstimatedTime();
+
+  public long getSkipped();
+
+  public long getBelowMinimum();
+
+  public double getCacheHitRate();
+
+  public long[] getLengthHistogram();
+
+  public String[] getLengthBuckets();
+
+  public void reset();
+
+}
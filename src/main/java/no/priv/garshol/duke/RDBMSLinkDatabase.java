@@ -1,14 +1,19 @@
 
 package no.priv.garshol.duke;
 
+import java.util.Map;
 import java.util.List;
+import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Properties;
 import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.sql.Timestamp;
 import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.PreparedStatement;
 import java.text.SimpleDateFormat;
 
 import no.priv.garshol.duke.utils.JDBCUtils;
@@ -19,12 +24,24 @@ import no.priv.garshol.duke.utils.JDBCUtils;
  * could be extended to work with more database implementations. What
  * the abstract class cannot do is create a connection, which is left
  * for subclasses to do.
+ *
+ * <p>Asserted links are not written to the database right away, but
+ * kept in memory until commit() (or until there are too many of
+ * them), and then written in a single JDBC batch. getAllLinksFor()
+ * sees these pending links.
  */
 public abstract class RDBMSLinkDatabase implements LinkDatabase {
   private DatabaseType dbtype;
   private String tblprefix; // prefix for table names ("foo."); never null
   protected Statement stmt; // set by subclass
   private Logger logger;
+  private Map<String, Link> pending; // links not yet written, by key
+  private Map<String, Map<String, Link>> pendingbyid; // id -> key -> link
+  private Statement prepared; // the statement our prepared ones belong to
+  private PreparedStatement selectlink; // look up a single link
+  private PreparedStatement selectlinks; // look up all links for an id
+  private PreparedStatement upsert; // insert or update a link
+  private static final int MAX_PENDING = 10000;
   private static final SimpleDateFormat dtformat =
     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
   
@@ -32,6 +49,8 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
     this.dbtype = getDatabaseType(dbtype);
     this.tblprefix = "";
     this.logger = new DummyLogger();
+    this.pending = new LinkedHashMap();
+    this.pendingbyid = new HashMap();
   }
 
   /**
@@ -96,64 +115,81 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
       }
     }
     
+    flush(); // so that the query can see the pending links
     return queryForLinks("select * from " + tblprefix + "links " + where +
                          " order by timestamp desc " + limit);
   }
   
   public Collection<Link> getAllLinksFor(String id) {
-    return queryForLinks("select * from " + tblprefix + "links where " +
-                         "id1 = '" + escape(id) + "' or " +
-                         "id2 = '" + escape(id) + "'");
+    List<Link> links = new ArrayList();
+    try {
+      prepare();
+      selectlinks.setString(1, id);
+      selectlinks.setString(2, id);
+      ResultSet rs = selectlinks.executeQuery();
+      try {
+        while (rs.next())
+          links.add(makeLink(rs));
+      } finally {
+        rs.close();
+      }
+    } catch (SQLException e) {
+      abort(); // releasing connection
+      throw new DukeException(e);
+    }
+
+    // pending links take precedence over what's in the database
+    Map<String, Link> ours = pendingbyid.get(id);
+    if (ours != null) {
+      Map<String, Link> linkmap = new LinkedHashMap(ours);
+      for (Link link : links) {
+        String key = makeKey(link);
+        if (!linkmap.containsKey(key))
+          linkmap.put(key, link);
+      }
+      links = new ArrayList(linkmap.values());
+    }
+    return links;
   }
 
   public void assertLink(Link link) {
     logger.debug("Asserting link " + link);
-    
-    // (1) query to see if the link is already there
-    // FIXME: use prepared statement
+
+    // (1) see if the link is already there
+    String key = makeKey(link);
     try {
-      Link existing = null;
-      ResultSet rs = stmt.executeQuery("select * from " + tblprefix +
-                                       "links where " +
-                                  "id1 = '" + escape(link.getID1()) + "' and " +
-                                  "id2 = '" + escape(link.getID2()) + "'");
-      if (rs.next()) {
-        existing = makeLink(rs);
-        rs.close();
-        
-        if (!link.overrides(existing))
-          return; // the existing link rules, so we shut up and go away
+      Link existing = pending.get(key);
+      if (existing == null) {
+        prepare();
+        selectlink.setString(1, link.getID1());
+        selectlink.setString(2, link.getID2());
+        ResultSet rs = selectlink.executeQuery();
+        try {
+          if (rs.next())
+            existing = makeLink(rs);
+        } finally {
+          rs.close();
+        }
       }
-      rs.close();
-      
-      // (2) write link to database
-      String query;
-      if (existing != null) {
-        logger.trace("Updating link for " + link.getID1() + " and " +
-                     link.getID2());
-        query = "update " + tblprefix + "links set status = " +
-          link.getStatus().getId() +
-          " , kind = " + link.getKind().getId() + 
-          " , timestamp = " + dbtype.getNow() + " " +
-          " , confidence = " + link.getConfidence() + " " +
-          "where id1 = '" + escape(link.getID1()) + "' " +
-          "      and id2 = '" + escape(link.getID2()) + "' ";
-      } else {
-        logger.trace("Inserting link for " + link.getID1() + " and " +
-                     link.getID2());
-        query = "insert into " + tblprefix + "links values ('" + escape(link.getID1()) + "', " +
-          "  '" + escape(link.getID2()) + "', " + link.getKind().getId() +
-          "  , " + link.getStatus().getId() + ", " + dbtype.getNow() +
-          ", " + link.getConfidence() + ") ";
-      }
-      stmt.executeUpdate(query);
-      
+
+      if (existing != null && !link.overrides(existing))
+        return; // the existing link rules, so we shut up and go away
+
+      // (2) queue link for writing to database
+      logger.trace("Queueing link for " + link.getID1() + " and " +
+                   link.getID2());
+      pending.put(key, link);
+      addPending(link.getID1(), key, link);
+      addPending(link.getID2(), key, link);
+      if (pending.size() >= MAX_PENDING)
+        flush();
+
     } catch (SQLException e) {
-      close(); // releasing connection
+      abort(); // releasing connection
       throw new DukeException(e);
     }
   }
-  
+
   public Link inferLink(String id1, String id2) {
     // are we sure this method really belongs in the interface, and
     // not in an external utility?
@@ -164,6 +200,8 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
    * Empties the link database. Used only for testing at the moment.
    */
   public void clear() {
+    pending.clear();
+    pendingbyid.clear();
     try {
       stmt.executeUpdate("delete from " + tblprefix + "links");
     } catch (SQLException e) {
@@ -173,6 +211,7 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
   }
 
   public void commit() {
+    flush();
     try {
       Connection conn = stmt.getConnection();
       if (!conn.getAutoCommit())
@@ -186,7 +225,40 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
   }
 
   public void close() {
-    JDBCUtils.close(stmt);
+    try {
+      flush();
+    } finally {
+      JDBCUtils.close(stmt);
+    }
+  }
+
+  /**
+   * Writes all pending links to the database in a single batch. Does
+   * not commit.
+   */
+  public void flush() {
+    if (pending.isEmpty())
+      return;
+
+    logger.trace("Writing " + pending.size() + " links");
+    try {
+      prepare();
+      for (Link link : pending.values()) {
+        upsert.setString(1, link.getID1());
+        upsert.setString(2, link.getID2());
+        upsert.setInt(3, link.getKind().getId());
+        upsert.setInt(4, link.getStatus().getId());
+        upsert.setTimestamp(5, new Timestamp(link.getTimestamp()));
+        upsert.setDouble(6, link.getConfidence());
+        upsert.addBatch();
+      }
+      upsert.executeBatch();
+      pending.clear();
+      pendingbyid.clear();
+    } catch (SQLException e) {
+      abort(); // releasing connection
+      throw new DukeException(e);
+    }
   }
 
   private void verifySchema() throws SQLException {
@@ -211,8 +283,45 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
                        tblprefix + "links (id2)");
   }
 
-  private String escape(String strval) {
-    return strval.replace("'", "''");
+  private void addPending(String id, String key, Link link) {
+    Map<String, Link> links = pendingbyid.get(id);
+    if (links == null) {
+      links = new HashMap();
+      pendingbyid.put(id, links);
+    }
+    links.put(key, link);
+  }
+
+  private String makeKey(Link link) {
+    return link.getID1() + "\t" + link.getID2();
+  }
+
+  /**
+   * Makes sure the prepared statements belong to the current
+   * connection. Subclasses may replace the statement (and so the
+   * connection) in validateConnection().
+   */
+  private void prepare() throws SQLException {
+    if (prepared == stmt)
+      return;
+
+    Connection conn = stmt.getConnection();
+    selectlink = conn.prepareStatement("select * from " + tblprefix +
+                                       "links where id1 = ? and id2 = ?");
+    selectlinks = conn.prepareStatement("select * from " + tblprefix +
+                                        "links where id1 = ? or id2 = ?");
+    upsert = conn.prepareStatement(dbtype.getUpsert(tblprefix));
+    prepared = stmt;
+  }
+
+  /**
+   * Throws away pending links and releases the connection. Used when
+   * something has gone wrong.
+   */
+  private void abort() {
+    pending.clear();
+    pendingbyid.clear();
+    JDBCUtils.close(stmt);
   }
 
   private List<Link> queryForLinks(String query) {
@@ -282,6 +391,15 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
       public String getWhereLimit(int no) {
         return "";
       }
+
+      public String getUpsert(String tblprefix) {
+        return "insert into " + tblprefix + "links " +
+               "(id1, id2, kind, status, timestamp, confidence) " +
+               "values (?, ?, ?, ?, ?, ?) " +
+               "on duplicate key update kind = values(kind), " +
+               "  status = values(status), timestamp = values(timestamp), " +
+               "  confidence = values(confidence)";
+      }
     },
 
     H2 {
@@ -311,6 +429,12 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
       public String getWhereLimit(int no) {
         return "";
       }
+
+      public String getUpsert(String tblprefix) {
+        return "merge into " + tblprefix + "links " +
+               "(id1, id2, kind, status, timestamp, confidence) " +
+               "key (id1, id2) values (?, ?, ?, ?, ?, ?)";
+      }
     },
 
     ORACLE {
@@ -340,6 +464,19 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
       public String getWhereLimit(int no) {
         return "rownum <= " + no;
       }
+
+      public String getUpsert(String tblprefix) {
+        return "merge into " + tblprefix + "links l " +
+               "using (select ? id1, ? id2, ? kind, ? status, " +
+               "         ? timestamp, ? confidence from dual) n " +
+               "on (l.id1 = n.id1 and l.id2 = n.id2) " +
+               "when matched then update set l.kind = n.kind, " +
+               "  l.status = n.status, l.timestamp = n.timestamp, " +
+               "  l.confidence = n.confidence " +
+               "when not matched then insert " +
+               "  (id1, id2, kind, status, timestamp, confidence) values " +
+               "  (n.id1, n.id2, n.kind, n.status, n.timestamp, n.confidence)";
+      }
     };
 
     public abstract String getMetaTableName();
@@ -347,6 +484,9 @@ public abstract class RDBMSLinkDatabase implements LinkDatabase {
     public abstract String getNow();
     public abstract String getLimit(int no);
     public abstract String getWhereLimit(int no);
+    // statement with parameters id1, id2, kind, status, timestamp,
+    // confidence which inserts the link, or updates it if it exists
+    public abstract String getUpsert(String tblprefix);
   }
   
 }
\ No newline at end of file
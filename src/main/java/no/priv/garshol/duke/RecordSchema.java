@@ -0,0 +1,54 @@
+
+package no.priv.garshol.duke;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.io.Serializable;
+
+/**
+ * Assigns each property in a configuration a dense int slot, so that
+ * records built against the schema (SchemaRecord) can hold their
+ * values in an array indexed by slot. This way code that goes
+ * through all the properties of a record, as record comparison does,
+ * can do so without any lookups by name.
+ * @since 1.3
+ */
+public class RecordSchema implements Serializable {
+  private String[] names;           // slot -> property name
+  private Map<String, Integer> slots; // property name -> slot
+
+  public RecordSchema(List<Property> properties) {
+    this.names = new String[properties.size()];
+    this.slots = new HashMap(properties.size() * 2);
+    for (int ix = 0; ix < names.length; ix++) {
+      names[ix] = properties.get(ix).getName();
+      slots.put(names[ix], ix);
+    }
+  }
+
+  /**
+   * Returns the number of slots in the schema.
+   */
+  public int size() {
+    return names.length;
+  }
+
+  /**
+   * Returns the slot of the named property, or -1 if the property is
+   * not in the schema.
+   */
+  public int getSlot(String property) {
+    Integer slot = slots.get(property);
+    if (slot == null)
+      return -1;
+    return slot;
+  }
+
+  /**
+   * Returns the name of the property in the given slot.
+   */
+  public String getName(int slot) {
+    return names[slot];
+  }
+}
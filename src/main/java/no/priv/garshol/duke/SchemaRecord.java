@@ -0,0 +1,119 @@
+
+package no.priv.garshol.duke;
+
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.io.Serializable;
+
+/**
+ * A record which keeps its values in an array indexed by the slots
+ * of a RecordSchema, so that they can be accessed by slot number
+ * without lookups or allocating collections. Values for properties
+ * not in the schema are still accepted, but are kept to the side,
+ * and are slower to access.
+ * @since 1.3
+ */
+public class SchemaRecord implements ModifiableRecord, Serializable {
+  private RecordSchema schema;
+  private String[][] values; // slot -> values, or null if none
+  private String[] extra;    // 0: prop name, 1: value, 2: prop, 3: value, ...
+  private int extrafree;     // index of next free cell in extra
+  private boolean empty;
+
+  public SchemaRecord(RecordSchema schema) {
+    this.schema = schema;
+    this.values = new String[schema.size()][];
+    this.empty = true;
+  }
+
+  public RecordSchema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Returns the values in the given slot, or null if there are
+   * none. The array must not be modified.
+   */
+  public String[] getValues(int slot) {
+    return values[slot];
+  }
+
+  public Collection<String> getProperties() {
+    List<String> props = new ArrayList();
+    for (int ix = 0; ix < values.length; ix++)
+      if (values[ix] != null)
+        props.add(schema.getName(ix));
+    for (int ix = 0; ix < extrafree; ix += 2)
+      if (!props.contains(extra[ix]))
+        props.add(extra[ix]);
+    return props;
+  }
+
+  public Collection<String> getValues(String prop) {
+    int slot = schema.getSlot(prop);
+    if (slot != -1) {
+      if (values[slot] == null)
+        return Collections.EMPTY_LIST;
+      return Arrays.asList(values[slot]);
+    }
+
+    Collection<String> found = new ArrayList();
+    for (int ix = 0; ix < extrafree; ix += 2)
+      if (extra[ix].equals(prop))
+        found.add(extra[ix + 1]);
+    return found;
+  }
+
+  public String getValue(String prop) {
+    int slot = schema.getSlot(prop);
+    if (slot != -1)
+      return values[slot] == null ? null : values[slot][0];
+
+    for (int ix = 0; ix < extrafree; ix += 2)
+      if (extra[ix].equals(prop))
+        return extra[ix + 1];
+    return null;
+  }
+
+  public void merge(Record other) {
+    throw new UnsupportedOperationException();
+  }
+
+  public void addValue(String property, String value) {
+    empty = false;
+    int slot = schema.getSlot(property);
+    if (slot != -1) {
+      // nearly all properties have a single value, so we grow the
+      // arrays one value at a time
+      String[] old = values[slot];
+      if (old == null)
+        values[slot] = new String[] { value };
+      else {
+        values[slot] = Arrays.copyOf(old, old.length + 1);
+        values[slot][old.length] = value;
+      }
+      return;
+    }
+
+    if (extra == null)
+      extra = new String[4];
+    else if (extrafree >= extra.length)
+      extra = Arrays.copyOf(extra, extra.length * 2);
+    extra[extrafree++] = property;
+    extra[extrafree++] = value;
+  }
+
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  public String toString() {
+    StringBuilder buf = new StringBuilder("[SchemaRecord");
+    for (String prop : getProperties())
+      buf.append(" " + prop + "=" + getValues(prop));
+    return buf.append("]").toString();
+  }
+}
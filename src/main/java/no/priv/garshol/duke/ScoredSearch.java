@@ -0,0 +1,43 @@
+
+package no.priv.garshol.duke;
+
+import java.util.List;
+import java.util.Collection;
+
+/**
+ * Implemented by databases which can return the relevance score of
+ * each candidate they find, so that the candidates from several
+ * databases can be merged by relevance.
+ * @since 1.3
+ */
+public interface ScoredSearch {
+
+  /**
+   * Look up potentially matching records, like findCandidateMatches,
+   * returning them best first together with their relevance scores.
+   * This method must be thread-safe.
+   */
+  public List<Candidate> findScoredCandidateMatches(Record record,
+                                                    Collection<Filter> filters);
+
+  /**
+   * A candidate record and its relevance score.
+   */
+  public static class Candidate {
+    private Record record;
+    private double score;
+
+    public Candidate(Record record, double score) {
+      this.record = record;
+      this.score = score;
+    }
+
+    public Record getRecord() {
+      return record;
+    }
+
+    public double getScore() {
+      return score;
+    }
+  }
+}
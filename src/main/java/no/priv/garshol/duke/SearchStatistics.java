@@ -0,0 +1,22 @@
+
+package no.priv.garshol.duke;
+
+/**
+ * Implemented by databases which keep count of the candidate searches
+ * they do, so that the counts can be reported when profiling.
+ * @since 1.3
+ */
+public interface SearchStatistics {
+
+  /**
+   * Returns the number of candidate searches done so far.
+   */
+  public long getQueryCount();
+
+  /**
+   * Returns the number of times a candidate search had to be run
+   * again, because the estimated result size was too low.
+   */
+  public long getRequeryCount();
+
+}
@@ -2,13 +2,13 @@
 package no.priv.garshol.duke.comparators;
 
 import no.priv.garshol.duke.Comparator;
-import no.priv.garshol.duke.utils.StringUtils;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * An implementation of the Dice coefficient using exact matching by
  * default, but can be overridden to use any sub-comparator.
  */
-public class DiceCoefficientComparator implements Comparator {
+public class DiceCoefficientComparator implements PreparedComparator {
   private Comparator subcomp;
   
   public DiceCoefficientComparator() {
@@ -26,27 +26,38 @@ public class DiceCoefficientComparator implements Comparator {
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
       return 1.0;
+    return comparePrepared(prepare(s1), prepare(s2));
+  }
+
+  public Object prepare(String value) {
+    return new TokenizedValue(value, subcomp);
+  }
 
-    // tokenize
-    String[] t1 = StringUtils.split(s1);
-    String[] t2 = StringUtils.split(s2);
+  public double comparePrepared(Object o1, Object o2) {
+    TokenizedValue v1 = (TokenizedValue) o1;
+    TokenizedValue v2 = (TokenizedValue) o2;
+    if (v1.value.equals(v2.value))
+      return 1.0;
 
-    // ensure that t1 is shorter than or same length as t2
-    if (t1.length > t2.length) {
-      String[] tmp = t2;
-      t2 = t1;
-      t1 = tmp;
+    // ensure that v1 has no more tokens than v2
+    if (v1.tokens.length > v2.tokens.length) {
+      TokenizedValue tmp = v2;
+      v2 = v1;
+      v1 = tmp;
     }
+    int len1 = v1.tokens.length;
+    int len2 = v2.tokens.length;
     
-    // find best matches for each token in t1
+    // find best matches for each token in v1
     double sum = 0;
-    for (int ix1 = 0; ix1 < t1.length; ix1++) {
+    for (int ix1 = 0; ix1 < len1; ix1++) {
       double highest = 0;
-      for (int ix2 = 0; ix2 < t2.length; ix2++)
-        highest = Math.max(highest, subcomp.compare(t1[ix1], t2[ix2]));
+      for (int ix2 = 0; ix2 < len2; ix2++)
+        highest = Math.max(highest,
+                           TokenizedValue.compare(subcomp, v1, ix1, v2, ix2));
       sum += highest;
     }
 
-    return (sum * 2) / (t1.length + t2.length);
+    return (sum * 2) / (len1 + len2);
   }
 }
\ No newline at end of file
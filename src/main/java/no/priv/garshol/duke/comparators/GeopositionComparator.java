@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 import no.priv.garshol.duke.DukeException;
 
 // The formula is taken from here:
@@ -19,7 +19,7 @@ import no.priv.garshol.duke.DukeException;
  *
  * @since 1.0
  */
-public class GeopositionComparator implements Comparator {
+public class GeopositionComparator implements PreparedComparator {
   private static final double R = 6371000; // in meters
   private double maxdist; // we default to 100 meters as the max
   private boolean strict; // whether to fail on errors
@@ -33,27 +33,39 @@ public class GeopositionComparator implements Comparator {
   }
   
   public double compare(String v1, String v2) {
+    return comparePrepared(prepare(v1), prepare(v2));
+  }
+
+  // the prepared form is { latitude, longitude }, or null if the
+  // value could not be parsed
+  public Object prepare(String value) {
     try {
-      double lat1 = getLatitude(v1);
-      double lon1 = getLongitude(v1);
-      double lat2 = getLatitude(v2);
-      double lon2 = getLongitude(v2);
-
-      if (!valid(lat1, lon1) || !valid(lat2, lon2))
-        return 0.5;
-        
-      double dist = distance(lat1, lon1, lat2, lon2);
-      if (dist > maxdist)
-        return 0.0;
-
-      return ((1.0 - (dist / maxdist)) * 0.5 ) + 0.5;
+      return new double[] { getLatitude(value), getLongitude(value) };
     } catch (NumberFormatException e) {
       if (strict)
         throw new DukeException("Invalid number: " + e, e);
-      return 0.5;
+      return null;
     }
   }
 
+  public double comparePrepared(Object v1, Object v2) {
+    if (v1 == null || v2 == null)
+      return 0.5;
+    double lat1 = ((double[]) v1)[0];
+    double lon1 = ((double[]) v1)[1];
+    double lat2 = ((double[]) v2)[0];
+    double lon2 = ((double[]) v2)[1];
+
+    if (!valid(lat1, lon1) || !valid(lat2, lon2))
+      return 0.5;
+
+    double dist = distance(lat1, lon1, lat2, lon2);
+    if (dist > maxdist)
+      return 0.0;
+
+    return ((1.0 - (dist / maxdist)) * 0.5 ) + 0.5;
+  }
+
   public void setStrict(boolean strict) {
     this.strict = strict;
   }
@@ -2,13 +2,13 @@
 package no.priv.garshol.duke.comparators;
 
 import no.priv.garshol.duke.Comparator;
-import no.priv.garshol.duke.utils.StringUtils;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * An implementation of the Jaccard index using exact matching by
  * default, but can be overridden to use any sub-comparator.
  */
-public class JaccardIndexComparator implements Comparator {
+public class JaccardIndexComparator implements PreparedComparator {
   private Comparator subcomp;
   
   public JaccardIndexComparator() {
@@ -26,29 +26,40 @@ public class JaccardIndexComparator implements Comparator {
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
       return 1.0;
+    return comparePrepared(prepare(s1), prepare(s2));
+  }
+
+  public Object prepare(String value) {
+    return new TokenizedValue(value, subcomp);
+  }
 
-    // tokenize
-    String[] t1 = StringUtils.split(s1);
-    String[] t2 = StringUtils.split(s2);
+  public double comparePrepared(Object o1, Object o2) {
+    TokenizedValue v1 = (TokenizedValue) o1;
+    TokenizedValue v2 = (TokenizedValue) o2;
+    if (v1.value.equals(v2.value))
+      return 1.0;
 
-    // FIXME: we assume t1 and t2 do not have internal duplicates
+    // FIXME: we assume v1 and v2 do not have internal duplicates
     
-    // ensure that t1 is shorter than or same length as t2
-    if (t1.length > t2.length) {
-      String[] tmp = t2;
-      t2 = t1;
-      t1 = tmp;
+    // ensure that v1 has no more tokens than v2
+    if (v1.tokens.length > v2.tokens.length) {
+      TokenizedValue tmp = v2;
+      v2 = v1;
+      v1 = tmp;
     }
+    int len1 = v1.tokens.length;
+    int len2 = v2.tokens.length;
     
-    // find best matches for each token in t1
+    // find best matches for each token in v1
     double intersection = 0;
-    double union = t1.length + t2.length;
-    for (int ix1 = 0; ix1 < t1.length; ix1++) {
+    double union = len1 + len2;
+    for (int ix1 = 0; ix1 < len1; ix1++) {
       double highest = 0;
-      for (int ix2 = 0; ix2 < t2.length; ix2++)
-        highest = Math.max(highest, subcomp.compare(t1[ix1], t2[ix2]));
+      for (int ix2 = 0; ix2 < len2; ix2++)
+        highest = Math.max(highest,
+                           TokenizedValue.compare(subcomp, v1, ix1, v2, ix2));
 
-      // INV: the best match for t1[ix1] in t2 is has similarity highest
+      // INV: the best match for token ix1 of v1 in v2 is has similarity highest
       intersection += highest;
       union -= highest; // we reduce the union by this similarity
     }
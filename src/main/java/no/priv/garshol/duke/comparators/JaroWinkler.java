@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.BoundedComparator;
 
 /**
  * An implementation of the Jaro-Winkler string similarity measure.
@@ -10,12 +10,16 @@ import no.priv.garshol.duke.Comparator;
  * E. Yancey, RESEARCH REPORT SERIES (Statistics #2005-05), US Bureau
  * of the Census. http://www.census.gov/srd/papers/pdf/rrs2005-05.pdf
  */
-public class JaroWinkler implements Comparator {
+public class JaroWinkler implements BoundedComparator {
 
   public double compare(String s1, String s2) {
     return similarity(s1, s2);
   }
 
+  public double compare(String s1, String s2, double minsim) {
+    return similarity(s1, s2, minsim);
+  }
+
   public boolean isTokenized() {
     return true; // I guess?
   }
@@ -25,6 +29,19 @@ public class JaroWinkler implements Comparator {
    * and 1.0 meaning full equality.
    */
   public static double similarity(String s1, String s2) {
+    return similarity(s1, s2, 0.0);
+  }
+
+  /**
+   * Returns normalized score, unless the score is lower than minsim,
+   * in which case 0.0 may be returned instead. The score can never be
+   * higher than what it would be if all the remaining characters in
+   * the shorter string were common characters without
+   * transpositions, so the computation stops once that bound falls
+   * below minsim.
+   * @since 1.3
+   */
+  public static double similarity(String s1, String s2, double minsim) {
     if (s1.equals(s2))
       return 1.0;
 
@@ -35,6 +52,15 @@ public class JaroWinkler implements Comparator {
       s1 = tmp;
     }
 
+    // the prefix adjustment only depends on the prefix, so we work it
+    // out first, so that it can be included in the upper bound
+    int p = 0; // length of prefix
+    int last = Math.min(4, s1.length());
+    for (; p < last && s1.charAt(p) == s2.charAt(p); p++)
+      ;
+    if (upperBound(s1.length(), s1.length(), s2.length(), p) < minsim)
+      return 0.0;
+
     // (1) find the number of characters the two strings have in common.
     // note that matching characters can only be half the length of the
     // longer string apart.
@@ -45,6 +71,11 @@ public class JaroWinkler implements Comparator {
     for (int ix = 0; ix < s1.length(); ix++) {
       char ch = s1.charAt(ix);
 
+      // can we still reach minsim if all the rest are common?
+      if (minsim > 0.0 &&
+          upperBound(c + s1.length() - ix, s1.length(), s2.length(), p) < minsim)
+        return 0.0;
+
       // now try to find it in s2
       for (int ix2 = Math.max(0, ix - maxdist);
            ix2 < Math.min(s2.length(), ix + maxdist);
@@ -78,11 +109,6 @@ public class JaroWinkler implements Comparator {
                     ((c - t) / (double) c)) / 3.0;
 
     // (2) common prefix modification
-    int p = 0; // length of prefix
-    int last = Math.min(4, s1.length());
-    for (; p < last && s1.charAt(p) == s2.charAt(p); p++)
-      ;
-
     score = score + ((p * (1 - score)) / 10);
 
     // (3) longer string adjustment
@@ -106,5 +132,13 @@ public class JaroWinkler implements Comparator {
     
     return score;
   }
-  
-}
\ No newline at end of file
+
+  // the highest score possible with c common characters, no
+  // transpositions, and a common prefix of length p
+  private static double upperBound(int c, int len1, int len2, int p) {
+    if (c == 0)
+      return 0.0;
+    double score = ((c / (double) len1) + (c / (double) len2) + 1.0) / 3.0;
+    return score + ((p * (1 - score)) / 10);
+  }
+}
@@ -5,8 +5,7 @@ import java.util.List;
 import java.util.ArrayList;
 import java.util.Collections;
 
-import no.priv.garshol.duke.Comparator;
-import no.priv.garshol.duke.utils.StringUtils;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * A tokenized approach to string similarity, based on Jaccard
@@ -17,7 +16,7 @@ import no.priv.garshol.duke.utils.StringUtils;
  * allowing same token to be matched twice is unique to this comparator.
  * Should we reuse in Dice, or just support more methods than just Dice?
  */
-public class JaroWinklerTokenized implements Comparator {
+public class JaroWinklerTokenized implements PreparedComparator {
 
   public boolean isTokenized() {
     return true;
@@ -26,10 +25,22 @@ public class JaroWinklerTokenized implements Comparator {
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
       return 1.0;
+    return comparePrepared(prepare(s1), prepare(s2));
+  }
+
+  public Object prepare(String value) {
+    return new TokenizedValue(value, null);
+  }
+
+  public double comparePrepared(Object o1, Object o2) {
+    TokenizedValue v1 = (TokenizedValue) o1;
+    TokenizedValue v2 = (TokenizedValue) o2;
+    if (v1.value.equals(v2.value))
+      return 1.0;
 
-    // tokenize
-    String[] t1 = StringUtils.split(s1);
-    String[] t2 = StringUtils.split(s2);
+    // tokens are nulled out below, so we need copies
+    String[] t1 = v1.tokens.clone();
+    String[] t2 = v2.tokens.clone();
 
     // ensure that t1 is shorter than or same length as t2
     if (t1.length > t2.length) {
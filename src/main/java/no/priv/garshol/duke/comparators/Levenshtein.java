@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.BoundedComparator;
 
 /**
  * An implementation of the Levenshtein distance metric. This is a
@@ -17,9 +17,13 @@ import no.priv.garshol.duke.Comparator;
  * <p>To see which algorithms are implemented, see comments on
  * individual methods.
  */
-public class Levenshtein implements Comparator {
+public class Levenshtein implements BoundedComparator {
 
-  public double compare(String s1, String s2) {   
+  public double compare(String s1, String s2) {
+    return compare(s1, s2, 0.0);
+  }
+
+  public double compare(String s1, String s2, double minsim) {
     int len = Math.min(s1.length(), s2.length());
 
     // we know that if the outcome here is 0.5 or lower, then the
@@ -34,10 +38,20 @@ public class Levenshtein implements Comparator {
     // if the strings are equal we can stop right here.
     if (len == maxlen && s1.equals(s2))
       return 1.0;
-    
-    // we couldn't shortcut, so now we go ahead and compute the full
-    // metric
-    int dist = Math.min(compactDistance(s1, s2), len);
+
+    // no distance can give a similarity above 1.0
+    if (minsim > 1.0)
+      return 0.0;
+
+    // the highest distance which still gives a similarity of minsim.
+    // anything above that we don't need to know precisely.
+    int maxdist = len;
+    if (minsim > 0.0)
+      maxdist = Math.min(len, (int) ((1.0 - minsim) * len + 0.000001));
+
+    // we couldn't shortcut, so now we go ahead and compute the
+    // metric, up to the maximum distance
+    int dist = Math.min(distance(s1, s2, maxdist), len);
     return 1.0 - (((double) dist) / ((double) len));
   }
 
@@ -46,51 +60,32 @@ public class Levenshtein implements Comparator {
   }
 
   /**
-   * This is the original, naive implementation, using the Wagner &
-   * Fischer algorithm from 1974. It uses a flattened matrix for
-   * speed, but still computes the entire matrix.
+   * Returns the exact edit distance between the two strings. Uses
+   * the bit-parallel algorithm if the shorter string fits in 64
+   * characters, and otherwise the banded algorithm with a band wide
+   * enough to cover the entire matrix.
    */
   public static int distance(String s1, String s2) {
-    if (s1.length() == 0)
-      return s2.length();
-    if (s2.length() == 0)
-      return s1.length();
-
-    int s1len = s1.length();
-    // we use a flat array for better performance. we address it by
-    // s1ix + s1len * s2ix. this modification improves performance
-    // by about 30%, which is definitely worth the extra complexity.
-    int[] matrix = new int[(s1len + 1) * (s2.length() + 1)];
-    for (int col = 0; col <= s2.length(); col++)
-      matrix[col * s1len] = col;
-    for (int row = 0; row <= s1len; row++)
-      matrix[row] = row;
-
-    for (int ix1 = 0; ix1 < s1len; ix1++) {
-      char ch1 = s1.charAt(ix1);
-      for (int ix2 = 0; ix2 < s2.length(); ix2++) {
-        int cost;
-        if (ch1 == s2.charAt(ix2))
-          cost = 0;
-        else
-          cost = 1;
-
-        int left = matrix[ix1 + ((ix2 + 1) * s1len)] + 1;
-        int above = matrix[ix1 + 1 + (ix2 * s1len)] + 1;
-        int aboveleft = matrix[ix1 + (ix2 * s1len)] + cost;
-        matrix[ix1 + 1 + ((ix2 + 1) * s1len)] =
-          Math.min(left, Math.min(above, aboveleft));
-      }
-    }
+    return distance(s1, s2, Math.max(s1.length(), s2.length()));
+  }
 
-    // for (int ix1 = 0; ix1 <= s1len; ix1++) {
-    //   for (int ix2 = 0; ix2 <= s2.length(); ix2++) {
-    //     System.out.print(matrix[ix1 + (ix2 * s1len)] + " ");
-    //   }
-    //   System.out.println();
-    // }
-    
-    return matrix[s1len + (s2.length() * s1len)];
+  /**
+   * Returns the edit distance between the two strings if it is
+   * maxdist or less, and otherwise maxdist + 1. Knowing the maximum
+   * allows the computation to stop early, and to skip most of the
+   * matrix, so callers who only care whether the distance is small
+   * should use this method.
+   * @since 1.3
+   */
+  public static int distance(String s1, String s2, int maxdist) {
+    if (Math.abs(s1.length() - s2.length()) > maxdist)
+      return maxdist + 1;
+    if (s1.length() == 0 || s2.length() == 0)
+      return Math.max(s1.length(), s2.length());
+
+    if (Math.min(s1.length(), s2.length()) <= 64)
+      return bitParallelDistance(s1, s2, maxdist);
+    return bandedDistance(s1, s2, maxdist);
   }
   
   // /**
@@ -220,10 +215,10 @@ public class Levenshtein implements Comparator {
   // }
 
   /**
-   * Optimized version of the Wagner & Fischer algorithm that only
-   * keeps a single column in the matrix in memory at a time. It
-   * implements the simple cutoff, but otherwise computes the entire
-   * matrix. It is roughly twice as fast as the original function.
+   * Computes the edit distance with the cutoff implied by compare():
+   * if the distance is more than half the length of the shorter
+   * string the similarity is below 0.5, and the exact distance is of
+   * no interest. In that case some larger value is returned.
    */
   public static int compactDistance(String s1, String s2) {
     if (s1.length() == 0)
@@ -233,57 +228,173 @@ public class Levenshtein implements Comparator {
 
     // the maximum edit distance there is any point in reporting.
     int maxdist = Math.min(s1.length(), s2.length()) / 2;
-    
-    // we allocate just one column instead of the entire matrix, in
-    // order to save space.  this also enables us to implement the
-    // algorithm somewhat faster.  the first cell is always the
-    // virtual first row.
+    return distance(s1, s2, maxdist);
+  }
+
+  /**
+   * Ukkonen's optimization of the Wagner & Fischer algorithm. Any
+   * cell more than maxdist away from the diagonal must have a value
+   * over maxdist, so only a band of 2 * maxdist + 1 cells is computed
+   * in each row, giving O(maxdist * n) cost. Only one row is kept in
+   * memory, and the row buffer is reused between calls on the same
+   * thread. Returns maxdist + 1 if the distance is over maxdist.
+   * @since 1.3
+   */
+  public static int bandedDistance(String s1, String s2, int maxdist) {
     int s1len = s1.length();
-    int[] column = new int[s1len + 1];
-
-    // first we need to fill in the initial column. we use a separate
-    // loop for this, because in this case our basis for comparison is
-    // not the previous column, but a virtual first column.
-    int ix2 = 0;
-    char ch2 = s2.charAt(ix2);
-    column[0] = 1; // virtual first row
-    for (int ix1 = 1; ix1 <= s1len; ix1++) {
-      int cost = s1.charAt(ix1 - 1) == ch2 ? 0 : 1;
+    int s2len = s2.length();
+    if (Math.abs(s1len - s2len) > maxdist)
+      return maxdist + 1;
+    if (s1len == 0 || s2len == 0)
+      return Math.max(s1len, s2len);
+
+    // cells outside the band are treated as having this value
+    int outside = maxdist + 1;
+    int[] row = getRow(s2len + 1);
+    int hi = Math.min(s2len, maxdist);
+    for (int ix2 = 0; ix2 <= hi; ix2++)
+      row[ix2] = ix2;
+    if (hi < s2len)
+      row[hi + 1] = outside;
 
-      // Lowest of three: above (column[ix1 - 1]), aboveleft: ix1 - 1,
-      // left: ix1. Latter cannot possibly be lowest, so is
-      // ignored.
-      column[ix1] = Math.min(column[ix1 - 1], ix1 - 1) + cost;
-    }
+    for (int ix1 = 1; ix1 <= s1len; ix1++) {
+      char ch1 = s1.charAt(ix1 - 1);
+      int lo = Math.max(1, ix1 - maxdist);
+      hi = Math.min(s2len, ix1 + maxdist);
+
+      // left: the cell to the left in this row
+      // aboveleft: the cell to the left in the previous row
+      int left;
+      int aboveleft;
+      if (lo == 1) {
+        aboveleft = row[0];
+        left = ix1; // virtual first column
+        row[0] = ix1;
+      } else {
+        aboveleft = row[lo - 1];
+        left = outside;
+      }
 
-    // okay, now we have an initialized first column, and we can
-    // compute the rest of the matrix.
-    int above = 0;
-    for (ix2 = 1; ix2 < s2.length(); ix2++) {
-      ch2 = s2.charAt(ix2);
-      above = ix2 + 1; // virtual first row
-
-      int smallest = s1len * 2; // used to implement cutoff
-      for (int ix1 = 1; ix1 <= s1len; ix1++) {
-        int cost = s1.charAt(ix1 - 1) == ch2 ? 0 : 1;
-
-        // above:     above
-        // aboveleft: column[ix1 - 1]
-        // left:      column[ix1]
-        int value = Math.min(Math.min(above, column[ix1 - 1]), column[ix1]) +
-                    cost;
-        column[ix1 - 1] = above; // write previous
-        above = value;           // keep current
-        smallest = Math.min(smallest, value);
+      int smallest = outside;
+      for (int ix2 = lo; ix2 <= hi; ix2++) {
+        int above = row[ix2];
+        int cost = ch1 == s2.charAt(ix2 - 1) ? 0 : 1;
+        int value = Math.min(aboveleft + cost, Math.min(above, left) + 1);
+        aboveleft = above;
+        row[ix2] = value;
+        left = value;
+        if (value < smallest)
+          smallest = value;
       }
-      column[s1len] = above;
+      if (hi < s2len)
+        row[hi + 1] = outside; // right edge of band for next row
 
-      // check if we can stop because we'll be going over the max distance
+      // every path to the end goes through this row, so stop if
+      // every cell is already over the maximum
       if (smallest > maxdist)
-        return smallest;
+        return outside;
+    }
+
+    return Math.min(row[s2len], outside);
+  }
+
+  /**
+   * Myers' bit-parallel algorithm, in the formulation by Hyyrö. The
+   * column of the matrix is held as bit vectors of vertical deltas,
+   * so that each character of the longer string costs a handful of
+   * bit operations. Requires the shorter string to have at most 64
+   * characters. Returns maxdist + 1 if the distance is over maxdist.
+   * @since 1.3
+   */
+  public static int bitParallelDistance(String s1, String s2, int maxdist) {
+    // the pattern is the shorter string, the text the longer
+    String pattern = s1;
+    String text = s2;
+    if (pattern.length() > text.length()) {
+      pattern = s2;
+      text = s1;
+    }
+    int plen = pattern.length();
+    int tlen = text.length();
+    if (plen > 64)
+      throw new IllegalArgumentException("Pattern longer than 64 characters");
+    if (tlen - plen > maxdist)
+      return maxdist + 1;
+    if (plen == 0)
+      return tlen;
+
+    // bit ix in peq[ch] is set if pattern.charAt(ix) == ch. only the
+    // low characters get a table entry, the rest are looked up
+    // by scanning the pattern
+    long[] peq = getPeq();
+    for (int ix = 0; ix < plen; ix++) {
+      char ch = pattern.charAt(ix);
+      if (ch < peq.length)
+        peq[ch] |= 1L << ix;
+    }
+
+    long pv = -1L; // positive vertical deltas
+    long mv = 0;   // negative vertical deltas
+    long last = 1L << (plen - 1);
+    int score = plen;
+    int pos;
+    for (pos = 0; pos < tlen; pos++) {
+      char ch = text.charAt(pos);
+      long eq = ch < peq.length ? peq[ch] : match(pattern, ch);
+      long xv = eq | mv;
+      long xh = (((eq & pv) + pv) ^ pv) | eq;
+      long ph = mv | ~(xh | pv);
+      long mh = pv & xh;
+      if ((ph & last) != 0)
+        score++;
+      else if ((mh & last) != 0)
+        score--;
+      ph = (ph << 1) | 1; // first row grows by one per column
+      mh <<= 1;
+      pv = mh | ~(xv | ph);
+      mv = ph & xv;
+
+      // each remaining column can lower the score by at most one
+      if (score - (tlen - pos - 1) > maxdist)
+        break;
     }
 
-    // ok, we're done
-    return above;
-  }  
-}
\ No newline at end of file
+    for (int ix = 0; ix < plen; ix++) {
+      char ch = pattern.charAt(ix);
+      if (ch < peq.length)
+        peq[ch] = 0;
+    }
+    return pos < tlen ? maxdist + 1 : Math.min(score, maxdist + 1);
+  }
+
+  // ----- INTERNALS
+
+  // buffers reused between calls on the same thread
+  private static final ThreadLocal<int[]> rows = new ThreadLocal<int[]>();
+  private static final ThreadLocal<long[]> peqs = new ThreadLocal<long[]>() {
+    protected long[] initialValue() {
+      return new long[256];
+    }
+  };
+
+  private static int[] getRow(int size) {
+    int[] row = rows.get();
+    if (row == null || row.length < size) {
+      row = new int[Math.max(size, 64)];
+      rows.set(row);
+    }
+    return row;
+  }
+
+  private static long[] getPeq() {
+    return peqs.get();
+  }
+
+  private static long match(String pattern, char ch) {
+    long eq = 0;
+    for (int ix = 0; ix < pattern.length(); ix++)
+      if (pattern.charAt(ix) == ch)
+        eq |= 1L << ix;
+    return eq;
+  }
+}
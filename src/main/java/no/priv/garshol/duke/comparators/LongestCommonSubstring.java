@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.BoundedComparator;
 import no.priv.garshol.duke.DukeConfigException;
 
 /**
@@ -16,20 +16,38 @@ import no.priv.garshol.duke.DukeConfigException;
  *
  * @since 1.2
  */
-public class LongestCommonSubstring implements Comparator {
+public class LongestCommonSubstring implements BoundedComparator {
   private int minlen = 2;
   private Formula formula = Formula.OVERLAP;
   
   public double compare(String s1, String s2) {
+    return compare(s1, s2, 0.0);
+  }
+
+  public double compare(String s1, String s2, double minsim) {
     // a couple of quick cutoffs
     if (s1.equals(s2))
       return 1.0;
     if (Math.min(s1.length(), s2.length()) == 0)
       return 0.0;
 
+    int shortlen = Math.min(s1.length(), s2.length());
+    int longlen = Math.max(s1.length(), s2.length());
+    double best = 1.0; // best score possible for one direction
+    if (minsim > 0.0) {
+      // the common substrings can't contain more characters than the
+      // two strings have in common, which is cheap to work out
+      best = formula.compute(countCommonCharacters(s1, s2), shortlen, longlen);
+      if (best < minsim)
+        return 0.0;
+    }
+
     // the results of the algorithm depends on the order of the input
     // strings.  therefore need a sub-method for this computation
-    return (compare_(s1, s2) + compare_(s2, s1)) / 2.0;
+    double first = compare_(s1, s2);
+    if ((first + best) / 2.0 < minsim)
+      return 0.0;
+    return (first + compare_(s2, s1)) / 2.0;
   }
 
   // FIXME: speed this up by using a one-dimensional array
@@ -83,6 +101,24 @@ public class LongestCommonSubstring implements Comparator {
     return formula.compute(removed, shortlen, longlen);
   }
   
+  // returns an upper bound on the number of characters the strings
+  // have in common. characters are counted in 256 buckets, which can
+  // only overestimate the number
+  private static int countCommonCharacters(String s1, String s2) {
+    int[] counts = new int[256];
+    for (int ix = 0; ix < s1.length(); ix++)
+      counts[s1.charAt(ix) & 0xFF]++;
+    int common = 0;
+    for (int ix = 0; ix < s2.length(); ix++) {
+      int bucket = s2.charAt(ix) & 0xFF;
+      if (counts[bucket] > 0) {
+        counts[bucket]--;
+        common++;
+      }
+    }
+    return common;
+  }
+
   public boolean isTokenized() {
     return true;
   }
@@ -1,7 +1,7 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 
 // http://www.wbrogden.com/java/Phonetic/index.html
 // http://www.wbrogden.com/phonetic/index.html
@@ -11,7 +11,7 @@ import no.priv.garshol.duke.Comparator;
  * which considers strings to have a score of 0.9 if their Metaphone
  * values match.
  */
-public class MetaphoneComparator implements Comparator {
+public class MetaphoneComparator implements PreparedComparator {
   
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
@@ -23,6 +23,23 @@ public class MetaphoneComparator implements Comparator {
     return 0.0;
   }
 
+  // the prepared form is the value and its key
+  public Object prepare(String value) {
+    return new String[] { value, metaphone(value) };
+  }
+
+  public double comparePrepared(Object v1, Object v2) {
+    String[] p1 = (String[]) v1;
+    String[] p2 = (String[]) v2;
+    if (p1[0].equals(p2[0]))
+      return 1.0;
+
+    if (p1[1].equals(p2[1]))
+      return 0.9;
+
+    return 0.0;
+  }
+
   public boolean isTokenized() {
     return true; // I guess?
   }
@@ -47,13 +47,13 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * My own algorithm for phonetic matching of Norwegian names, inspired
  * by Metaphone.
  */
-public class NorphoneComparator implements Comparator {
+public class NorphoneComparator implements PreparedComparator {
   
   public double compare(String s1, String s2) {
     if (s1.equals(s2))
@@ -65,6 +65,23 @@ public class NorphoneComparator implements Comparator {
     return 0.0;
   }
 
+  // the prepared form is the value and its key
+  public Object prepare(String value) {
+    return new String[] { value, norphone(value) };
+  }
+
+  public double comparePrepared(Object v1, Object v2) {
+    String[] p1 = (String[]) v1;
+    String[] p2 = (String[]) v2;
+    if (p1[0].equals(p2[0]))
+      return 1.0;
+
+    if (p1[1].equals(p2[1]))
+      return 0.9;
+
+    return 0.0;
+  }
+
   public boolean isTokenized() {
     return false;
   }
@@ -1,13 +1,13 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * Comparator which compares two values numerically. The similarity is
  * the ratio of the smaller number to the greater number.
  */
-public class NumericComparator implements Comparator {
+public class NumericComparator implements PreparedComparator {
   private double minratio;
   
   public boolean isTokenized() {
@@ -19,16 +19,24 @@ public class NumericComparator implements Comparator {
   }
   
   public double compare(String v1, String v2) {
-    double d1;
-    double d2;
+    return comparePrepared(prepare(v1), prepare(v2));
+  }
+
+  // the prepared form is the parsed number, or null if it's not a number
+  public Object prepare(String value) {
     try {
-      d1 = Double.parseDouble(v1);
-      d2 = Double.parseDouble(v2);
+      return Double.parseDouble(value);
     } catch (NumberFormatException e) {
-      return 0.5; // we just ignore this. whether it's wise I'm not sure
+      return null;
     }
+  }
+
+  public double comparePrepared(Object v1, Object v2) {
+    if (v1 == null || v2 == null)
+      return 0.5; // we just ignore this. whether it's wise I'm not sure
+    double d1 = (Double) v1;
+    double d2 = (Double) v2;
 
-    // if they're both zero, they're equal
     if (d1 == 0.0 && d2 == 0.0)
       return 1.0;
     
@@ -1,28 +1,40 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
-import no.priv.garshol.duke.utils.StringUtils;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * An operator which knows about comparing names. It tokenizes, and
  * also applies Levenshtein distance.
  */
-public class PersonNameComparator implements Comparator {
+public class PersonNameComparator implements PreparedComparator {
 
   public boolean isTokenized() {
     return true;
   }
   
   public double compare(String v1, String v2) {
+    if (v1.equals(v2))
+      return 1.0;
+    return comparePrepared(prepare(v1), prepare(v2));
+  }
+
+  public Object prepare(String value) {
+    return new TokenizedValue(value, null);
+  }
+
+  public double comparePrepared(Object o1, Object o2) {
+    String v1 = ((TokenizedValue) o1).value;
+    String v2 = ((TokenizedValue) o2).value;
     if (v1.equals(v2))
       return 1.0;
 
-    if (v1.length() + v2.length() > 20 && Levenshtein.distance(v1, v2) == 1)
+    if (v1.length() + v2.length() > 20 && Levenshtein.distance(v1, v2, 1) == 1)
       return 0.95;
-    
-    String[] t1 = StringUtils.split(v1);
-    String[] t2 = StringUtils.split(v2);
+
+    // the token arrays are only ever replaced, never modified
+    String[] t1 = ((TokenizedValue) o1).tokens;
+    String[] t2 = ((TokenizedValue) o2).tokens;
 
     // t1 must always be the longest
     if (t1.length < t2.length) {
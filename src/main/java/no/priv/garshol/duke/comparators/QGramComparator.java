@@ -2,8 +2,10 @@
 package no.priv.garshol.duke.comparators;
 
 import java.util.Set;
+import java.util.Arrays;
 import java.util.HashSet;
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.BoundedComparator;
+import no.priv.garshol.duke.utils.LRUCache;
 import no.priv.garshol.duke.utils.ObjectUtils;
 
 import no.priv.garshol.duke.DukeConfigException;
@@ -13,17 +15,28 @@ import no.priv.garshol.duke.DukeConfigException;
  * different ways, and also use a couple different formulas to compute
  * the final score. The default is using basic q-grams and q-gram
  * overlap.
+ *
+ * <p>Each value is turned into a profile, which is a sorted array of
+ * 64-bit hashes of its q-grams, so that counting the common q-grams
+ * is a simple merge. Since the same values are compared over and
+ * over, the profiles are kept in a cache of limited size for each
+ * thread.
  * @since 1.0
  */
-public class QGramComparator implements Comparator {
+public class QGramComparator implements BoundedComparator {
   private Formula formula;
   private Tokenizer tokenizer;
   private int q;
-  
+  private int cachesize;
+  private ThreadLocal<LRUCache<String, long[]>> profiles;
+  private static final long[] EMPTY = new long[0];
+
   public QGramComparator() {
     this.formula = Formula.OVERLAP;
     this.tokenizer = Tokenizer.BASIC;
     this.q = 2;
+    this.cachesize = 10000;
+    resetCache();
   }
   
   public boolean isTokenized() {
@@ -31,21 +44,42 @@ public class QGramComparator implements Comparator {
   }
 
   public double compare(String s1, String s2) {
+    return compare(s1, s2, 0.0);
+  }
+
+  public double compare(String s1, String s2, double minsim) {
     if (s1.equals(s2))
       return 1.0;
 
-    Set<String> q1 = tokenizer.qgrams(s1, q);
-    Set<String> q2 = tokenizer.qgrams(s2, q);
+    long[] q1 = getProfile(s1);
+    long[] q2 = getProfile(s2);
 
-    if (q1.isEmpty() || q2.isEmpty())
+    if (q1.length == 0 || q2.length == 0)
       return 0.0; // division will fail
 
+    // all the formulas grow with the number of common q-grams, so
+    // we can stop once even all the remaining ones being in common
+    // won't be enough
     int common = 0;
-    for (String gram : q1)
-      if (q2.contains(gram))
+    int ix1 = 0;
+    int ix2 = 0;
+    while (ix1 < q1.length && ix2 < q2.length) {
+      if (minsim > 0.0 &&
+          formula.compute(common + Math.min(q1.length - ix1, q2.length - ix2),
+                          q1.length, q2.length) < minsim)
+        return 0.0;
+
+      if (q1[ix1] == q2[ix2]) {
         common++;
+        ix1++;
+        ix2++;
+      } else if (q1[ix1] < q2[ix2])
+        ix1++;
+      else
+        ix2++;
+    }
 
-    return formula.compute(common, q1, q2);
+    return formula.compute(common, q1.length, q2.length);
   }
 
   /**
@@ -53,6 +87,7 @@ public class QGramComparator implements Comparator {
    */
   public void setQ(int q) {
     this.q = q;
+    resetCache();
   }
  
   /**
@@ -68,6 +103,74 @@ public class QGramComparator implements Comparator {
    */
   public void setTokenizer(Tokenizer tokenizer) {
     this.tokenizer = tokenizer;
+    resetCache();
+  }
+
+  /**
+   * Sets the maximum number of q-gram profiles kept in the cache of
+   * each thread. 0 turns the cache off. The default is 10000.
+   * @since 1.3
+   */
+  public void setCacheSize(int cachesize) {
+    this.cachesize = cachesize;
+    resetCache();
+  }
+
+  public int getCacheSize() {
+    return cachesize;
+  }
+
+  /**
+   * Returns the sorted q-gram hashes of the value, from the cache if
+   * possible.
+   */
+  private long[] getProfile(String value) {
+    if (cachesize == 0)
+      return makeProfile(value);
+
+    LRUCache<String, long[]> cache = profiles.get();
+    long[] profile = cache.get(value);
+    if (profile == null) {
+      profile = makeProfile(value);
+      cache.put(value, profile);
+    }
+    return profile;
+  }
+
+  private long[] makeProfile(String value) {
+    Set<String> grams = tokenizer.qgrams(value, q);
+    if (grams.isEmpty())
+      return EMPTY;
+
+    long[] profile = new long[grams.size()];
+    int ix = 0;
+    for (String gram : grams)
+      profile[ix++] = hash(gram);
+    Arrays.sort(profile);
+    return profile;
+  }
+
+  // FNV-1a with a final mix. with 64 bits, collisions between the
+  // q-grams of two values are vanishingly unlikely
+  private static long hash(String gram) {
+    long hash = 0xCBF29CE484222325L;
+    for (int ix = 0; ix < gram.length(); ix++)
+      hash = (hash ^ gram.charAt(ix)) * 0x100000001B3L;
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+
+  // the profiles depend on q and the tokenizer, so changing those
+  // means starting over with a new cache
+  private void resetCache() {
+    final int size = cachesize;
+    profiles = new ThreadLocal<LRUCache<String, long[]>>() {
+      protected LRUCache<String, long[]> initialValue() {
+        return new LRUCache(size);
+      }
+    };
   }
   
   private static String pad(String s, int q, boolean front) {
@@ -86,20 +189,29 @@ public class QGramComparator implements Comparator {
    */
   public enum Formula {
     OVERLAP {
-      public double compute(int common, Set<String> q1, Set<String> q2) {
-        return (double) common / Math.min((double) q1.size(), (double) q2.size());
+      public double compute(int common, int size1, int size2) {
+        return (double) common / Math.min((double) size1, (double) size2);
       }
     }, JACCARD {
-      public double compute(int common, Set<String> q1, Set<String> q2) {
-        return (double) common / (double) (q1.size() + q2.size() - common);
+      public double compute(int common, int size1, int size2) {
+        return (double) common / (double) (size1 + size2 - common);
       }
     }, DICE {
-      public double compute(int common, Set<String> q1, Set<String> q2) {
-        return (double) (2.0 * common) / (double) (q1.size() + q2.size());
+      public double compute(int common, int size1, int size2) {
+        return (double) (2.0 * common) / (double) (size1 + size2);
       }
     };
 
     public double compute(int common, Set<String> q1, Set<String> q2) {
+      return compute(common, q1.size(), q2.size());
+    }
+
+    /**
+     * Computes the similarity from the number of common q-grams and
+     * the number of q-grams in each value.
+     * @since 1.3
+     */
+    public double compute(int common, int size1, int size2) {
       throw new DukeConfigException("Unknown formula: " + this);
     }
   }
@@ -1,14 +1,14 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
 
 /**
  * An implementation of the Soundex algorithm, and a comparator which
  * considers strings to have a score of 0.9 if their Soundex values
  * match.
  */
-public class SoundexComparator implements Comparator {
+public class SoundexComparator implements PreparedComparator {
   // this table is keyed 0-25 (for 'a' to 'z') to the numeric value to put
   // in the key. 0 means the letter is to be omitted.
   private static char[] number = buildTable();
@@ -23,6 +23,23 @@ public class SoundexComparator implements Comparator {
     return 0.0;
   }
 
+  // the prepared form is the value and its key
+  public Object prepare(String value) {
+    return new String[] { value, soundex(value) };
+  }
+
+  public double comparePrepared(Object v1, Object v2) {
+    String[] p1 = (String[]) v1;
+    String[] p2 = (String[]) v2;
+    if (p1[0].equals(p2[0]))
+      return 1.0;
+
+    if (p1[1].equals(p2[1]))
+      return 0.9;
+
+    return 0.0;
+  }
+
   public boolean isTokenized() {
     return true; // I guess?
   }
@@ -0,0 +1,42 @@
+
+package no.priv.garshol.duke.comparators;
+
+import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PreparedComparator;
+import no.priv.garshol.duke.utils.StringUtils;
+
+/**
+ * The prepared form of a value for the tokenizing comparators: the
+ * value, its tokens, and, if the comparator used on the tokens can
+ * prepare values, the prepared tokens.
+ * @since 1.3
+ */
+class TokenizedValue {
+  String value;
+  String[] tokens;
+  Object[] prepared; // null unless subcomparator is a PreparedComparator
+
+  public TokenizedValue(String value, Comparator subcomp) {
+    this.value = value;
+    this.tokens = StringUtils.split(value);
+    if (subcomp instanceof PreparedComparator) {
+      PreparedComparator pcomp = (PreparedComparator) subcomp;
+      prepared = new Object[tokens.length];
+      for (int ix = 0; ix < tokens.length; ix++)
+        prepared[ix] = pcomp.prepare(tokens[ix]);
+    }
+  }
+
+  /**
+   * Compares token ix1 of v1 with token ix2 of v2 using the
+   * comparator.
+   */
+  public static double compare(Comparator subcomp,
+                               TokenizedValue v1, int ix1,
+                               TokenizedValue v2, int ix2) {
+    if (v1.prepared != null && v2.prepared != null)
+      return ((PreparedComparator) subcomp).comparePrepared(v1.prepared[ix1],
+                                                            v2.prepared[ix2]);
+    return subcomp.compare(v1.tokens[ix1], v2.tokens[ix2]);
+  }
+}
@@ -1,29 +1,36 @@
 
 package no.priv.garshol.duke.comparators;
 
-import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.BoundedComparator;
 
 /**
  * An implementation of the Levenshtein distance metric that uses
  * weights, so that not all editing operations are considered equal.
  * Useful explanation: http://www.let.rug.nl/kleiweg/lev/levenshtein.html
  */
-public class WeightedLevenshtein implements Comparator {
+public class WeightedLevenshtein implements BoundedComparator {
   private WeightEstimator estimator;
 
   public WeightedLevenshtein() {
     this.estimator = new DefaultWeightEstimator();
   }
   
-  public double compare(String s1, String s2) {   
+  public double compare(String s1, String s2) {
+    return compare(s1, s2, 0.0);
+  }
+
+  public double compare(String s1, String s2, double minsim) {
     // if the strings are equal we can stop right here.
     if (s1.equals(s2))
       return 1.0;
 
-    // we couldn't shortcut, so now we go ahead and compute the full
-    // matrix
+    // we couldn't shortcut, so now we go ahead and compute the
+    // matrix, stopping if the distance gets too high to reach minsim
     int len = Math.min(s1.length(), s2.length());
-    double dist = distance(s1, s2, estimator);
+    double maxdist = Double.MAX_VALUE;
+    if (minsim > 0.0)
+      maxdist = (1.0 - minsim) * len;
+    double dist = distance(s1, s2, estimator, maxdist);
     if (dist > len)
       // because of weights it's possible for the distance to be
       // greater than the length. if so, we return zero rather than a
@@ -41,49 +48,60 @@ public class WeightedLevenshtein implements Comparator {
   }
 
   public static double distance(String s1, String s2, WeightEstimator weight) {
+    return distance(s1, s2, weight, Double.MAX_VALUE);
+  }
+
+  /**
+   * Computes the weighted distance, keeping only one row of the
+   * matrix in memory. Since weights are never negative the distance
+   * can't be lower than the lowest value in any row, so if that goes
+   * over maxdist the computation stops, and that value is returned.
+   * @since 1.3
+   */
+  public static double distance(String s1, String s2, WeightEstimator weight,
+                                double maxdist) {
     int s1len = s1.length();
+    int s2len = s2.length();
     if (s1len == 0)
       return estimateCharacters(s2, weight);
-    if (s2.length() == 0)
+    if (s2len == 0)
       return estimateCharacters(s1, weight);
-    
-    // we use a flat array for better performance. we address it by
-    // s1ix + s1len * s2ix. this modification improves performance
-    // by about 30%, which is definitely worth the extra complexity.
-    double[] matrix = new double[(s1len + 1) * (s2.length() + 1)];
-    for (int col = 0; col <= s2.length(); col++)
-      matrix[col * s1len] = col;
-    for (int row = 0; row <= s1len; row++)
-      matrix[row] = row;
+
+    // row[ix2] holds the distance between the first ix1 characters of
+    // s1 and the first ix2 characters of s2
+    double[] row = new double[s2len + 1];
+    for (int ix2 = 0; ix2 <= s2len; ix2++)
+      row[ix2] = ix2;
 
     for (int ix1 = 0; ix1 < s1len; ix1++) {
       char ch1 = s1.charAt(ix1);
-      for (int ix2 = 0; ix2 < s2.length(); ix2++) {
-        double cost;
+      double delete = weight.delete(ix1, ch1);
+      double aboveleft = row[0];
+      row[0] = ix1 + 1;
+      double smallest = row[0];
+      for (int ix2 = 0; ix2 < s2len; ix2++) {
         char ch2 = s2.charAt(ix2);
+        double cost;
         if (ch1 == ch2)
           cost = 0;
         else
-          cost = weight.substitute(ix1, ch1, s2.charAt(ix2));
-
-        double left = matrix[ix1 + ((ix2 + 1) * s1len)] +
-                      weight.delete(ix1, ch1);
-        double above = matrix[ix1 + 1 + (ix2 * s1len)] +
-                      weight.insert(ix1, ch2);
-        double aboveleft = matrix[ix1 + (ix2 * s1len)] + cost;
-        matrix[ix1 + 1 + ((ix2 + 1) * s1len)] =
-          Math.min(left, Math.min(above, aboveleft));
+          cost = weight.substitute(ix1, ch1, ch2);
+
+        double above = row[ix2 + 1];
+        double value = Math.min(above + delete,
+                                Math.min(row[ix2] + weight.insert(ix1, ch2),
+                                         aboveleft + cost));
+        aboveleft = above;
+        row[ix2 + 1] = value;
+        smallest = Math.min(smallest, value);
       }
+
+      // check if we can stop because we'll be going over the max distance
+      if (smallest > maxdist)
+        return smallest;
     }
 
-    // for (int ix1 = 0; ix1 <= s1len; ix1++) {
-    //   for (int ix2 = 0; ix2 <= s2.length(); ix2++) {
-    //     System.out.print(matrix[ix1 + (ix2 * s1len)] + " ");
-    //   }
-    //   System.out.println();
-    // }
-        
-    return matrix[s1len + (s2.length() * s1len)];
+    return row[s2len];
   }
 
   // /**
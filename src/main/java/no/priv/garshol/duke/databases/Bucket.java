@@ -16,6 +16,15 @@ public class Bucket implements Comparable<Bucket> {
   public Bucket() {
     this.records = new long[10];
   }
+
+  /**
+   * Creates a bucket holding the first size elements of the array,
+   * which must be sorted. The array is used as is, not copied.
+   */
+  public Bucket(long[] records, int size) {
+    this.records = records;
+    this.nextfree = size;
+  }
     
   public void add(long id) {
     if (records == null)
@@ -60,4 +69,43 @@ public class Bucket implements Comparable<Bucket> {
   public boolean contains(long record) {
     return Arrays.binarySearch(records, 0, nextfree, record) >= 0;
   }
+
+  /**
+   * Returns the index of the first record at or after from which is
+   * not less than the given record, or nextfree if there is none.
+   * The bucket must be sorted.
+   * @since 1.3
+   */
+  public int advance(long record, int from) {
+    return gallop(records, from, nextfree, record);
+  }
+
+  /**
+   * Returns the index of the first element in array[from..size)
+   * which is not less than key, or size if there is none. Uses
+   * galloping (exponential) search, so the cost is logarithmic in the
+   * distance moved, rather than in the size of the array. This makes
+   * walking through a large sorted array in steps cheap, since big
+   * stretches of it are skipped.
+   * @since 1.3
+   */
+  public static int gallop(long[] array, int from, int size, long key) {
+    if (from >= size || array[from] >= key)
+      return from;
+
+    // array[low] < key all along
+    int low = from;
+    int step = 1;
+    int high = from + 1;
+    while (high < size && array[high] < key) {
+      low = high;
+      step <<= 1;
+      high = low + step;
+    }
+    if (high > size)
+      high = size;
+
+    int ix = Arrays.binarySearch(array, low + 1, high, key);
+    return ix >= 0 ? ix : -(ix + 1);
+  }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.util.Map;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.utils.StringIntMap;
+
+/**
+ * An in-memory key value store which uses much less memory than
+ * InMemoryKeyValueStore. Tokens are mapped to int IDs per property,
+ * the record IDs for each token are stored as delta-encoded varints
+ * in a byte array, and external IDs are mapped through an
+ * open-addressing table, so there are no per-token or per-ID objects
+ * beyond the strings themselves.
+ *
+ * <p>The price is that each token lookup has to decode the record
+ * IDs into a new Bucket.
+ * @since 1.3
+ */
+public class CompactKeyValueStore implements KeyValueStore {
+  private int nextid;                       // next available id
+  private Record[] records;                 // key is the internal id
+  private Map<String, TokenIndex> indexes;  // property name -> token index
+  private StringIntMap byid;                // extid -> internal id
+
+  public CompactKeyValueStore() {
+    this.records = new Record[1000];
+    this.indexes = new HashMap();
+    this.byid = new StringIntMap();
+  }
+
+  public boolean isInMemory() {
+    return true;
+  }
+
+  public void setOverwrite(boolean overwrite) {
+    // nothing to delete
+  }
+
+  public void commit() {
+    // postings are always ready for lookup, so nothing to do
+  }
+
+  public void close() {
+  }
+
+  public long makeNewRecordId() {
+    return nextid++;
+  }
+
+  public void registerRecord(long id, Record record) {
+    // grow array if necessary
+    if (id >= records.length) {
+      Record[] newbuf = new Record[Math.max(records.length * 2, (int) id + 1)];
+      System.arraycopy(records, 0, newbuf, 0, records.length);
+      records = newbuf;
+    }
+
+    // register
+    records[(int) id] = record;
+  }
+
+  public void registerId(long id, String extid) {
+    byid.put(extid, (int) id);
+  }
+
+  public void registerToken(long id, String propname, String token) {
+    TokenIndex index = indexes.get(propname);
+    if (index == null) {
+      index = new TokenIndex();
+      indexes.put(propname, index);
+    }
+    index.add(token, (int) id);
+  }
+
+  public Record findRecordById(String extid) {
+    int id = byid.get(extid);
+    if (id == -1)
+      return null;
+    return records[id];
+  }
+
+  public Record findRecordById(long id) {
+    return records[(int) id];
+  }
+
+  public Bucket lookupToken(String propname, String token) {
+    TokenIndex index = indexes.get(propname);
+    if (index == null)
+      return null;
+    return index.lookup(token);
+  }
+
+  public String toString() {
+    return "CompactKeyValueStore";
+  }
+
+  // ===== TOKEN INDEX
+
+  /**
+   * The token index for a single property. Each token gets an int ID,
+   * which is the index into the arrays holding its postings.
+   */
+  static class TokenIndex {
+    private StringIntMap tokens;  // token -> token id
+    private byte[][] postings;    // varint-encoded record id deltas
+    private int[] lengths;        // bytes used in each postings array
+    private int[] counts;         // number of record ids; -1 if oversized
+    private int[] lastids;        // last record id added
+    private boolean[] unsorted;   // true if ids were not added in order
+    // same limit as in Bucket
+    private static final int MAX_BUCKET_SIZE = 1000000;
+
+    public TokenIndex() {
+      this.tokens = new StringIntMap();
+      this.postings = new byte[16][];
+      this.lengths = new int[16];
+      this.counts = new int[16];
+      this.lastids = new int[16];
+      this.unsorted = new boolean[16];
+    }
+
+    public void add(String token, int id) {
+      int tokenid = tokens.get(token);
+      if (tokenid == -1) {
+        tokenid = tokens.size();
+        tokens.put(token, tokenid);
+        if (tokenid >= postings.length)
+          grow();
+        postings[tokenid] = new byte[4];
+      }
+
+      if (counts[tokenid] == -1)
+        return; // bucket went over size, now discarding all records
+      if (counts[tokenid] >= MAX_BUCKET_SIZE) {
+        postings[tokenid] = null;
+        counts[tokenid] = -1;
+        return;
+      }
+
+      // ids normally arrive in increasing order, but we can't rely on
+      // it, so the delta is zigzag-encoded to allow negative deltas
+      int delta = id - lastids[tokenid];
+      if (delta < 0)
+        unsorted[tokenid] = true;
+      write(tokenid, (delta << 1) ^ (delta >> 31));
+      lastids[tokenid] = id;
+      counts[tokenid]++;
+    }
+
+    public Bucket lookup(String token) {
+      int tokenid = tokens.get(token);
+      if (tokenid == -1 || counts[tokenid] == -1)
+        return null;
+
+      byte[] buf = postings[tokenid];
+      int length = lengths[tokenid];
+      long[] ids = new long[counts[tokenid]];
+      int id = 0;
+      int count = 0;
+      int pos = 0;
+      while (pos < length) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = buf[pos++];
+          value |= (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+
+        id += (value >>> 1) ^ -(value & 1);
+        ids[count++] = id;
+      }
+
+      if (unsorted[tokenid])
+        Arrays.sort(ids);
+      return new Bucket(ids, count);
+    }
+
+    private void write(int tokenid, int value) {
+      byte[] buf = postings[tokenid];
+      int pos = lengths[tokenid];
+      if (pos + 5 > buf.length) {
+        byte[] newbuf = new byte[Math.max(buf.length * 2, pos + 5)];
+        System.arraycopy(buf, 0, newbuf, 0, pos);
+        buf = newbuf;
+        postings[tokenid] = buf;
+      }
+
+      while ((value & ~0x7F) != 0) {
+        buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      buf[pos++] = (byte) value;
+      lengths[tokenid] = pos;
+    }
+
+    private void grow() {
+      int size = postings.length * 2;
+      postings = Arrays.copyOf(postings, size);
+      lengths = Arrays.copyOf(lengths, size);
+      counts = Arrays.copyOf(counts, size);
+      lastids = Arrays.copyOf(lastids, size);
+      unsorted = Arrays.copyOf(unsorted, size);
+    }
+  }
+}
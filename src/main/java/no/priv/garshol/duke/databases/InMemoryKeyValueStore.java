@@ -26,6 +26,10 @@ public class InMemoryKeyValueStore implements KeyValueStore {
     return true;
   }
 
+  public void setOverwrite(boolean overwrite) {
+    // nothing to delete
+  }
+
   public void commit() {
     //System.out.println("Buckets: " + tokens.size());
     for (Bucket b : tokens.values())
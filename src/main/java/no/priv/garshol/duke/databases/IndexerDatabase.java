@@ -2,6 +2,7 @@ package no.priv.garshol.duke.databases;
 
 import no.priv.garshol.duke.*;
 import no.priv.garshol.duke.comparators.GeopositionComparator;
+import no.priv.garshol.duke.utils.StripedCounter;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
@@ -14,21 +15,26 @@ import org.apache.lucene.util.Version;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.List;
+import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.List;
 
-public abstract class IndexerDatabase implements Database {
+public abstract class IndexerDatabase
+  implements Database, SearchStatistics, ScoredSearch {
 
   protected Configuration config;
   protected EstimateResultTracker maintracker;
 
   protected boolean fuzzy_search;
+  protected int fuzzy_fallback_hits;
   protected Analyzer analyzer;
+  protected Analyzer keywordanalyzer;
   protected int max_search_hits;
   protected float min_relevance;
   protected boolean overwrite;
-  protected boolean initialized = false;
+  protected volatile boolean initialized = false;
+  protected double result_size_percentile;
 
   // helper for geostuff
   protected GeoProperty geoprop;
@@ -39,10 +45,13 @@ public abstract class IndexerDatabase implements Database {
   final static int SEARCH_EXPANSION_FACTOR = 1;
 
   public IndexerDatabase() {
+    // analyzers reuse their token streams per thread, so we keep them
     this.analyzer = new StandardAnalyzer(Version.LUCENE_CURRENT);
+    this.keywordanalyzer = new KeywordAnalyzer();
 
     this.max_search_hits = 1000000;
     this.fuzzy_search = true; // on by default
+    this.result_size_percentile = 0.95;
   }
 
   public void setConfiguration(Configuration config) {
@@ -61,6 +70,40 @@ public abstract class IndexerDatabase implements Database {
     this.min_relevance = min_relevance;
   }
 
+  /**
+   * Sets the percentile of recent result sizes which the number of
+   * hits to ask for is based on. With a higher percentile fewer
+   * queries have to be run again with a higher limit, but more
+   * queries ask for more hits than they need. The default is 0.95.
+   * @since 1.3
+   */
+  public void setResultSizePercentile(double result_size_percentile) {
+    if (result_size_percentile <= 0.0 || result_size_percentile > 1.0)
+      throw new DukeConfigException("result-size-percentile must be in (0, 1]");
+    this.result_size_percentile = result_size_percentile;
+  }
+
+  public double getResultSizePercentile() {
+    return result_size_percentile;
+  }
+
+  /**
+   * Returns the number of candidate searches done so far.
+   * @since 1.3
+   */
+  public long getQueryCount() {
+    return maintracker.getQueryCount();
+  }
+
+  /**
+   * Returns the number of times a candidate search had to be run
+   * again, because the estimated result size was too low.
+   * @since 1.3
+   */
+  public long getRequeryCount() {
+    return maintracker.getRequeryCount();
+  }
+
   /**
    * Parses the query. Using this instead of a QueryParser in order
    * to avoid thread-safety issues with Lucene's query parser.
@@ -72,11 +115,9 @@ public abstract class IndexerDatabase implements Database {
   protected Query parseTokens(String fieldName, String value) {
     BooleanQuery searchQuery = new BooleanQuery();
     if (value != null) {
-      Analyzer analyzer = new KeywordAnalyzer();
-
       try {
         TokenStream tokenStream =
-            analyzer.tokenStream(fieldName, new StringReader(value));
+            keywordanalyzer.tokenStream(fieldName, new StringReader(value));
         tokenStream.reset();
         CharTermAttribute attr =
             tokenStream.getAttribute(CharTermAttribute.class);
@@ -97,15 +138,28 @@ public abstract class IndexerDatabase implements Database {
   }
 
   /**
-   * Parses Lucene query.
+   * Parses Lucene query. The query is built directly from the tokens
+   * produced by the analyzer, so there is no need to escape the value.
    *
    * @param required Iff true, return only records matching this value.
    */
   protected void parseTokens(BooleanQuery parent, String fieldName,
                              String value, boolean required) {
+    parseTokens(parent, fieldName, value, required, fuzzy_search);
+  }
+
+  /**
+   * Parses Lucene query.
+   *
+   * @param required Iff true, return only records matching this value.
+   * @param fuzzy Iff false, never use fuzzy queries.
+   * @since 1.3
+   */
+  protected void parseTokens(BooleanQuery parent, String fieldName,
+                             String value, boolean required,
+                             boolean fuzzy) {
     if (value==null || value.length() == 0)
       return;
-    value = escapeLucene(value);
 
 
     try {
@@ -118,8 +172,8 @@ public abstract class IndexerDatabase implements Database {
       while (tokenStream.incrementToken()) {
         String term = attr.toString();
         Query termQuery;
-        if (fuzzy_search && isFuzzy(fieldName))
-          termQuery = new FuzzyQuery(new Term(fieldName, term));
+        if (fuzzy && isFuzzy(fieldName))
+          termQuery = makeFuzzyQuery(new Term(fieldName, term));
         else
           termQuery = new TermQuery(new Term(fieldName, term));
         parent.add(termQuery, required ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD);
@@ -131,6 +185,15 @@ public abstract class IndexerDatabase implements Database {
     }
   }
 
+  /**
+   * Returns the query to use for fuzzy matching of the term.
+   * Subclasses can override this to cache queries.
+   * @since 1.3
+   */
+  protected Query makeFuzzyQuery(Term term) {
+    return new FuzzyQuery(term);
+  }
+
   protected String escapeLucene(String query) {
     if(query!=null) {
       char[] tmp = new char[query.length() * 2];
@@ -165,6 +228,21 @@ public abstract class IndexerDatabase implements Database {
     this.fuzzy_search = fuzzy_search;
   }
 
+  /**
+   * If set, candidates are first looked up without fuzzy search, and
+   * fuzzy search is only used if that finds fewer than this many
+   * candidates. The default is 0, which means fuzzy search is always
+   * used right away.
+   * @since 1.3
+   */
+  public void setFuzzyFallbackHits(int fuzzy_fallback_hits) {
+    this.fuzzy_fallback_hits = fuzzy_fallback_hits;
+  }
+
+  public int getFuzzyFallbackHits() {
+    return fuzzy_fallback_hits;
+  }
+
   public Collection<Record> lookup(Property property, String value) {
     Query query = parseTokens(property.getName(), value);
     return maintracker.doQuery(query,null);
@@ -181,17 +259,24 @@ public abstract class IndexerDatabase implements Database {
    * Look up potentially matching records.
    */
   public Collection<Record> findCandidateMatches(Record record, Collection<no.priv.garshol.duke.Filter> filters) {
-    // if we have a geoprop it means that's the only way to search
-    if (geoprop != null) {
-      String value = record.getValue(geoprop.getName());
-      if (value != null) {
-        Filter filter = geoprop.geoSearch(value);
-        return maintracker.doQuery(new MatchAllDocsQuery(), filter, filters);
-      }
-    }
+    return maintracker.findCandidates(record, filters);
+  }
 
-    // ok, we didn't do a geosearch, so proceed as normal.
-    // first we build the combined query for all lookup properties
+  /**
+   * Look up potentially matching records, with their relevance
+   * scores.
+   * @since 1.3
+   */
+  public List<Candidate> findScoredCandidateMatches(Record record, Collection<no.priv.garshol.duke.Filter> filters) {
+    return maintracker.findScoredCandidates(record, filters);
+  }
+
+  /**
+   * Builds the combined query for all lookup properties.
+   * @param fuzzy Iff false, never use fuzzy queries.
+   * @since 1.3
+   */
+  protected Query makeQuery(Record record, boolean fuzzy) {
     BooleanQuery query = new BooleanQuery();
     for (Property prop : config.getLookupProperties()) {
       Collection<String> values = record.getValues(prop.getName());
@@ -199,11 +284,9 @@ public abstract class IndexerDatabase implements Database {
         continue;
       for (String value : values)
         parseTokens(query, prop.getName(), value,
-            prop.getLookupBehaviour() == Property.Lookup.REQUIRED);
+            prop.getLookupBehaviour() == Property.Lookup.REQUIRED, fuzzy);
     }
-
-    // do the query
-    return maintracker.doQuery(query,filters);
+    return query;
   }
 
   protected void init(){
@@ -250,21 +333,25 @@ public abstract class IndexerDatabase implements Database {
    * matches to be missed. We therefore try hard to estimate it as
    * correctly as possible.
    * <p/>
-   * The tracker uses a ring buffer of recent result sizes to
-   * estimate the result size.
+   * Each thread keeps its own window of recent result sizes, so
+   * there is no locking, and sets the limit to a percentile of the
+   * sizes each time the window is full. The limit can therefore
+   * shrink as well as grow. If a result hits the limit the query is
+   * run again with a higher limit.
    */
   abstract class EstimateResultTracker<T> {
-    private int limit;
-    /**
-     * Ring buffer containing n last search result sizes, except for
-     * searches which found nothing.
-     */
-    private int[] prevsizes;
-    private int sizeix; // position in prevsizes
+    private ThreadLocal<ResultSizeEstimate> estimates;
+    private StripedCounter queries;
+    private StripedCounter requeries;
 
     public EstimateResultTracker() {
-      this.limit = 100;
-      this.prevsizes = new int[10];
+      this.estimates = new ThreadLocal<ResultSizeEstimate>() {
+        protected ResultSizeEstimate initialValue() {
+          return new ResultSizeEstimate();
+        }
+      };
+      this.queries = new StripedCounter();
+      this.requeries = new StripedCounter();
     }
 
     public Collection<Record> doQuery(Query query,Collection<no.priv.garshol.duke.Filter> filters) {
@@ -273,50 +360,172 @@ public abstract class IndexerDatabase implements Database {
 
     public Collection<Record> doQuery(Query query, Filter filter,Collection<no.priv.garshol.duke.Filter> filters) {
       List<Record> matches;
-
       try {
-        List<T> hits;
-
-        int thislimit = Math.min(limit, max_search_hits);
-        while (true) {
-          hits = executeQuery(query,filter,thislimit,filters);
-          if (hits.size() < thislimit || thislimit == max_search_hits)
-            break;
-          thislimit = thislimit * 5;
-        }
-
-        matches = new ArrayList(Math.min(hits.size(), max_search_hits));
-        for (int ix = 0; ix < hits.size() &&
-            score(hits.get(ix)) >= min_relevance; ix++)
+        List<T> hits = search(query, filter, filters);
+        matches = new ArrayList(hits.size());
+        for (T hit : hits)
+          matches.add(toRecord(hit));
+      } catch (Exception e) {
+        throw new DukeException(e);
+      }
+      return matches;
+    }
 
-          matches.add(toRecord(hits.get(ix)));
+    public Collection<Record> findCandidates(Record record, Collection<no.priv.garshol.duke.Filter> filters) {
+      List<Record> matches;
+      try {
+        List<T> hits = searchCandidates(record, filters);
+        matches = new ArrayList(hits.size());
+        for (T hit : hits)
+          matches.add(toRecord(hit));
+      } catch (Exception e) {
+        throw new DukeException(e);
+      }
+      return matches;
+    }
 
-        if (hits.size() > 0) {
-          synchronized (this) {
-            prevsizes[sizeix++] = matches.size();
-            if (sizeix == prevsizes.length) {
-              sizeix = 0;
-              limit = Math.max((int) (average() * SEARCH_EXPANSION_FACTOR), limit);
-            }
-          }
-        }
+    public List<Candidate> findScoredCandidates(Record record, Collection<no.priv.garshol.duke.Filter> filters) {
+      List<Candidate> matches;
+      try {
+        List<T> hits = searchCandidates(record, filters);
+        matches = new ArrayList(hits.size());
+        for (T hit : hits)
+          matches.add(new Candidate(toRecord(hit), score(hit)));
       } catch (Exception e) {
         throw new DukeException(e);
       }
       return matches;
     }
 
-    private double average() {
-      int sum = 0;
-      int ix = 0;
-      for (; ix < prevsizes.length && prevsizes[ix] != 0; ix++)
-        sum += prevsizes[ix];
-      return sum / (double) ix;
+    /**
+     * Runs the candidate search for the record, and returns the hits
+     * with at least min_relevance, best first. If we have a geoprop
+     * that is the only way to search. Otherwise, if fuzzy fallback is
+     * on, the exact query is run first, and the fuzzy query only if
+     * that finds too few records. This counts as one search, and only
+     * the size of the result returned is used for the estimate.
+     */
+    protected List<T> searchCandidates(Record record, Collection<no.priv.garshol.duke.Filter> filters) throws Exception {
+      queries.increment();
+      ResultSizeEstimate estimate = estimates.get();
+      List<T> hits = null;
+
+      String geovalue = null;
+      if (geoprop != null)
+        geovalue = record.getValue(geoprop.getName());
+
+      if (geovalue != null)
+        hits = execute(new MatchAllDocsQuery(), geoprop.geoSearch(geovalue),
+                       filters, estimate);
+      else {
+        if (fuzzy_search && fuzzy_fallback_hits > 0) {
+          // try the much cheaper exact search first
+          hits = execute(makeQuery(record, false), null, filters, estimate);
+          if (countRelevant(hits) < fuzzy_fallback_hits)
+            hits = null;
+        }
+        if (hits == null)
+          hits = execute(makeQuery(record, fuzzy_search), null, filters,
+                         estimate);
+      }
+      return recordSize(hits, estimate);
+    }
+
+    // returns the hits with at least min_relevance, best first
+    private List<T> search(Query query, Filter filter, Collection<no.priv.garshol.duke.Filter> filters) throws Exception {
+      queries.increment();
+      ResultSizeEstimate estimate = estimates.get();
+      return recordSize(execute(query, filter, filters, estimate), estimate);
+    }
+
+    // runs the query, asking for more hits if the estimate was too
+    // low. returns all the hits, including those below min_relevance
+    private List<T> execute(Query query, Filter filter, Collection<no.priv.garshol.duke.Filter> filters, ResultSizeEstimate estimate) throws Exception {
+      List<T> hits;
+      int thislimit = Math.min(estimate.limit, max_search_hits);
+      while (true) {
+        hits = executeQuery(query,filter,thislimit,filters);
+        if (hits.size() < thislimit || thislimit == max_search_hits)
+          break;
+        // hits are sorted by score, so if the last one is below
+        // min_relevance the ones we didn't get would be, too
+        if (score(hits.get(hits.size() - 1)) < min_relevance)
+          break;
+        thislimit = Math.min(thislimit * 5, max_search_hits);
+        requeries.increment();
+      }
+      return hits;
+    }
+
+    // the hits are sorted by score, so the relevant ones come first
+    private int countRelevant(List<T> hits) {
+      int count = 0;
+      while (count < hits.size() && score(hits.get(count)) >= min_relevance)
+        count++;
+      return count;
     }
 
+    // feeds the size of the result into the estimate, and returns the
+    // hits with at least min_relevance
+    private List<T> recordSize(List<T> hits, ResultSizeEstimate estimate) {
+      int count = countRelevant(hits);
+      if (hits.size() > 0)
+        estimate.record(count, result_size_percentile);
+      return hits.subList(0, count);
+    }
+
+    /**
+     * Returns the number of queries done.
+     */
+    public long getQueryCount() {
+      return queries.sum();
+    }
+
+    /**
+     * Returns the number of times a query had to be run again,
+     * because the estimated result size was too low.
+     */
+    public long getRequeryCount() {
+      return requeries.sum();
+    }
 
     protected abstract List<T> executeQuery(Query query, Filter filter, int limit, Collection<no.priv.garshol.duke.Filter> filters) throws Exception;
     protected abstract double score(T hit);
     protected abstract Record toRecord(T hit) throws Exception;
   }
+
+  /**
+   * The result size estimate of a single thread.
+   */
+  static class ResultSizeEstimate {
+    private int limit;
+    /**
+     * The n last search result sizes, except for searches which found
+     * nothing.
+     */
+    private int[] sizes;
+    private int count; // number of sizes in the window so far
+    private static final int WINDOW_SIZE = 50;
+    private static final int MIN_LIMIT = 10;
+
+    public ResultSizeEstimate() {
+      this.limit = 100;
+      this.sizes = new int[WINDOW_SIZE];
+    }
+
+    public void record(int size, double percentile) {
+      sizes[count++] = size;
+      if (count < sizes.length)
+        return;
+
+      // the window is full, so compute a new limit. we add one, so
+      // that a result of exactly the target size is not cut off.
+      int[] sorted = sizes.clone();
+      Arrays.sort(sorted);
+      int ix = (int) Math.ceil(percentile * sorted.length) - 1;
+      int target = sorted[Math.max(0, Math.min(ix, sorted.length - 1))];
+      limit = Math.max(target * SEARCH_EXPANSION_FACTOR + 1, MIN_LIMIT);
+      count = 0;
+    }
+  }
 }
@@ -16,6 +16,13 @@ public interface KeyValueStore {
    */
   public boolean isInMemory();
 
+  /**
+   * If set, any existing data is deleted when the store is opened.
+   * For in-memory stores this is a no-op.
+   * @since 1.3
+   */
+  public void setOverwrite(boolean overwrite);
+
   /**
    * Flushes all changes to disk. For in-memory databases this is a
    * no-op.
@@ -3,6 +3,7 @@ package no.priv.garshol.duke.databases;
 import no.priv.garshol.duke.*;
 import no.priv.garshol.duke.comparators.GeopositionComparator;
 import no.priv.garshol.duke.utils.Utils;
+import no.priv.garshol.duke.utils.LRUCache;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.index.*;
@@ -19,12 +20,14 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Represents the Lucene index, and implements record linkage services
  * on top of it.
  */
-public class LuceneDatabase extends IndexerDatabase {
+public class LuceneDatabase extends IndexerDatabase
+  implements ConcurrentIndexing {
 
   private IndexWriter iwriter;
   private Directory directory;
@@ -32,10 +35,30 @@ public class LuceneDatabase extends IndexerDatabase {
   private IndexSearcher searcher;
 
   private String path;
+  private boolean nrt;
+  private int commit_interval; // in seconds
+  private long lastcommit;     // time of last durable commit
+  private boolean cache_records;
+  private RecordCache cache;   // null unless cache_records is set
+  // rewritten fuzzy queries for the current reader, by term
+  private LRUCache<Term, Query> fuzzycache;
+  private static final int FUZZY_CACHE_SIZE = 10000;
+  // index writer tuning
+  private double ram_buffer_size;
+  private int merge_factor;
+  // fuzzy search strategy
+  private int fuzzy_max_edits;
+  private int fuzzy_chars_per_edit;
+  private int fuzzy_prefix_length;
+  private int fuzzy_max_expansions;
 
 
   public LuceneDatabase() {
     this.maintracker = new LuceneEstimateResultTracker();
+    this.fuzzycache = new LRUCache(FUZZY_CACHE_SIZE);
+    this.fuzzy_max_edits = FuzzyQuery.defaultMaxEdits;
+    this.fuzzy_prefix_length = FuzzyQuery.defaultPrefixLength;
+    this.fuzzy_max_expansions = FuzzyQuery.defaultMaxExpansions;
   }
 
 
@@ -55,6 +78,142 @@ public class LuceneDatabase extends IndexerDatabase {
     this.path = path;
   }
 
+  /**
+   * If true, commit() makes new records searchable by refreshing the
+   * reader from the IndexWriter, without waiting for a durable commit
+   * to disk. Durable commits are then made at most once per commit
+   * interval, and on close(). Off by default.
+   * @since 1.3
+   */
+  public void setNearRealTime(boolean nrt) {
+    this.nrt = nrt;
+  }
+
+  public boolean getNearRealTime() {
+    return nrt;
+  }
+
+  /**
+   * Sets the minimum number of seconds between durable commits in
+   * near-real-time mode. If 0 (the default), every commit is durable.
+   * @since 1.3
+   */
+  public void setCommitInterval(int commit_interval) {
+    this.commit_interval = commit_interval;
+  }
+
+  public int getCommitInterval() {
+    return commit_interval;
+  }
+
+  /**
+   * If true, records found by searches are cached in memory, so that
+   * the stored fields of each document are only read and decoded
+   * once. Speeds up searching a lot, but the cache may eventually
+   * hold every record in the index. Off by default.
+   * @since 1.3
+   */
+  public void setRecordCache(boolean cache_records) {
+    this.cache_records = cache_records;
+  }
+
+  public boolean getRecordCache() {
+    return cache_records;
+  }
+
+  /**
+   * Sets the maximum number of edits allowed in fuzzy searches. Can
+   * be 1 or 2 (the default).
+   * @since 1.3
+   */
+  public void setFuzzyMaxEdits(int fuzzy_max_edits) {
+    if (fuzzy_max_edits < 1 || fuzzy_max_edits > 2)
+      throw new DukeConfigException("fuzzy-max-edits must be 1 or 2, not " +
+                                    fuzzy_max_edits);
+    this.fuzzy_max_edits = fuzzy_max_edits;
+    clearFuzzyCache();
+  }
+
+  public int getFuzzyMaxEdits() {
+    return fuzzy_max_edits;
+  }
+
+  /**
+   * If set, tokens are allowed one edit per this many characters in
+   * fuzzy searches, up to the maximum number of edits. So if set to
+   * 4, tokens shorter than 4 characters are matched exactly, tokens
+   * of 4-7 characters with one edit, and so on. The default is 0,
+   * which means the maximum number of edits is always allowed.
+   * @since 1.3
+   */
+  public void setFuzzyCharsPerEdit(int fuzzy_chars_per_edit) {
+    this.fuzzy_chars_per_edit = fuzzy_chars_per_edit;
+    clearFuzzyCache();
+  }
+
+  public int getFuzzyCharsPerEdit() {
+    return fuzzy_chars_per_edit;
+  }
+
+  /**
+   * Sets the number of leading characters which must match exactly
+   * in fuzzy searches. Higher values make fuzzy searches much
+   * faster. The default is 0.
+   * @since 1.3
+   */
+  public void setFuzzyPrefixLength(int fuzzy_prefix_length) {
+    this.fuzzy_prefix_length = fuzzy_prefix_length;
+    clearFuzzyCache();
+  }
+
+  public int getFuzzyPrefixLength() {
+    return fuzzy_prefix_length;
+  }
+
+  /**
+   * Sets the maximum number of index terms a fuzzy search for one
+   * token can expand to. The default is 50.
+   * @since 1.3
+   */
+  public void setFuzzyMaxExpansions(int fuzzy_max_expansions) {
+    this.fuzzy_max_expansions = fuzzy_max_expansions;
+    clearFuzzyCache();
+  }
+
+  public int getFuzzyMaxExpansions() {
+    return fuzzy_max_expansions;
+  }
+
+  /**
+   * Sets the amount of memory (in MB) the index writer can use to
+   * buffer new documents before writing them out as a segment.
+   * Raising it speeds up bulk loading. The default is Lucene's
+   * default of 16 MB.
+   * @since 1.3
+   */
+  public void setRamBufferSize(double ram_buffer_size) {
+    this.ram_buffer_size = ram_buffer_size;
+  }
+
+  public double getRamBufferSize() {
+    return ram_buffer_size;
+  }
+
+  /**
+   * Sets how many segments of roughly the same size are allowed
+   * before they are merged. Higher values mean less merging while
+   * loading, at the cost of slower searches until the segments are
+   * merged. The default is Lucene's default of 10.
+   * @since 1.3
+   */
+  public void setMergeFactor(int merge_factor) {
+    this.merge_factor = merge_factor;
+  }
+
+  public int getMergeFactor() {
+    return merge_factor;
+  }
+
   /**
    * Returns true iff the Lucene index is held in memory rather than
    * on disk.
@@ -67,11 +226,8 @@ public class LuceneDatabase extends IndexerDatabase {
    * Add the record to the index.
    */
   public void index(Record record) {
-    if (directory == null)
-      init();
-
-    if (!overwrite && path != null)
-      delete(record);
+    if (!initialized)
+      open();
 
     Document doc = new Document();
     for (String propname : record.getProperties()) {
@@ -116,18 +272,16 @@ public class LuceneDatabase extends IndexerDatabase {
     }
 
     try {
-      iwriter.addDocument(doc);
-    } catch (IOException e) {
-      throw new DukeException(e);
-    }
-  }
-
-  private void delete(Record record) {
-    // removes previous copy of this record from the index, if it's there
-    Property idprop = config.getIdentityProperties().iterator().next();
-    Query q = parseTokens(idprop.getName(), record.getValue(idprop.getName()));
-    try {
-      iwriter.deleteDocuments(q);
+      // replace the previous copy of this record, if it's there
+      String id = null;
+      if (!overwrite && path != null) {
+        Property idprop = config.getIdentityProperties().iterator().next();
+        id = record.getValue(idprop.getName());
+        if (id != null)
+          iwriter.updateDocument(new Term(idprop.getName(), id), doc);
+      }
+      if (id == null)
+        iwriter.addDocument(doc);
     } catch (IOException e) {
       throw new DukeException(e);
     }
@@ -141,17 +295,18 @@ public class LuceneDatabase extends IndexerDatabase {
       return;
 
     try {
-      if (reader != null)
-        reader.close();
-
       // it turns out that IndexWriter.optimize actually slows
       // searches down, because it invalidates the cache. therefore
       // not calling it any more.
       // http://www.searchworkings.org/blog/-/blogs/uwe-says%3A-is-your-reader-atomic
       // iwriter.optimize();
 
-      iwriter.commit();
-      openSearchers();
+      long now = System.currentTimeMillis();
+      if (!nrt || now - lastcommit >= commit_interval * 1000L) {
+        iwriter.commit();
+        lastcommit = now;
+      }
+      refreshSearchers();
     } catch (IOException e) {
       throw new DukeException(e);
     }
@@ -178,14 +333,24 @@ public class LuceneDatabase extends IndexerDatabase {
   public String toString() {
     return "LuceneDatabase, max-search-hits: " + max_search_hits +
         ", min-relevance: " + min_relevance + ", fuzzy=" + fuzzy_search +
+        (fuzzy_search ? " (max-edits: " + fuzzy_max_edits +
+         ", prefix-length: " + fuzzy_prefix_length + ")" : "") +
+        (nrt ? ", nrt, commit-interval: " + commit_interval : "") +
         "\n  " + directory;
   }
 
   // ----- INTERNALS
 
+  // index() may be called from many threads, so opening must be safe
+  private synchronized void open() {
+    if (!initialized)
+      init();
+  }
+
   protected void init() {
     try {
       openIndexes(overwrite);
+      lastcommit = System.currentTimeMillis();
       openSearchers();
       super.init();
       initialized = true;
@@ -213,6 +378,14 @@ public class LuceneDatabase extends IndexerDatabase {
             new IndexWriterConfig(Version.LUCENE_CURRENT, analyzer);
         cfg.setOpenMode(overwrite ? IndexWriterConfig.OpenMode.CREATE :
             IndexWriterConfig.OpenMode.APPEND);
+        if (ram_buffer_size > 0)
+          cfg.setRAMBufferSizeMB(ram_buffer_size);
+        if (merge_factor > 0) {
+          TieredMergePolicy policy = new TieredMergePolicy();
+          policy.setSegmentsPerTier(merge_factor);
+          policy.setMaxMergeAtOnce(merge_factor);
+          cfg.setMergePolicy(policy);
+        }
         iwriter = new IndexWriter(directory, cfg);
         iwriter.commit(); // so that the searcher doesn't fail
       } catch (IndexNotFoundException e) {
@@ -229,8 +402,80 @@ public class LuceneDatabase extends IndexerDatabase {
   }
 
   public void openSearchers() throws IOException {
-    reader = DirectoryReader.open(directory);
+    if (nrt)
+      reader = DirectoryReader.open(iwriter, true);
+    else
+      reader = DirectoryReader.open(directory);
     searcher = new IndexSearcher(reader);
+    if (cache_records)
+      cache = new RecordCache(reader, null, config.getRecordSchema());
+    clearFuzzyCache();
+  }
+
+  // reopens only the segments that have changed, which is much
+  // cheaper than opening a new reader. in near-real-time mode the
+  // changes are read from the writer, even if not yet committed.
+  private void refreshSearchers() throws IOException {
+    DirectoryReader newreader;
+    if (nrt)
+      newreader = DirectoryReader.openIfChanged((DirectoryReader) reader,
+                                                iwriter, true);
+    else
+      newreader = DirectoryReader.openIfChanged((DirectoryReader) reader);
+
+    if (newreader != null) {
+      reader.close();
+      reader = newreader;
+      searcher = new IndexSearcher(reader);
+      if (cache_records)
+        cache = new RecordCache(reader, cache, config.getRecordSchema());
+      clearFuzzyCache(); // the terms in the index have changed
+    }
+  }
+
+  // rewritten queries depend on the terms in the index and the fuzzy
+  // settings, so must be thrown away when either changes
+  private void clearFuzzyCache() {
+    synchronized (fuzzycache) {
+      fuzzycache.clear();
+    }
+  }
+
+  /**
+   * Fuzzy queries are expensive to rewrite, since that means running
+   * a Levenshtein automaton over the term dictionary, and lookup
+   * values tend to repeat. So we cache the rewritten queries until
+   * the reader changes.
+   */
+  protected Query makeFuzzyQuery(Term term) {
+    if (searcher == null)
+      open();
+
+    Query query;
+    synchronized (fuzzycache) {
+      query = fuzzycache.get(term);
+    }
+    if (query != null)
+      return query;
+
+    try {
+      int edits = fuzzy_max_edits;
+      if (fuzzy_chars_per_edit > 0)
+        edits = Math.min(edits, term.text().length() / fuzzy_chars_per_edit);
+      if (edits == 0)
+        query = new TermQuery(term);
+      else
+        query = searcher.rewrite(new FuzzyQuery(term, edits,
+                                                fuzzy_prefix_length,
+                                                fuzzy_max_expansions,
+                                                FuzzyQuery.defaultTranspositions));
+    } catch (IOException e) {
+      throw new DukeException(e);
+    }
+    synchronized (fuzzycache) {
+      fuzzycache.put(term, query);
+    }
+    return query;
   }
 
 
@@ -259,8 +504,65 @@ public class LuceneDatabase extends IndexerDatabase {
 
     @Override
     protected Record toRecord(ScoreDoc hit) throws Exception {
+      if (cache != null)
+        return cache.getRecord(hit.doc);
       return new DocumentRecord(hit.doc,
           searcher.doc(hit.doc));
     }
   }
+
+  /**
+   * Holds the records in the index, by document number, filled in as
+   * the records are found. There is one array per index segment, and
+   * since segments never change, the arrays of segments which are
+   * still there are carried over when the reader is refreshed.
+   */
+  static class RecordCache {
+    private List<AtomicReaderContext> leaves;
+    private Object[] keys;  // core cache key of each segment
+    private AtomicReferenceArray<Record>[] records;
+    private RecordSchema schema;
+
+    public RecordCache(IndexReader reader, RecordCache previous,
+                       RecordSchema schema) {
+      this.leaves = reader.leaves();
+      this.schema = schema;
+      this.keys = new Object[leaves.size()];
+      this.records = new AtomicReferenceArray[leaves.size()];
+
+      for (int ix = 0; ix < leaves.size(); ix++) {
+        AtomicReader segment = leaves.get(ix).reader();
+        keys[ix] = segment.getCoreCacheKey();
+        if (previous != null)
+          records[ix] = previous.getRecords(keys[ix]);
+        if (records[ix] == null)
+          records[ix] = new AtomicReferenceArray(segment.maxDoc());
+      }
+    }
+
+    public Record getRecord(int docid) throws IOException {
+      int ix = ReaderUtil.subIndex(docid, leaves);
+      AtomicReaderContext leaf = leaves.get(ix);
+      int localid = docid - leaf.docBase;
+
+      Record record = records[ix].get(localid);
+      if (record == null) {
+        // if two threads get here at the same time they'll make
+        // identical records, so it doesn't matter who wins
+        SchemaRecord r = new SchemaRecord(schema);
+        for (IndexableField f : leaf.reader().document(localid).getFields())
+          r.addValue(f.name(), f.stringValue());
+        records[ix].set(localid, r);
+        record = r;
+      }
+      return record;
+    }
+
+    private AtomicReferenceArray<Record> getRecords(Object key) {
+      for (int ix = 0; ix < keys.length; ix++)
+        if (keys[ix] == key)
+          return records[ix];
+      return null;
+    }
+  }
 }
\ No newline at end of file
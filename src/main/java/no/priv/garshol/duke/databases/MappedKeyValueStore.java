@@ -0,0 +1,910 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.util.Set;
+import java.util.Map;
+import java.util.List;
+import java.util.BitSet;
+import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.DataOutputStream;
+import java.io.RandomAccessFile;
+import java.io.OutputStreamWriter;
+import java.io.BufferedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.CompactRecord;
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * A persistent key value store which keeps its data in immutable
+ * segment files in a directory, and reads them through memory
+ * mapping, so that the index can be larger than the heap and survive
+ * restarts.
+ *
+ * <p>Changes are held in memory until commit(), which writes them
+ * out as a new segment (one file each for records, token postings,
+ * and external IDs), forces the files to disk, and then replaces the
+ * manifest listing the live segments. Files are never modified once
+ * written, so a crash at any point leaves the last committed state
+ * intact. To keep lookups fast, segments are merged when there are
+ * too many of them.
+ *
+ * <p>When a record is indexed again under an existing external ID the
+ * old version is marked as deleted, and no longer found. Each segment
+ * keeps a bitmap of its deleted records, so that deletions cost one
+ * bit per record in memory.
+ * @since 1.3
+ */
+public class MappedKeyValueStore implements KeyValueStore {
+  private File dir;
+  private boolean overwrite;
+  private volatile boolean open;
+  private long nextid;                // next available id
+  private int nextsegment;            // number of next segment file
+  private List<Segment> segments;     // oldest first
+  // changes since last commit
+  private long firstnew;              // id of first uncommitted record
+  private List<Record> newrecords;
+  private Map<String, Bucket> newtokens;  // propname + \0 + token -> ids
+  private Map<String, Long> newids;       // extid -> internal id
+  private List<Long> newdeleted;          // replaced since last commit
+  private BitSet newdeletedbits;          // replaced uncommitted records
+
+  private static final String MANIFEST = "manifest";
+  private static final String PREFIX = "seg";
+  // merge when this many segments of the same level have built up
+  private static final int MERGE_FACTOR = 8;
+  // offsets in segment files are ints, so can't go over this
+  private static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+  // same limit as in Bucket
+  private static final int MAX_BUCKET_SIZE = 1000000;
+  private static final Charset UTF8 = Charset.forName("utf-8");
+
+  public MappedKeyValueStore() {
+  }
+
+  public MappedKeyValueStore(String path) {
+    setPath(path);
+  }
+
+  /**
+   * Sets the directory the segment files are kept in. It is created
+   * if it does not exist.
+   */
+  public void setPath(String path) {
+    this.dir = new File(path);
+  }
+
+  public String getPath() {
+    return dir == null ? null : dir.getPath();
+  }
+
+  /**
+   * If set, any existing data in the directory is deleted when the
+   * store is opened. Must be set before the store is used.
+   */
+  public void setOverwrite(boolean overwrite) {
+    this.overwrite = overwrite;
+  }
+
+  public boolean isInMemory() {
+    return false;
+  }
+
+  public synchronized void commit() {
+    init();
+    if (newrecords.isEmpty() && newids.isEmpty() && newdeleted.isEmpty() &&
+        nextid == firstnew)
+      return; // nothing to do
+
+    try {
+      List<Segment> obsolete = new ArrayList();
+      segments.add(writeDelta());
+      while (shouldMerge())
+        obsolete.addAll(merge());
+
+      writeManifest();
+      for (Segment segment : obsolete)
+        segment.delete();
+    } catch (IOException e) {
+      throw new DukeException("Couldn't commit to " + dir, e);
+    }
+
+    firstnew = nextid;
+    newrecords = new ArrayList();
+    newtokens = new HashMap();
+    newids = new HashMap();
+    newdeleted = new ArrayList();
+    newdeletedbits = new BitSet();
+  }
+
+  public synchronized void close() {
+    if (!open)
+      return;
+    commit();
+    segments = null; // mappings are released when GC-ed
+    open = false;
+  }
+
+  public synchronized long makeNewRecordId() {
+    init();
+    return nextid++;
+  }
+
+  public void registerRecord(long id, Record record) {
+    init();
+    if (id < firstnew)
+      throw new DukeException("Can't modify committed record " + id);
+
+    int ix = (int) (id - firstnew);
+    while (newrecords.size() <= ix)
+      newrecords.add(null);
+    newrecords.set(ix, record);
+  }
+
+  public void registerId(long id, String extid) {
+    init();
+    long previous = lookupId(extid);
+    if (previous != -1 && previous != id) {
+      // this record replaces an older version
+      markDeleted(previous);
+      newdeleted.add(previous);
+    }
+    newids.put(extid, id);
+  }
+
+  public void registerToken(long id, String propname, String token) {
+    init();
+    String key = makeKey(propname, token);
+    Bucket bucket = newtokens.get(key);
+    if (bucket == null) {
+      bucket = new Bucket();
+      newtokens.put(key, bucket);
+    }
+    bucket.add(id);
+  }
+
+  public Record findRecordById(String extid) {
+    init();
+    long id = lookupId(extid);
+    if (id == -1)
+      return null;
+    return findRecordById(id);
+  }
+
+  public Record findRecordById(long id) {
+    init();
+    if (id >= firstnew) {
+      int ix = (int) (id - firstnew);
+      if (ix >= newrecords.size() || newdeletedbits.get(ix))
+        return null;
+      return newrecords.get(ix);
+    }
+
+    Segment segment = findSegment(id);
+    if (segment == null || segment.isDeleted(id))
+      return null;
+    return segment.getRecord(id);
+  }
+
+  public Bucket lookupToken(String propname, String token) {
+    init();
+    String keystr = makeKey(propname, token);
+    byte[] key = keystr.getBytes(UTF8);
+
+    // segments hold increasing id ranges, and uncommitted records come
+    // after them all, so concatenating the postings keeps them sorted
+    List<long[]> parts = new ArrayList();
+    int total = 0;
+    for (Segment segment : segments) {
+      long[] ids = segment.lookupToken(key);
+      if (ids != null) {
+        total += removeDeleted(ids, segment.deleted, segment.firstid);
+        parts.add(ids);
+      }
+    }
+    Bucket bucket = newtokens.get(keystr);
+    if (bucket != null) {
+      if (bucket.records == null)
+        return null; // oversized
+      long[] ids = new long[bucket.nextfree];
+      System.arraycopy(bucket.records, 0, ids, 0, ids.length);
+      total += removeDeleted(ids, newdeletedbits, firstnew);
+      parts.add(ids);
+    }
+
+    if (total == 0 || total > MAX_BUCKET_SIZE)
+      return null;
+
+    long[] ids = new long[total];
+    int count = 0;
+    for (long[] part : parts)
+      for (int ix = 0; ix < part.length && part[ix] != -1; ix++)
+        ids[count++] = part[ix];
+    return new Bucket(ids, count);
+  }
+
+  public String toString() {
+    return "MappedKeyValueStore(" + dir + ")";
+  }
+
+  // ===== INTERNALS
+
+  private void init() {
+    if (!open)
+      openStore();
+  }
+
+  private synchronized void openStore() {
+    if (open)
+      return;
+    if (dir == null)
+      throw new DukeException("No path set for MappedKeyValueStore");
+
+    segments = new ArrayList();
+    newrecords = new ArrayList();
+    newtokens = new HashMap();
+    newids = new HashMap();
+    newdeleted = new ArrayList();
+    newdeletedbits = new BitSet();
+    nextid = 0;
+    nextsegment = 0;
+
+    try {
+      if (!dir.exists() && !dir.mkdirs())
+        throw new DukeException("Couldn't create directory " + dir);
+      if (overwrite)
+        removeFiles(new HashSet(), true);
+
+      File manifest = new File(dir, MANIFEST);
+      if (manifest.exists())
+        readManifest(manifest);
+
+      // remove files left behind by interrupted commits
+      Set<String> live = new HashSet();
+      for (Segment segment : segments)
+        live.add(segment.name);
+      removeFiles(live, false);
+    } catch (IOException e) {
+      throw new DukeException("Couldn't open " + dir, e);
+    }
+
+    firstnew = nextid;
+    open = true;
+  }
+
+  private void readManifest(File manifest) throws IOException {
+    BufferedReader in = new BufferedReader(new FileReader(manifest));
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        String[] parts = line.trim().split(" ");
+        if (parts[0].equals("nextid"))
+          nextid = Long.parseLong(parts[1]);
+        else if (parts[0].equals("nextsegment"))
+          nextsegment = Integer.parseInt(parts[1]);
+        else if (parts[0].equals("segment")) {
+          Segment segment = new Segment(parts[1], Long.parseLong(parts[2]),
+                                        Integer.parseInt(parts[3]),
+                                        Integer.parseInt(parts[4]));
+          segment.open();
+          segments.add(segment);
+        } else if (!line.trim().equals(""))
+          throw new DukeException("Bad line in " + manifest + ": " + line);
+      }
+    } finally {
+      in.close();
+    }
+
+    // deletes are stored in the segment that made them, but apply to
+    // the segments holding the deleted records
+    for (Segment segment : segments)
+      for (int ix = 0; ix < segment.deletecount; ix++)
+        markDeleted(segment.getDeleted(ix));
+  }
+
+  // writes the manifest to a temporary file, forces it to disk, then
+  // renames it into place, so there is always a complete manifest
+  private void writeManifest() throws IOException {
+    File tmp = new File(dir, MANIFEST + ".tmp");
+    FileOutputStream stream = new FileOutputStream(tmp);
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(stream, UTF8));
+    out.println("nextid " + nextid);
+    out.println("nextsegment " + nextsegment);
+    for (Segment segment : segments)
+      out.println("segment " + segment.name + " " + segment.firstid + " " +
+                  segment.count + " " + segment.level);
+    out.flush();
+    stream.getFD().sync();
+    out.close();
+
+    File manifest = new File(dir, MANIFEST);
+    if (!tmp.renameTo(manifest)) {
+      // some platforms won't rename over an existing file
+      manifest.delete();
+      if (!tmp.renameTo(manifest))
+        throw new DukeException("Couldn't replace " + manifest);
+    }
+  }
+
+  // removes all segment files which don't belong to a live segment,
+  // as well as the manifest, if requested
+  private void removeFiles(Set<String> live, boolean manifest) {
+    for (File file : dir.listFiles()) {
+      String name = file.getName();
+      int pos = name.indexOf('.');
+      if (name.equals(MANIFEST + ".tmp") ||
+          (manifest && name.equals(MANIFEST)) ||
+          (name.startsWith(PREFIX) && pos != -1 &&
+           !live.contains(name.substring(0, pos))))
+        file.delete();
+    }
+  }
+
+  private long lookupId(String extid) {
+    Long id = newids.get(extid);
+    if (id != null)
+      return id;
+
+    byte[] key = extid.getBytes(UTF8);
+    for (int ix = segments.size() - 1; ix >= 0; ix--) {
+      long found = segments.get(ix).lookupId(key);
+      if (found != -1)
+        return found;
+    }
+    return -1;
+  }
+
+  private void markDeleted(long id) {
+    if (id >= firstnew && open)
+      newdeletedbits.set((int) (id - firstnew));
+    else {
+      Segment segment = findSegment(id);
+      if (segment != null)
+        segment.deleted.set((int) (id - segment.firstid));
+    }
+  }
+
+  private boolean isDeleted(long id) {
+    if (id >= firstnew)
+      return newdeletedbits.get((int) (id - firstnew));
+    Segment segment = findSegment(id);
+    return segment == null || segment.isDeleted(id);
+  }
+
+  // overwrites the deleted ids in the array with -1, moving the
+  // remaining ones to the front, and returns the number remaining
+  private static int removeDeleted(long[] ids, BitSet deleted, long firstid) {
+    if (deleted.isEmpty())
+      return ids.length;
+    int count = 0;
+    for (int ix = 0; ix < ids.length; ix++)
+      if (!deleted.get((int) (ids[ix] - firstid)))
+        ids[count++] = ids[ix];
+    for (int ix = count; ix < ids.length; ix++)
+      ids[ix] = -1;
+    return count;
+  }
+
+  private Segment findSegment(long id) {
+    int low = 0;
+    int high = segments.size() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      Segment segment = segments.get(mid);
+      if (id < segment.firstid)
+        high = mid - 1;
+      else if (id >= segment.firstid + segment.count)
+        low = mid + 1;
+      else
+        return segment;
+    }
+    return null;
+  }
+
+  private static String makeKey(String propname, String token) {
+    return propname + '\u0000' + token;
+  }
+
+  // writes out the uncommitted changes as a new segment
+  private Segment writeDelta() throws IOException {
+    SegmentWriter writer = new SegmentWriter(PREFIX + (nextsegment++));
+    int count = (int) (nextid - firstnew);
+    for (int ix = 0; ix < count; ix++) {
+      Record record = ix < newrecords.size() ? newrecords.get(ix) : null;
+      if (newdeletedbits.get(ix))
+        record = null;
+      writer.addRecord(record);
+    }
+
+    Map<byte[], Bucket> tokens = new TreeMap(BYTE_ORDER);
+    for (Map.Entry<String, Bucket> entry : newtokens.entrySet())
+      tokens.put(entry.getKey().getBytes(UTF8), entry.getValue());
+    for (Map.Entry<byte[], Bucket> entry : tokens.entrySet()) {
+      Bucket bucket = entry.getValue();
+      if (bucket.records == null)
+        continue; // oversized, so not useful for lookup
+      bucket.sort();
+      writer.addToken(entry.getKey(), bucket.records, bucket.nextfree);
+    }
+
+    Map<byte[], Long> ids = new TreeMap(BYTE_ORDER);
+    for (Map.Entry<String, Long> entry : newids.entrySet())
+      if (!newdeletedbits.get((int) (entry.getValue() - firstnew)))
+        ids.put(entry.getKey().getBytes(UTF8), entry.getValue());
+    for (Map.Entry<byte[], Long> entry : ids.entrySet())
+      writer.addId(entry.getKey(), entry.getValue());
+
+    for (Long id : newdeleted)
+      writer.addDeleted(id);
+
+    // the uncommitted records become the new segment
+    Segment segment = writer.finish(firstnew, 0);
+    segment.deleted = newdeletedbits;
+    return segment;
+  }
+
+  // merging is done in levels, so that each record is rewritten only
+  // a logarithmic number of times
+  private boolean shouldMerge() {
+    int size = segments.size();
+    if (size < MERGE_FACTOR)
+      return false;
+
+    int level = segments.get(size - 1).level;
+    long bytes = 0;
+    for (int ix = size - MERGE_FACTOR; ix < size; ix++) {
+      Segment segment = segments.get(ix);
+      if (segment.level != level)
+        return false;
+      bytes += segment.getSize();
+    }
+    return bytes < MAX_SEGMENT_SIZE;
+  }
+
+  // merges the last MERGE_FACTOR segments into one, and returns the
+  // segments which were replaced
+  private List<Segment> merge() throws IOException {
+    int size = segments.size();
+    List<Segment> merging =
+      new ArrayList(segments.subList(size - MERGE_FACTOR, size));
+    Segment first = merging.get(0);
+    Segment last = merging.get(merging.size() - 1);
+    SegmentWriter writer = new SegmentWriter(PREFIX + (nextsegment++));
+
+    // records, with deleted ones dropped
+    for (long id = first.firstid; id < last.firstid + last.count; id++)
+      writer.addRecord(isDeleted(id) ? null : findSegment(id).getRecord(id));
+
+    // tokens. the keys are merged in order, and since the segments
+    // hold increasing id ranges the postings can just be concatenated
+    int[] positions = new int[merging.size()];
+    long[] buffer = new long[16];
+    byte[] key;
+    while ((key = smallestKey(merging, positions, true)) != null) {
+      int count = 0;
+      for (int ix = 0; ix < merging.size(); ix++) {
+        Segment segment = merging.get(ix);
+        if (positions[ix] >= segment.tokencount ||
+            BYTE_ORDER.compare(key, segment.getTokenKey(positions[ix])) != 0)
+          continue;
+
+        long[] ids = segment.getPostings(positions[ix]++);
+        int live = removeDeleted(ids, segment.deleted, segment.firstid);
+        if (count + live > buffer.length) {
+          long[] newbuf = new long[Math.max(buffer.length * 2, count + live)];
+          System.arraycopy(buffer, 0, newbuf, 0, count);
+          buffer = newbuf;
+        }
+        System.arraycopy(ids, 0, buffer, count, live);
+        count += live;
+      }
+      if (count > 0 && count <= MAX_BUCKET_SIZE)
+        writer.addToken(key, buffer, count);
+    }
+
+    // external ids. newer segments override older ones
+    positions = new int[merging.size()];
+    while ((key = smallestKey(merging, positions, false)) != null) {
+      long id = -1;
+      for (int ix = 0; ix < merging.size(); ix++) {
+        Segment segment = merging.get(ix);
+        if (positions[ix] < segment.idcount &&
+            BYTE_ORDER.compare(key, segment.getIdKey(positions[ix])) == 0)
+          id = segment.getId(positions[ix]++);
+      }
+      if (!isDeleted(id))
+        writer.addId(key, id);
+    }
+
+    // deletes which apply to older segments must be kept
+    for (Segment segment : merging)
+      for (int ix = 0; ix < segment.deletecount; ix++)
+        if (segment.getDeleted(ix) < first.firstid)
+          writer.addDeleted(segment.getDeleted(ix));
+
+    Segment merged = writer.finish(first.firstid, first.level + 1);
+    segments.subList(size - MERGE_FACTOR, size).clear();
+    segments.add(merged);
+    return merging;
+  }
+
+  private static byte[] smallestKey(List<Segment> segments, int[] positions,
+                                    boolean tokens) {
+    byte[] smallest = null;
+    for (int ix = 0; ix < segments.size(); ix++) {
+      Segment segment = segments.get(ix);
+      int count = tokens ? segment.tokencount : segment.idcount;
+      if (positions[ix] >= count)
+        continue;
+      byte[] key = tokens ? segment.getTokenKey(positions[ix]) :
+        segment.getIdKey(positions[ix]);
+      if (smallest == null || BYTE_ORDER.compare(key, smallest) < 0)
+        smallest = key;
+    }
+    return smallest;
+  }
+
+  // keys are compared as unsigned bytes, the same way as in the files
+  private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+    public int compare(byte[] k1, byte[] k2) {
+      int length = Math.min(k1.length, k2.length);
+      for (int ix = 0; ix < length; ix++) {
+        int diff = (k1[ix] & 0xFF) - (k2[ix] & 0xFF);
+        if (diff != 0)
+          return diff;
+      }
+      return k1.length - k2.length;
+    }
+  };
+
+  // ===== SEGMENTS
+
+  // each file is a series of entries, followed by a table of int
+  // offsets to the entries, followed by an int giving the number of
+  // entries. the id file additionally has a list of deleted ids at
+  // the very end, followed by its length.
+  //
+  // record entry:   int pairs (-1 if no record), then property/value pairs
+  // token entry:    key, int count, int bytes, then varint id deltas
+  // id entry:       key, long id
+  // strings/keys:   int length, then UTF-8 bytes
+
+  /**
+   * An immutable, committed segment, with its files mapped into
+   * memory. All reads use absolute positions, so that many threads
+   * can read at the same time.
+   */
+  class Segment {
+    private String name;
+    private long firstid;
+    private int count;      // number of record ids in the segment
+    private int level;      // number of times merged
+    private ByteBuffer records;
+    private ByteBuffer tokens;
+    private ByteBuffer ids;
+    private int tokencount;
+    private int tokentable; // position of offset table
+    private int idcount;
+    private int idtable;
+    private int deletecount; // deletes made by this segment
+    private int deletetable; // position of deleted ids
+    private BitSet deleted;  // records in this segment which are deleted
+
+    public Segment(String name, long firstid, int count, int level) {
+      this.name = name;
+      this.firstid = firstid;
+      this.count = count;
+      this.level = level;
+    }
+
+    public void open() throws IOException {
+      records = map(getFile(".rec"));
+      tokens = map(getFile(".tok"));
+      ids = map(getFile(".ext"));
+
+      tokencount = tokens.getInt(tokens.limit() - 4);
+      tokentable = tokens.limit() - 4 - (tokencount * 4);
+
+      deletecount = ids.getInt(ids.limit() - 4);
+      deletetable = ids.limit() - 4 - (deletecount * 8);
+      idcount = ids.getInt(deletetable - 4);
+      idtable = deletetable - 4 - (idcount * 4);
+      deleted = new BitSet();
+    }
+
+    public boolean isDeleted(long id) {
+      return deleted.get((int) (id - firstid));
+    }
+
+    public long getDeleted(int ix) {
+      return ids.getLong(deletetable + ix * 8);
+    }
+
+    public Record getRecord(long id) {
+      int pos = records.getInt(records.limit() - 4 - (count * 4) +
+                               (int) (id - firstid) * 4);
+      int pairs = records.getInt(pos);
+      if (pairs == -1)
+        return null;
+
+      pos += 4;
+      String[] s = new String[pairs * 2];
+      for (int ix = 0; ix < s.length; ix++) {
+        int length = records.getInt(pos);
+        s[ix] = readString(records, pos + 4, length);
+        pos += 4 + length;
+      }
+      return new CompactRecord(s.length, s);
+    }
+
+    public long[] lookupToken(byte[] key) {
+      int ix = find(tokens, tokentable, tokencount, key);
+      if (ix == -1)
+        return null;
+      return getPostings(ix);
+    }
+
+    public long lookupId(byte[] key) {
+      int ix = find(ids, idtable, idcount, key);
+      if (ix == -1)
+        return -1;
+      return getId(ix);
+    }
+
+    public byte[] getTokenKey(int ix) {
+      return readKey(tokens, tokens.getInt(tokentable + ix * 4));
+    }
+
+    public long[] getPostings(int ix) {
+      int pos = tokens.getInt(tokentable + ix * 4);
+      pos += 4 + tokens.getInt(pos); // skip key
+      long[] postings = new long[tokens.getInt(pos)];
+      pos += 8;
+
+      long id = 0;
+      for (int i = 0; i < postings.length; i++) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+          b = tokens.get(pos++);
+          value |= (long) (b & 0x7F) << shift;
+          shift += 7;
+        } while (b < 0);
+        id += value;
+        postings[i] = id;
+      }
+      return postings;
+    }
+
+    public byte[] getIdKey(int ix) {
+      return readKey(ids, ids.getInt(idtable + ix * 4));
+    }
+
+    public long getId(int ix) {
+      int pos = ids.getInt(idtable + ix * 4);
+      return ids.getLong(pos + 4 + ids.getInt(pos));
+    }
+
+    public long getSize() {
+      return records.limit() + tokens.limit() + ids.limit();
+    }
+
+    public void delete() {
+      getFile(".rec").delete();
+      getFile(".tok").delete();
+      getFile(".ext").delete();
+    }
+
+    private File getFile(String suffix) {
+      return new File(dir, name + suffix);
+    }
+
+    // binary search for the key in the table of entry offsets
+    private int find(ByteBuffer buf, int table, int count, byte[] key) {
+      int low = 0;
+      int high = count - 1;
+      while (low <= high) {
+        int mid = (low + high) >>> 1;
+        int cmp = compareKey(buf, buf.getInt(table + mid * 4), key);
+        if (cmp < 0)
+          low = mid + 1;
+        else if (cmp > 0)
+          high = mid - 1;
+        else
+          return mid;
+      }
+      return -1;
+    }
+
+    private int compareKey(ByteBuffer buf, int pos, byte[] key) {
+      int length = buf.getInt(pos);
+      pos += 4;
+      int common = Math.min(length, key.length);
+      for (int ix = 0; ix < common; ix++) {
+        int diff = (buf.get(pos + ix) & 0xFF) - (key[ix] & 0xFF);
+        if (diff != 0)
+          return diff;
+      }
+      return length - key.length;
+    }
+
+    private byte[] readKey(ByteBuffer buf, int pos) {
+      byte[] key = new byte[buf.getInt(pos)];
+      for (int ix = 0; ix < key.length; ix++)
+        key[ix] = buf.get(pos + 4 + ix);
+      return key;
+    }
+
+    private String readString(ByteBuffer buf, int pos, int length) {
+      byte[] bytes = new byte[length];
+      for (int ix = 0; ix < length; ix++)
+        bytes[ix] = buf.get(pos + ix);
+      return new String(bytes, UTF8);
+    }
+
+    private ByteBuffer map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        FileChannel channel = raf.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      } finally {
+        raf.close(); // the mapping stays valid
+      }
+    }
+  }
+
+  /**
+   * Writes the files for a new segment. Tokens and IDs must be added
+   * in key order.
+   */
+  class SegmentWriter {
+    private String name;
+    private Table records;
+    private Table tokens;
+    private Table ids;
+    private List<Long> deletes;
+
+    public SegmentWriter(String name) throws IOException {
+      this.name = name;
+      this.records = new Table(new File(dir, name + ".rec"));
+      this.tokens = new Table(new File(dir, name + ".tok"));
+      this.ids = new Table(new File(dir, name + ".ext"));
+      this.deletes = new ArrayList();
+    }
+
+    public void addRecord(Record record) throws IOException {
+      DataOutputStream out = records.startEntry();
+      if (record == null) {
+        out.writeInt(-1);
+        return;
+      }
+
+      List<String> pairs = new ArrayList();
+      for (String prop : record.getProperties())
+        for (String value : record.getValues(prop)) {
+          pairs.add(prop);
+          pairs.add(value);
+        }
+      out.writeInt(pairs.size() / 2);
+      for (String s : pairs)
+        writeBytes(out, s.getBytes(UTF8));
+    }
+
+    public void addToken(byte[] key, long[] postings, int count)
+      throws IOException {
+      // encode first, so we know the length
+      byte[] bytes = new byte[count * 10];
+      int length = 0;
+      long previous = 0;
+      for (int ix = 0; ix < count; ix++) {
+        long value = postings[ix] - previous;
+        previous = postings[ix];
+        while ((value & ~0x7FL) != 0) {
+          bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+          value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+      }
+
+      DataOutputStream out = tokens.startEntry();
+      writeBytes(out, key);
+      out.writeInt(count);
+      out.writeInt(length);
+      out.write(bytes, 0, length);
+    }
+
+    public void addId(byte[] key, long id) throws IOException {
+      DataOutputStream out = ids.startEntry();
+      writeBytes(out, key);
+      out.writeLong(id);
+    }
+
+    public void addDeleted(long id) {
+      deletes.add(id);
+    }
+
+    public Segment finish(long firstid, int level) throws IOException {
+      int count = records.finish();
+      tokens.finish();
+      ids.finish();
+      for (Long id : deletes)
+        ids.out.writeLong(id);
+      ids.out.writeInt(deletes.size());
+
+      records.close();
+      tokens.close();
+      ids.close();
+
+      Segment segment = new Segment(name, firstid, count, level);
+      segment.open();
+      return segment;
+    }
+
+    private void writeBytes(DataOutputStream out, byte[] bytes)
+      throws IOException {
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  /**
+   * One segment file being written.
+   */
+  static class Table {
+    private File file;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+    private int[] offsets;
+    private int count;
+
+    public Table(File file) throws IOException {
+      this.file = file;
+      this.stream = new FileOutputStream(file);
+      this.out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+      this.offsets = new int[256];
+    }
+
+    public DataOutputStream startEntry() {
+      // DataOutputStream.size() stops counting at 2GB
+      if (out.size() >= MAX_SEGMENT_SIZE)
+        throw new DukeException("Segment file " + file + " too large");
+
+      if (count >= offsets.length) {
+        int[] newbuf = new int[offsets.length * 2];
+        System.arraycopy(offsets, 0, newbuf, 0, count);
+        offsets = newbuf;
+      }
+      offsets[count++] = out.size();
+      return out;
+    }
+
+    public int finish() throws IOException {
+      for (int ix = 0; ix < count; ix++)
+        out.writeInt(offsets[ix]);
+      out.writeInt(count);
+      return count;
+    }
+
+    // forces the file to disk before closing it
+    public void close() throws IOException {
+      out.flush();
+      stream.getFD().sync();
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,360 @@
+
+package no.priv.garshol.duke.databases;
+
+import java.util.List;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.priv.garshol.duke.Filter;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.ScoredSearch;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.DukeConfigException;
+import no.priv.garshol.duke.utils.ThreadUtils.DaemonFactory;
+import static no.priv.garshol.duke.utils.ThreadUtils.waitFor;
+
+/**
+ * A database which spreads the records over a number of other
+ * databases (shards), by hashing the record ID. Each shard is indexed
+ * on its own thread, and searches go to all the shards in parallel,
+ * so both index size and search throughput can grow beyond what a
+ * single database can handle.
+ *
+ * <p>Since indexing happens in the background, records are only
+ * guaranteed to be found after commit(). The shards only ever see
+ * one indexing thread at a time, so they need not be thread-safe for
+ * indexing.
+ *
+ * <p>If all the shards implement ScoredSearch, as LuceneDatabase
+ * does, the candidates from the shards are merged by relevance score,
+ * and the best ones up to max-search-hits with at least min-relevance
+ * are kept, so that the result is close to what a single index would
+ * give. (Scores from different shards are only approximately
+ * comparable, since term statistics are per shard.) Otherwise the
+ * candidates are merged by interleaving the results from each shard,
+ * which are ranked by relevance. Each shard also applies its own
+ * max-search-hits and min-relevance.
+ * @since 1.3
+ */
+public class ShardedDatabase implements Database {
+  private List<Database> shards;
+  private Configuration config;
+  private int max_search_hits;
+  private float min_relevance;
+  private Shard[] writers;
+  private ExecutorService searchers;
+  private AtomicInteger nextshard; // for records with no ID
+  // records are passed to the shard threads in chunks of this size
+  private static final int CHUNK_SIZE = 256;
+  // max number of chunks waiting to be indexed per shard
+  private static final int MAX_PENDING = 16;
+
+  public ShardedDatabase() {
+    this.shards = new ArrayList();
+    this.max_search_hits = Integer.MAX_VALUE;
+    this.nextshard = new AtomicInteger();
+  }
+
+  /**
+   * Sets the databases to spread the records over. All records with
+   * the same ID always go to the same shard, so the shards must not
+   * be changed once records have been indexed.
+   */
+  public void setShards(Collection<Database> shards) {
+    this.shards = new ArrayList(shards);
+    if (config != null)
+      setConfiguration(config);
+  }
+
+  public Collection<Database> getShards() {
+    return shards;
+  }
+
+  /**
+   * Sets the maximum number of candidates returned from a search,
+   * across all the shards. By default there is no limit beyond what
+   * the shards impose.
+   */
+  public void setMaxSearchHits(int max_search_hits) {
+    this.max_search_hits = max_search_hits;
+  }
+
+  public int getMaxSearchHits() {
+    return max_search_hits;
+  }
+
+  /**
+   * Sets the minimum relevance score of candidates returned from a
+   * search. Only used if all the shards implement ScoredSearch.
+   */
+  public void setMinRelevance(float min_relevance) {
+    this.min_relevance = min_relevance;
+  }
+
+  public float getMinRelevance() {
+    return min_relevance;
+  }
+
+  public void setConfiguration(Configuration config) {
+    this.config = config;
+    for (Database shard : shards)
+      shard.setConfiguration(config);
+  }
+
+  public void setOverwrite(boolean overwrite) {
+    for (Database shard : shards)
+      shard.setOverwrite(overwrite);
+  }
+
+  public boolean isInMemory() {
+    for (Database shard : shards)
+      if (!shard.isInMemory())
+        return false;
+    return true;
+  }
+
+  public void index(Record record) {
+    getShard(record).add(record);
+  }
+
+  public void commit() {
+    if (writers == null)
+      return; // nothing indexed yet
+
+    // let all the shards finish indexing, then commit in parallel
+    for (Shard shard : writers)
+      shard.commit();
+    for (Shard shard : writers)
+      shard.waitForAll();
+  }
+
+  public Record findRecordById(String id) {
+    return shards.get(shardIndex(id)).findRecordById(id);
+  }
+
+  public Collection<Record> findCandidateMatches(Record record) {
+    return findCandidateMatches(record, null);
+  }
+
+  public Collection<Record> findCandidateMatches(Record record,
+                                                 Collection<Filter> filters) {
+    if (isScored())
+      return mergeByScore(searchShards(record, filters, true));
+    else
+      return interleave(searchShards(record, filters, false));
+  }
+
+  public void close() {
+    try {
+      commit();
+    } finally {
+      if (writers != null)
+        for (Shard shard : writers)
+          shard.shutdown();
+      writers = null;
+      if (searchers != null)
+        searchers.shutdown();
+      searchers = null;
+
+      for (Database shard : shards)
+        shard.close();
+    }
+  }
+
+  public String toString() {
+    return "ShardedDatabase " + shards;
+  }
+
+  // ----- INTERNALS
+
+  private Shard getShard(Record record) {
+    if (writers == null) {
+      if (shards.isEmpty())
+        throw new DukeConfigException("ShardedDatabase has no shards");
+      writers = new Shard[shards.size()];
+      for (int ix = 0; ix < writers.length; ix++)
+        writers[ix] = new Shard(shards.get(ix), ix);
+    }
+
+    Property idprop = config.getIdentityProperties().iterator().next();
+    String id = record.getValue(idprop.getName());
+    if (id == null) // can't be found by id anyway, so put it anywhere
+      return writers[(nextshard.getAndIncrement() & 0x7FFFFFFF) % writers.length];
+    return writers[shardIndex(id)];
+  }
+
+  private int shardIndex(String id) {
+    int hash = id.hashCode() * 0x9E3779B9; // spread the bits
+    return ((hash ^ (hash >>> 16)) & 0x7FFFFFFF) % shards.size();
+  }
+
+  private boolean isScored() {
+    for (Database shard : shards)
+      if (!(shard instanceof ScoredSearch))
+        return false;
+    return true;
+  }
+
+  // searches all the shards in parallel, and returns the results in
+  // shard order. the calling thread searches the first shard itself,
+  // while the others are searched on the search threads
+  private List searchShards(final Record record,
+                            final Collection<Filter> filters,
+                            final boolean scored) {
+    List<Future> futures = new ArrayList(shards.size());
+    for (int ix = 1; ix < shards.size(); ix++) {
+      final Database shard = shards.get(ix);
+      futures.add(getSearchers().submit(new Callable() {
+        public Object call() {
+          return search(shard, record, filters, scored);
+        }
+      }));
+    }
+
+    List results = new ArrayList(shards.size());
+    results.add(search(shards.get(0), record, filters, scored));
+    for (Future future : futures)
+      results.add(waitFor(future));
+    return results;
+  }
+
+  private static Collection search(Database shard, Record record,
+                                   Collection<Filter> filters,
+                                   boolean scored) {
+    if (scored)
+      return ((ScoredSearch) shard).findScoredCandidateMatches(record,
+                                                               filters);
+    else
+      return shard.findCandidateMatches(record, filters);
+  }
+
+  // keeps the best candidates from all the shards, as if they had
+  // been found in a single index
+  private List<Record> mergeByScore(List<List<ScoredSearch.Candidate>> results) {
+    List<ScoredSearch.Candidate> all = new ArrayList();
+    for (List<ScoredSearch.Candidate> result : results)
+      all.addAll(result);
+    Collections.sort(all, BY_SCORE);
+
+    List<Record> candidates =
+      new ArrayList(Math.min(all.size(), max_search_hits));
+    for (ScoredSearch.Candidate candidate : all) {
+      if (candidates.size() >= max_search_hits ||
+          candidate.getScore() < min_relevance)
+        break;
+      candidates.add(candidate.getRecord());
+    }
+    return candidates;
+  }
+
+  // interleaves the results, so that the best candidates from each
+  // shard come first
+  private List<Record> interleave(List<Collection<Record>> results) {
+    List<Iterator<Record>> iterators = new ArrayList(results.size());
+    for (Collection<Record> result : results)
+      iterators.add(result.iterator());
+
+    List<Record> candidates = new ArrayList();
+    boolean more = true;
+    while (more && candidates.size() < max_search_hits) {
+      more = false;
+      for (Iterator<Record> it : iterators) {
+        if (it.hasNext() && candidates.size() < max_search_hits) {
+          candidates.add(it.next());
+          more = true;
+        }
+      }
+    }
+    return candidates;
+  }
+
+  // best first. the sort is stable, so ties keep shard order
+  private static final Comparator<ScoredSearch.Candidate> BY_SCORE =
+    new Comparator<ScoredSearch.Candidate>() {
+    public int compare(ScoredSearch.Candidate c1, ScoredSearch.Candidate c2) {
+      return Double.compare(c2.getScore(), c1.getScore());
+    }
+  };
+
+  private synchronized ExecutorService getSearchers() {
+    if (searchers == null)
+      searchers = Executors.newFixedThreadPool(shards.size() - 1,
+                                               new DaemonFactory("ShardSearch"));
+    return searchers;
+  }
+
+  /**
+   * Feeds records to one shard, on a thread of its own.
+   */
+  static class Shard {
+    private Database database;
+    private ExecutorService thread;
+    private List<Record> chunk;
+    private LinkedList<Future> pending;
+
+    public Shard(Database database, int ix) {
+      this.database = database;
+      this.thread =
+        Executors.newSingleThreadExecutor(new DaemonFactory("Shard " + ix));
+      this.chunk = new ArrayList(CHUNK_SIZE);
+      this.pending = new LinkedList();
+    }
+
+    public void add(Record record) {
+      chunk.add(record);
+      if (chunk.size() >= CHUNK_SIZE)
+        flush();
+    }
+
+    public void commit() {
+      flush();
+      submit(new Runnable() {
+        public void run() {
+          database.commit();
+        }
+      });
+    }
+
+    // waits for all submitted work, rethrowing any failure
+    public void waitForAll() {
+      while (!pending.isEmpty())
+        waitFor(pending.removeFirst());
+    }
+
+    public void shutdown() {
+      thread.shutdown();
+    }
+
+    private void flush() {
+      if (chunk.isEmpty())
+        return;
+
+      final List<Record> records = chunk;
+      chunk = new ArrayList(CHUNK_SIZE);
+      submit(new Runnable() {
+        public void run() {
+          for (Record record : records)
+            database.index(record);
+        }
+      });
+    }
+
+    private void submit(Runnable task) {
+      // don't let the indexing fall too far behind
+      while (pending.size() >= MAX_PENDING)
+        waitFor(pending.removeFirst());
+      pending.add(thread.submit(task));
+    }
+  }
+}
@@ -5,6 +5,7 @@ import no.priv.garshol.duke.DukeConfigException;
 import no.priv.garshol.duke.DukeException;
 import no.priv.garshol.duke.Property;
 import no.priv.garshol.duke.Record;
+import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Query;
 import org.apache.solr.client.solrj.SolrQuery;
@@ -95,6 +96,14 @@ public class SolrDatabase extends IndexerDatabase {
     return super.parseTokens(fieldName, escapeLucene(value));
   }
 
+  // the query is sent to Solr as a string, so values must be escaped
+  @Override
+  protected void parseTokens(BooleanQuery parent, String fieldName,
+                             String value, boolean required,
+                             boolean fuzzy) {
+    super.parseTokens(parent, fieldName, escapeLucene(value), required, fuzzy);
+  }
+
 
   private void delete(Record record) {
     // removes previous copy of this record from the index, if it's there
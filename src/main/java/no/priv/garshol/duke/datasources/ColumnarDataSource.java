@@ -9,6 +9,7 @@ import java.util.Collections;
 
 import no.priv.garshol.duke.Logger;
 import no.priv.garshol.duke.DataSource;
+import no.priv.garshol.duke.RecordSchema;
 import no.priv.garshol.duke.DukeConfigException;
 
 /**
@@ -18,6 +19,7 @@ import no.priv.garshol.duke.DukeConfigException;
 public abstract class ColumnarDataSource implements DataSource {
   protected Map<String, Collection<Column>> columns;
   protected Logger logger;
+  protected RecordSchema schema;
 
   public ColumnarDataSource() {
     this.columns = new HashMap();
@@ -47,6 +49,19 @@ public abstract class ColumnarDataSource implements DataSource {
     this.logger = logger;
   }
 
+  /**
+   * Sets the schema to build records against. If it is set the
+   * records will be SchemaRecords, which are faster to compare.
+   * @since 1.3
+   */
+  public void setRecordSchema(RecordSchema schema) {
+    this.schema = schema;
+  }
+
+  public RecordSchema getRecordSchema() {
+    return schema;
+  }
+
   protected abstract String getSourceName();
   
   protected void verifyProperty(String value, String name) {
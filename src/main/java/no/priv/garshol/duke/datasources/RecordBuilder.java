@@ -6,6 +6,8 @@ import java.util.Collection;
 import no.priv.garshol.duke.Record;
 import no.priv.garshol.duke.Cleaner;
 import no.priv.garshol.duke.RecordImpl;
+import no.priv.garshol.duke.SchemaRecord;
+import no.priv.garshol.duke.RecordSchema;
 import no.priv.garshol.duke.CompactRecord;
 import no.priv.garshol.duke.ModifiableRecord;
 
@@ -22,7 +24,11 @@ public class RecordBuilder {
   }
 
   public void newRecord() {
-    record = new CompactRecord();
+    RecordSchema schema = source.getRecordSchema();
+    if (schema != null)
+      record = new SchemaRecord(schema);
+    else
+      record = new CompactRecord();
   }
 
   public boolean isRecordEmpty() {
@@ -0,0 +1,256 @@
+
+package no.priv.garshol.duke.matchers;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * A listener which passes on events to a collection of listeners on
+ * a separate thread, so that slow listeners (such as ones writing to
+ * a database) don't hold up the matching threads. Events are put on
+ * a bounded queue, and if the queue fills up the matching threads
+ * wait until there is room again.
+ *
+ * <p>The match events for a record are buffered on the matching
+ * thread until endRecord() is called, and then passed on together,
+ * so that listeners always see all the events for one record in
+ * sequence, even when matching runs in several threads. The
+ * listeners are only ever called from the dispatcher thread.
+ *
+ * <p>batchDone() and endProcessing() wait until all events before
+ * them have been delivered, so when a batch is done all its events
+ * have reached the listeners. If a listener throws an exception it
+ * is rethrown from the next of these calls.
+ * @since 1.3
+ */
+public class AsyncMatchDispatcher implements MatchListener {
+  private Collection<MatchListener> listeners;
+  private BlockingQueue<List<Event>> queue;
+  private ThreadLocal<List<Event>> pending;
+  private Thread thread;
+  private volatile Throwable failure;
+  private final static int DEFAULT_CAPACITY = 1024;
+  private final static int DRAIN_SIZE = 256;
+
+  /**
+   * Creates a dispatcher for the given listeners. The collection is
+   * read each time an event is delivered, so changes to it take
+   * effect immediately, provided the collection is thread-safe.
+   */
+  public AsyncMatchDispatcher(Collection<MatchListener> listeners) {
+    this(listeners, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a dispatcher for the given listeners.
+   * @param capacity The maximum number of records (or other events)
+   *                 that can be waiting to be delivered.
+   */
+  public AsyncMatchDispatcher(Collection<MatchListener> listeners,
+                              int capacity) {
+    this.listeners = listeners;
+    this.queue = new ArrayBlockingQueue(capacity);
+    this.pending = new ThreadLocal<List<Event>>() {
+      protected List<Event> initialValue() {
+        return new ArrayList();
+      }
+    };
+    this.thread = new Thread(new Dispatcher(), "MatchDispatcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // ----- MatchListener implementation
+
+  public void batchReady(int size) {
+    Event event = new Event(EventType.BATCH_READY);
+    event.size = size;
+    publish(event);
+  }
+
+  public void batchDone() {
+    publish(new Event(EventType.BATCH_DONE));
+    flush();
+  }
+
+  public void matches(Record r1, Record r2, double confidence) {
+    pending.get().add(new Event(EventType.MATCH, r1, r2, confidence));
+  }
+
+  public void matchesPerhaps(Record r1, Record r2, double confidence) {
+    pending.get().add(new Event(EventType.MAYBE, r1, r2, confidence));
+  }
+
+  public void noMatchFor(Record record) {
+    pending.get().add(new Event(EventType.NO_MATCH, record, null, 0.0));
+  }
+
+  public void startProcessing() {
+    publish(new Event(EventType.START));
+  }
+
+  public void endProcessing() {
+    publish(new Event(EventType.END));
+    flush();
+  }
+
+  // ----- Dispatcher-specific methods
+
+  /**
+   * Passes on all the match events buffered by the calling thread
+   * since the last call, as one unit.
+   */
+  public void endRecord() {
+    List<Event> events = pending.get();
+    if (events.isEmpty())
+      return;
+
+    pending.set(new ArrayList(events.size()));
+    put(events);
+  }
+
+  /**
+   * Waits until all events published so far have been delivered.
+   * Rethrows any exception thrown by a listener in the meantime.
+   */
+  public void flush() {
+    endRecord();
+    Event event = new Event(EventType.SYNC);
+    event.latch = new CountDownLatch(1);
+    publish(event);
+
+    try {
+      event.latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DukeException("Interrupted while waiting for listeners", e);
+    }
+
+    Throwable e = failure;
+    if (e != null) {
+      failure = null;
+      throw new DukeException("Match listener failed", e);
+    }
+  }
+
+  /**
+   * Delivers all remaining events, then stops the dispatcher thread.
+   */
+  public void close() {
+    try {
+      flush();
+    } finally {
+      publish(new Event(EventType.STOP));
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // ----- Internals
+
+  private void publish(Event event) {
+    List<Event> events = new ArrayList(1);
+    events.add(event);
+    put(events);
+  }
+
+  private void put(List<Event> events) {
+    if (!thread.isAlive())
+      throw new DukeException("Match dispatcher has been closed");
+
+    try {
+      queue.put(events); // blocks if the queue is full
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DukeException("Interrupted while queueing events", e);
+    }
+  }
+
+  private void deliver(Event event) {
+    for (MatchListener listener : listeners) {
+      switch (event.type) {
+      case MATCH:
+        listener.matches(event.r1, event.r2, event.confidence); break;
+      case MAYBE:
+        listener.matchesPerhaps(event.r1, event.r2, event.confidence); break;
+      case NO_MATCH:
+        listener.noMatchFor(event.r1); break;
+      case BATCH_READY:
+        listener.batchReady(event.size); break;
+      case BATCH_DONE:
+        listener.batchDone(); break;
+      case START:
+        listener.startProcessing(); break;
+      case END:
+        listener.endProcessing(); break;
+      }
+    }
+  }
+
+  class Dispatcher implements Runnable {
+    public void run() {
+      List<List<Event>> batch = new ArrayList(DRAIN_SIZE);
+      while (true) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.drainTo(batch, DRAIN_SIZE - 1);
+
+        for (List<Event> events : batch)
+          for (Event event : events) {
+            if (event.type == EventType.STOP)
+              return;
+            else if (event.type == EventType.SYNC)
+              event.latch.countDown();
+            else {
+              try {
+                deliver(event);
+              } catch (Throwable e) {
+                // we have to keep going, or the matching threads will
+                // block. the first failure is passed on at next flush
+                if (failure == null)
+                  failure = e;
+              }
+            }
+          }
+        batch.clear();
+      }
+    }
+  }
+
+  enum EventType {
+    MATCH, MAYBE, NO_MATCH, BATCH_READY, BATCH_DONE, START, END, SYNC, STOP
+  }
+
+  static class Event {
+    private EventType type;
+    private Record r1;
+    private Record r2;
+    private double confidence;
+    private int size;
+    private CountDownLatch latch;
+
+    public Event(EventType type) {
+      this.type = type;
+    }
+
+    public Event(EventType type, Record r1, Record r2, double confidence) {
+      this.type = type;
+      this.r1 = r1;
+      this.r2 = r2;
+      this.confidence = confidence;
+    }
+  }
+}
@@ -21,7 +21,8 @@ import no.priv.garshol.duke.Record;
  * different runs), and will keep the database correctly updated.
  *
  * <p><b>WARNING:</b> This class is not thread-safe, so attempting to
- * use it with multiple threads will lead to database corruption.
+ * use it with multiple threads will lead to database corruption,
+ * unless the processor is set to use asynchronous callbacks.
  */
 public class LinkDatabaseMatchListener extends AbstractMatchListener {
   private Configuration config;
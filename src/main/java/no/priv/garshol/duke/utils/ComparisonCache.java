@@ -0,0 +1,193 @@
+
+package no.priv.garshol.duke.utils;
+
+/**
+ * A bounded cache of the results of comparing pairs of values, which
+ * can be used from many threads at once. Meant for properties where
+ * the same pairs of values are compared over and over again for
+ * different pairs of records.
+ *
+ * <p>The cache is split into stripes, each with its own lock. Each
+ * stripe is an open-addressing table where a pair can only be stored
+ * in the few slots following its hash. When all of those are taken,
+ * one is evicted using the clock (second chance) algorithm: entries
+ * which have been hit since the clock last passed them are spared.
+ * So there is no per-entry bookkeeping beyond a single bit.
+ * @since 1.3
+ */
+public class ComparisonCache {
+  private Stripe[] stripes;
+  private int mask;        // picks the stripe from the hash
+  private int stripebits;  // number of hash bits used for the stripe
+  private StripedCounter hits;
+  private StripedCounter misses;
+  // number of slots each pair can be stored in
+  private final static int PROBES = 8;
+  private final static int MAX_STRIPES = 64;
+
+  /**
+   * Creates a cache holding at most (roughly) the given number of
+   * value pairs.
+   */
+  public ComparisonCache(int size) {
+    int count = 1;
+    while (count < MAX_STRIPES && count * PROBES * 4 <= size)
+      count *= 2;
+    int slots = PROBES;
+    while (slots * count < size)
+      slots *= 2;
+
+    this.stripes = new Stripe[count];
+    for (int ix = 0; ix < count; ix++)
+      stripes[ix] = new Stripe(slots);
+    this.mask = count - 1;
+    this.stripebits = Integer.numberOfTrailingZeros(count);
+    this.hits = new StripedCounter();
+    this.misses = new StripedCounter();
+  }
+
+  /**
+   * Returns the cached result of comparing the two values, or NaN if
+   * the pair is not in the cache.
+   */
+  public double get(String v1, String v2) {
+    int hash = hash(v1, v2);
+    double value = stripes[hash & mask].get(v1, v2, hash >>> stripebits);
+    if (Double.isNaN(value))
+      misses.increment();
+    else
+      hits.increment();
+    return value;
+  }
+
+  /**
+   * Stores the result of comparing the two values.
+   */
+  public void put(String v1, String v2, double value) {
+    int hash = hash(v1, v2);
+    stripes[hash & mask].put(v1, v2, value, hash >>> stripebits);
+  }
+
+  /**
+   * Removes all pairs from the cache. The statistics are kept.
+   */
+  public void clear() {
+    for (Stripe stripe : stripes)
+      stripe.clear();
+  }
+
+  /**
+   * Returns the maximum number of pairs the cache can hold.
+   */
+  public int getCapacity() {
+    return stripes.length * stripes[0].keys1.length;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the share of lookups which found the pair in the cache,
+   * as a number between 0.0 and 1.0.
+   */
+  public double getHitRate() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    if (total == 0)
+      return 0.0;
+    return h / (double) total;
+  }
+
+  public String toString() {
+    return "[ComparisonCache capacity=" + getCapacity() + " hits=" +
+      getHits() + " misses=" + getMisses() + "]";
+  }
+
+  private static int hash(String v1, String v2) {
+    int hash = (v1.hashCode() * 31 + v2.hashCode()) * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  static class Stripe {
+    private String[] keys1;
+    private String[] keys2;
+    private double[] values;
+    private boolean[] referenced; // hit since the clock last passed?
+    private int mask;
+    private int hand; // where the clock starts within the probe window
+
+    public Stripe(int slots) {
+      this.keys1 = new String[slots];
+      this.keys2 = new String[slots];
+      this.values = new double[slots];
+      this.referenced = new boolean[slots];
+      this.mask = slots - 1;
+    }
+
+    public synchronized double get(String v1, String v2, int hash) {
+      for (int ix = 0; ix < PROBES; ix++) {
+        int slot = (hash + ix) & mask;
+        if (keys1[slot] != null && matches(slot, v1, v2)) {
+          referenced[slot] = true;
+          return values[slot];
+        }
+      }
+      return Double.NaN;
+    }
+
+    public synchronized void put(String v1, String v2, double value,
+                                 int hash) {
+      // is the pair already here, or is there a free slot?
+      int free = -1;
+      for (int ix = 0; ix < PROBES; ix++) {
+        int slot = (hash + ix) & mask;
+        if (keys1[slot] == null) {
+          if (free == -1)
+            free = slot;
+        } else if (matches(slot, v1, v2)) {
+          values[slot] = value;
+          return;
+        }
+      }
+
+      if (free == -1)
+        free = evict(hash);
+      keys1[free] = v1;
+      keys2[free] = v2;
+      values[free] = value;
+      referenced[free] = false;
+    }
+
+    public synchronized void clear() {
+      for (int ix = 0; ix < keys1.length; ix++) {
+        keys1[ix] = null;
+        keys2[ix] = null;
+        referenced[ix] = false;
+      }
+    }
+
+    // sweeps the clock over the probe window, giving referenced
+    // entries a second chance, and returns the slot of the victim
+    private int evict(int hash) {
+      hand = (hand + 1) & (PROBES - 1);
+      for (int ix = 0; ix < PROBES; ix++) {
+        int slot = (hash + ((hand + ix) & (PROBES - 1))) & mask;
+        if (!referenced[slot])
+          return slot;
+        referenced[slot] = false;
+      }
+      return (hash + hand) & mask; // all had been hit; take the first
+    }
+
+    private boolean matches(int slot, String v1, String v2) {
+      String k1 = keys1[slot];
+      String k2 = keys2[slot];
+      return (k1 == v1 || k1.equals(v1)) && (k2 == v2 || k2.equals(v2));
+    }
+  }
+}
@@ -0,0 +1,27 @@
+
+package no.priv.garshol.duke.utils;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * A map which holds at most a given number of entries, throwing out
+ * the least recently used entry when it goes over. Not thread-safe.
+ * @since 1.3
+ */
+public class LRUCache<K, V> extends LinkedHashMap<K, V> {
+  private int maxsize;
+
+  public LRUCache(int maxsize) {
+    super(16, 0.75f, true); // access order, so get() counts as use
+    this.maxsize = maxsize;
+  }
+
+  public int getMaxSize() {
+    return maxsize;
+  }
+
+  protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+    return size() > maxsize;
+  }
+}
@@ -0,0 +1,153 @@
+
+package no.priv.garshol.duke.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map from longs to doubles, using open addressing
+ * with linear probing. The entries are also kept in insertion order
+ * in parallel arrays, so that they can be traversed by index, and so
+ * that clearing the map only costs as much as the number of entries.
+ * This makes it suitable for reusing across many short-lived uses,
+ * without allocating any objects per entry. Not thread-safe.
+ * @since 1.3
+ */
+public class LongDoubleMap {
+  private int[] table;      // slot -> entry index, or -1 if free
+  private int mask;
+  private long[] keys;      // entry index -> key
+  private double[] values;  // entry index -> value
+  private int[] slots;      // entry index -> slot
+  private int size;
+  private int initial;      // initial number of slots
+
+  public LongDoubleMap() {
+    this(16);
+  }
+
+  /**
+   * Creates a map with room for the given number of entries before
+   * it has to grow.
+   */
+  public LongDoubleMap(int capacity) {
+    int slots = 16;
+    while (slots < capacity * 2)
+      slots *= 2;
+    this.initial = slots;
+    allocate(slots);
+  }
+
+  /**
+   * Adds the value to the value for the key. If the key is not in the
+   * map it is added, with the given value.
+   */
+  public void add(long key, double value) {
+    int ix = slot(key);
+    while (table[ix] != -1) {
+      int entry = table[ix];
+      if (keys[entry] == key) {
+        values[entry] += value;
+        return;
+      }
+      ix = (ix + 1) & mask;
+    }
+
+    table[ix] = size;
+    keys[size] = key;
+    values[size] = value;
+    slots[size] = ix;
+    size++;
+    if (size * 2 >= table.length)
+      rehash(table.length * 2);
+  }
+
+  /**
+   * Returns the index of the entry for the key, or -1 if the key is
+   * not in the map.
+   */
+  public int indexOf(long key) {
+    int ix = slot(key);
+    while (table[ix] != -1) {
+      int entry = table[ix];
+      if (keys[entry] == key)
+        return entry;
+      ix = (ix + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the number of entries in the map.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the key of the entry with the given index. Entries are
+   * indexed from 0 to size() - 1, in the order they were added.
+   */
+  public long getKey(int index) {
+    return keys[index];
+  }
+
+  /**
+   * Returns the value of the entry with the given index.
+   */
+  public double getValue(int index) {
+    return values[index];
+  }
+
+  /**
+   * Adds to the value of the entry with the given index.
+   */
+  public void addValue(int index, double value) {
+    values[index] += value;
+  }
+
+  /**
+   * Removes all entries. If the map has grown far beyond what it now
+   * holds it shrinks back, so that one large use doesn't make every
+   * later clear() expensive.
+   */
+  public void clear() {
+    if (table.length > initial && size * 8 < table.length) {
+      allocate(initial);
+    } else {
+      for (int ix = 0; ix < size; ix++)
+        table[slots[ix]] = -1;
+    }
+    size = 0;
+  }
+
+  private int slot(long key) {
+    long hash = key * 0x9E3779B97F4A7C15L; // spread the bits
+    return (int) (hash ^ (hash >>> 32)) & mask;
+  }
+
+  private void allocate(int slots) {
+    this.table = new int[slots];
+    Arrays.fill(table, -1);
+    this.mask = slots - 1;
+    this.keys = new long[slots / 2];
+    this.values = new double[slots / 2];
+    this.slots = new int[slots / 2];
+  }
+
+  private void rehash(int newsize) {
+    table = new int[newsize];
+    Arrays.fill(table, -1);
+    mask = newsize - 1;
+    keys = Arrays.copyOf(keys, newsize / 2);
+    values = Arrays.copyOf(values, newsize / 2);
+    slots = Arrays.copyOf(slots, newsize / 2);
+
+    for (int entry = 0; entry < size; entry++) {
+      int ix = slot(keys[entry]);
+      while (table[ix] != -1)
+        ix = (ix + 1) & mask;
+      table[ix] = entry;
+      slots[entry] = ix;
+    }
+  }
+}
@@ -0,0 +1,101 @@
+
+package no.priv.garshol.duke.utils;
+
+/**
+ * A map from strings to non-negative ints, using open addressing
+ * with linear probing. Unlike a HashMap&lt;String, Integer&gt; it
+ * allocates no objects per entry, which matters when there are
+ * millions of keys. Lookups are safe from many threads as long as
+ * no thread is modifying the map.
+ * @since 1.3
+ */
+public class StringIntMap {
+  private String[] keys;
+  private int[] values;
+  private int size;
+  private int mask;
+
+  public StringIntMap() {
+    this(16);
+  }
+
+  /**
+   * Creates a map with room for the given number of entries before
+   * it has to grow.
+   */
+  public StringIntMap(int capacity) {
+    int slots = 16;
+    while (slots < capacity * 2)
+      slots *= 2;
+    this.keys = new String[slots];
+    this.values = new int[slots];
+    this.mask = slots - 1;
+  }
+
+  /**
+   * Returns the value for the key, or -1 if the key is not in the map.
+   */
+  public int get(String key) {
+    int ix = slot(key);
+    while (keys[ix] != null) {
+      if (keys[ix].equals(key))
+        return values[ix];
+      ix = (ix + 1) & mask;
+    }
+    return -1;
+  }
+
+  /**
+   * Sets the value for the key, replacing any previous value.
+   */
+  public void put(String key, int value) {
+    if (value < 0)
+      throw new IllegalArgumentException("Negative values not supported");
+
+    int ix = slot(key);
+    while (keys[ix] != null) {
+      if (keys[ix].equals(key)) {
+        values[ix] = value;
+        return;
+      }
+      ix = (ix + 1) & mask;
+    }
+
+    keys[ix] = key;
+    values[ix] = value;
+    size++;
+    if (size * 2 > keys.length)
+      rehash();
+  }
+
+  /**
+   * Returns the number of keys in the map.
+   */
+  public int size() {
+    return size;
+  }
+
+  private int slot(String key) {
+    int hash = key.hashCode() * 0x9E3779B9; // spread the bits
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private void rehash() {
+    String[] oldkeys = keys;
+    int[] oldvalues = values;
+    keys = new String[oldkeys.length * 2];
+    values = new int[oldkeys.length * 2];
+    mask = keys.length - 1;
+
+    for (int ix = 0; ix < oldkeys.length; ix++) {
+      if (oldkeys[ix] == null)
+        continue;
+
+      int slot = slot(oldkeys[ix]);
+      while (keys[slot] != null)
+        slot = (slot + 1) & mask;
+      keys[slot] = oldkeys[ix];
+      values[slot] = oldvalues[ix];
+    }
+  }
+}
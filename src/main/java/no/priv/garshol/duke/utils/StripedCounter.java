@@ -0,0 +1,68 @@
+
+package no.priv.garshol.duke.utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter which can be updated from many threads at once without
+ * losing updates, and without the threads contending for the same
+ * memory. Each thread adds to its own stripe, and the stripes are
+ * summed on read. Reads are therefore more expensive than updates,
+ * which is the right tradeoff for statistics.
+ * @since 1.3
+ */
+public class StripedCounter {
+  private AtomicLongArray cells;
+  private int mask;
+  // each stripe takes up a whole cache line, so that threads working
+  // on neighbouring stripes don't invalidate each other's caches
+  private final static int PADDING = 8;
+
+  public StripedCounter() {
+    int stripes = 1;
+    int wanted = Runtime.getRuntime().availableProcessors() * 2;
+    while (stripes < wanted && stripes < 64)
+      stripes *= 2;
+
+    this.cells = new AtomicLongArray(stripes * PADDING);
+    this.mask = stripes - 1;
+  }
+
+  /**
+   * Adds the value to the counter.
+   */
+  public void add(long value) {
+    int stripe = (int) Thread.currentThread().getId() & mask;
+    cells.addAndGet(stripe * PADDING, value);
+  }
+
+  /**
+   * Adds one to the counter.
+   */
+  public void increment() {
+    add(1);
+  }
+
+  /**
+   * Returns the current value of the counter. Updates made while the
+   * sum is being computed may or may not be included.
+   */
+  public long sum() {
+    long sum = 0;
+    for (int ix = 0; ix < cells.length(); ix += PADDING)
+      sum += cells.get(ix);
+    return sum;
+  }
+
+  /**
+   * Sets the counter back to zero.
+   */
+  public void reset() {
+    for (int ix = 0; ix < cells.length(); ix += PADDING)
+      cells.set(ix, 0);
+  }
+
+  public String toString() {
+    return "" + sum();
+  }
+}
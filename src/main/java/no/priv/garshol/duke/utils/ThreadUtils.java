@@ -0,0 +1,54 @@
+
+package no.priv.garshol.duke.utils;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.priv.garshol.duke.DukeException;
+
+/**
+ * Helpers for running work on background threads.
+ * @since 1.3
+ */
+public class ThreadUtils {
+
+  /**
+   * Waits for the task to complete, and returns its result, passing
+   * on any exception it threw.
+   */
+  public static <T> T waitFor(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DukeException("Interrupted while waiting for task", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      throw new DukeException(cause);
+    }
+  }
+
+  /**
+   * Makes daemon threads, so that an executor which is never shut
+   * down doesn't keep the JVM alive.
+   */
+  public static class DaemonFactory implements ThreadFactory {
+    private String name;
+    private AtomicInteger count;
+
+    public DaemonFactory(String name) {
+      this.name = name;
+      this.count = new AtomicInteger();
+    }
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, name + " " + count.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -13,6 +13,19 @@ public class Utils {
       ((prob1 * prob2) + ((1.0 - prob1) * (1.0 - prob2)));
   }
 
+  /**
+   * The inverse of computeBayes: returns the probability which has to
+   * be combined with prob to produce the target probability. Used to
+   * work out how high a probability has to be to be of any use.
+   * @since 1.3
+   */
+  public static double inverseBayes(double prob, double target) {
+    double divisor = (prob * (1.0 - target)) + (target * (1.0 - prob));
+    if (divisor == 0.0)
+      return 0.0; // no single probability makes any difference
+    return (target * (1.0 - prob)) / divisor;
+  }
+
   /**
    * Returns true iff we are running on Windows. Used to detect
    * whether it's safe to use Lucene's NIOFSDirectory. It's slow on
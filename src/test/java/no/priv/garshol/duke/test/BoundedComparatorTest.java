@@ -0,0 +1,104 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.Random;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.BoundedComparator;
+import no.priv.garshol.duke.utils.Utils;
+import no.priv.garshol.duke.comparators.JaroWinkler;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.comparators.QGramComparator;
+import no.priv.garshol.duke.comparators.WeightedLevenshtein;
+import no.priv.garshol.duke.comparators.LongestCommonSubstring;
+
+public class BoundedComparatorTest {
+
+  @Test
+  public void testJaroWinkler() {
+    check(new JaroWinkler(), false);
+  }
+
+  @Test
+  public void testLevenshtein() {
+    // the unbounded version already cuts off at 0.5
+    check(new Levenshtein(), true);
+  }
+
+  @Test
+  public void testWeightedLevenshtein() {
+    check(new WeightedLevenshtein(), false);
+  }
+
+  @Test
+  public void testQGram() {
+    QGramComparator comp = new QGramComparator();
+    comp.setFormula(QGramComparator.Formula.JACCARD);
+    check(comp, false);
+  }
+
+  @Test
+  public void testLongestCommonSubstring() {
+    check(new LongestCommonSubstring(), false);
+  }
+
+  @Test
+  public void testProperty() {
+    PropertyImpl prop = new PropertyImpl("NAME", new Levenshtein(), 0.3, 0.9);
+    assertEquals(prop.compare("abcd", "abce"),
+                 prop.compare("abcd", "abce", 0.6), 0.0001);
+    assertTrue(prop.compare("abcd", "abce", 0.9) < 0.9);
+  }
+
+  @Test
+  public void testInverseBayes() {
+    double prob = Utils.inverseBayes(0.7, 0.9);
+    assertEquals(0.9, Utils.computeBayes(0.7, prob), 0.0001);
+    prob = Utils.inverseBayes(0.3, 0.8);
+    assertEquals(0.8, Utils.computeBayes(0.3, prob), 0.0001);
+  }
+
+  // compares random strings both ways, verifying that the bounded
+  // comparison only deviates when the similarity is below minsim
+  private void check(BoundedComparator comp, boolean halfcutoff) {
+    Random random = new Random(4711);
+    for (int ix = 0; ix < 2000; ix++) {
+      String s1 = randomString(random);
+      String s2 = random.nextInt(4) == 0 ? randomString(random) :
+        mutate(random, s1);
+      double minsim = random.nextDouble();
+      double sim = comp.compare(s1, s2);
+      double bounded = comp.compare(s1, s2, minsim);
+      // with the half cutoff values below 0.5 are inexact anyway
+      double limit = halfcutoff ? Math.max(0.5, minsim) : minsim;
+      if (sim >= limit)
+        assertEquals(s1 + " ~ " + s2 + " at " + minsim, sim, bounded, 0.0001);
+      else if (sim < minsim || minsim >= limit)
+        assertTrue(s1 + " ~ " + s2 + " at " + minsim, bounded < minsim);
+    }
+  }
+
+  private static String randomString(Random random) {
+    char[] tmp = new char[1 + random.nextInt(12)];
+    for (int ix = 0; ix < tmp.length; ix++)
+      tmp[ix] = (char) ('a' + random.nextInt(6));
+    return new String(tmp);
+  }
+
+  private static String mutate(Random random, String str) {
+    StringBuilder buf = new StringBuilder(str);
+    int edits = random.nextInt(4);
+    for (int ix = 0; ix < edits && buf.length() > 1; ix++) {
+      int pos = random.nextInt(buf.length());
+      if (random.nextBoolean())
+        buf.deleteCharAt(pos);
+      else
+        buf.setCharAt(pos, (char) ('a' + random.nextInt(6)));
+    }
+    return buf.toString();
+  }
+}
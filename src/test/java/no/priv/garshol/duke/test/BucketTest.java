@@ -0,0 +1,43 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.databases.Bucket;
+
+public class BucketTest {
+
+  @Test
+  public void testAdvanceEmpty() {
+    assertEquals(0, new Bucket().advance(5, 0));
+  }
+
+  @Test
+  public void testAdvance() {
+    Bucket b = new Bucket(new long[] { 1, 3, 5, 7, 9 }, 5);
+    assertEquals(0, b.advance(0, 0));
+    assertEquals(0, b.advance(1, 0));
+    assertEquals(1, b.advance(2, 0));
+    assertEquals(2, b.advance(5, 1));
+    assertEquals(4, b.advance(9, 0));
+    assertEquals(5, b.advance(10, 0));
+    assertEquals(3, b.advance(1, 3)); // never moves backwards
+  }
+
+  @Test
+  public void testGallopLong() {
+    long[] ids = new long[10000];
+    for (int ix = 0; ix < ids.length; ix++)
+      ids[ix] = ix * 2;
+
+    int pos = 0;
+    for (int ix = 0; ix < ids.length; ix += 37) {
+      pos = Bucket.gallop(ids, pos, ids.length, ix * 2 - 1);
+      assertEquals(ix, pos);
+      pos = Bucket.gallop(ids, pos, ids.length, ix * 2);
+      assertEquals(ix, pos);
+    }
+    assertEquals(ids.length, Bucket.gallop(ids, 0, ids.length, 20000));
+  }
+}
@@ -0,0 +1,18 @@
+
+package no.priv.garshol.duke.test;
+
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.databases.KeyValueDatabase;
+import no.priv.garshol.duke.databases.CompactKeyValueStore;
+
+public class CompactKeyValueDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    KeyValueDatabase db = new KeyValueDatabase();
+    db.setStore(new CompactKeyValueStore());
+    db.setConfiguration(config);
+    return db;
+  }
+  
+}
@@ -0,0 +1,84 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.databases.Bucket;
+import no.priv.garshol.duke.databases.CompactKeyValueStore;
+
+public class CompactKeyValueStoreTest {
+  private CompactKeyValueStore store;
+
+  @Before
+  public void setup() {
+    store = new CompactKeyValueStore();
+  }
+
+  @Test
+  public void testNoSuchToken() {
+    assertNull(store.lookupToken("NAME", "foo"));
+  }
+
+  @Test
+  public void testNoSuchId() {
+    assertNull(store.findRecordById("foo"));
+  }
+
+  @Test
+  public void testRecords() {
+    Record r = TestUtils.makeRecord("ID", "a");
+    long id = store.makeNewRecordId();
+    store.registerRecord(id, r);
+    store.registerId(id, "a");
+
+    assertEquals(r, store.findRecordById("a"));
+    assertEquals(r, store.findRecordById(id));
+  }
+
+  @Test
+  public void testPostings() {
+    // big gaps between ids, so that varints need several bytes
+    store.registerToken(3, "NAME", "foo");
+    store.registerToken(300, "NAME", "foo");
+    store.registerToken(300, "NAME", "bar");
+    store.registerToken(70000, "NAME", "foo");
+    store.registerToken(70000, "EMAIL", "foo");
+
+    verify(store.lookupToken("NAME", "foo"), 3, 300, 70000);
+    verify(store.lookupToken("NAME", "bar"), 300);
+    verify(store.lookupToken("EMAIL", "foo"), 70000);
+    assertNull(store.lookupToken("EMAIL", "bar"));
+  }
+
+  @Test
+  public void testPostingsOutOfOrder() {
+    store.registerToken(30, "NAME", "foo");
+    store.registerToken(2, "NAME", "foo");
+    store.registerToken(17, "NAME", "foo");
+
+    verify(store.lookupToken("NAME", "foo"), 2, 17, 30);
+  }
+
+  @Test
+  public void testManyTokens() {
+    for (int ix = 0; ix < 1000; ix++)
+      store.registerToken(ix, "NAME", "t" + (ix % 100));
+
+    for (int ix = 0; ix < 100; ix++) {
+      Bucket b = store.lookupToken("NAME", "t" + ix);
+      assertEquals(10, b.nextfree);
+      assertEquals(ix, b.records[0]);
+      assertEquals(900 + ix, b.records[9]);
+    }
+  }
+
+  private void verify(Bucket b, long... ids) {
+    assertEquals(ids.length, b.nextfree);
+    for (int ix = 0; ix < ids.length; ix++)
+      assertEquals(ids[ix], b.records[ix]);
+  }
+}
@@ -0,0 +1,149 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Comparator;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.comparators.PersonNameComparator;
+import no.priv.garshol.duke.comparators.JaroWinkler;
+import no.priv.garshol.duke.utils.ComparisonCache;
+
+public class ComparisonCacheTest {
+  private static final String[] NAMES = {
+    "lars marius garshol", "lars m. garshol", "marius garshol", "garshol",
+    "lars garshol", "robert smith", "smith robert", "oslo", "bergen"
+  };
+
+  @Test
+  public void testEmpty() {
+    ComparisonCache cache = new ComparisonCache(100);
+    assertTrue(Double.isNaN(cache.get("a", "b")));
+    assertEquals(0, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void testPutAndGet() {
+    ComparisonCache cache = new ComparisonCache(100);
+    cache.put("a", "b", 0.7);
+    cache.put("b", "a", 0.3);
+    assertEquals(0.7, cache.get("a", "b"), 0.0);
+    assertEquals(0.3, cache.get("b", "a"), 0.0);
+    assertEquals(0.7, cache.get(new String("a"), new String("b")), 0.0);
+    assertEquals(3, cache.getHits());
+    assertEquals(1.0, cache.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testReplace() {
+    ComparisonCache cache = new ComparisonCache(100);
+    cache.put("a", "b", 0.7);
+    cache.put("a", "b", 0.8);
+    assertEquals(0.8, cache.get("a", "b"), 0.0);
+  }
+
+  @Test
+  public void testClear() {
+    ComparisonCache cache = new ComparisonCache(100);
+    cache.put("a", "b", 0.7);
+    cache.clear();
+    assertTrue(Double.isNaN(cache.get("a", "b")));
+  }
+
+  @Test
+  public void testBounded() {
+    // the cache must never grow beyond its capacity, and the values
+    // it does keep must be the right ones
+    ComparisonCache cache = new ComparisonCache(1000);
+    int capacity = cache.getCapacity();
+    assertTrue(capacity >= 1000);
+    assertTrue(capacity <= 2000);
+
+    for (int ix = 0; ix < 10000; ix++)
+      cache.put("v" + ix, "w" + ix, ix);
+
+    int found = 0;
+    for (int ix = 0; ix < 10000; ix++) {
+      double value = cache.get("v" + ix, "w" + ix);
+      if (!Double.isNaN(value)) {
+        assertEquals(ix, value, 0.0);
+        found++;
+      }
+    }
+    assertTrue(found <= capacity);
+    assertTrue(found > capacity / 2);
+  }
+
+  @Test
+  public void testSecondChance() {
+    // an entry which keeps being hit should survive a stream of
+    // entries which are never hit
+    ComparisonCache cache = new ComparisonCache(64);
+    cache.put("hot", "pair", 1.0);
+    for (int ix = 0; ix < 10000; ix++) {
+      assertEquals(1.0, cache.get("hot", "pair"), 0.0);
+      cache.put("v" + ix, "w" + ix, ix);
+    }
+  }
+
+  @Test
+  public void testPropertySameResults() {
+    check(new Levenshtein());
+    check(new JaroWinkler());
+    check(new PersonNameComparator()); // has prepared values
+  }
+
+  @Test
+  public void testPropertyCounts() {
+    PropertyImpl prop = new PropertyImpl("NAME", new Levenshtein(), 0.3, 0.9);
+    prop.setCacheSize(100);
+    prop.compare("oslo", "bergen");
+    prop.compare("oslo", "bergen", 0.8);
+    prop.comparePrepared(prop.prepare("oslo"), prop.prepare("bergen"), 0.0);
+    assertEquals(1, prop.getCache().getMisses());
+    assertEquals(2, prop.getCache().getHits());
+  }
+
+  @Test
+  public void testNewComparatorClearsCache() {
+    PropertyImpl prop = new PropertyImpl("NAME", new Levenshtein(), 0.3, 0.9);
+    prop.setCacheSize(100);
+    double prob = prop.compare("oslo", "osla");
+    prop.setComparator(new ExactComparatorStub());
+    assertTrue(prob != prop.compare("oslo", "osla"));
+    assertEquals(100, prop.getCacheSize());
+    assertEquals(100, ((PropertyImpl) prop.copy()).getCacheSize());
+  }
+
+  private void check(Comparator comp) {
+    PropertyImpl plain = new PropertyImpl("NAME", comp, 0.3, 0.9);
+    PropertyImpl cached = new PropertyImpl("NAME", comp, 0.3, 0.9);
+    cached.setCacheSize(1000);
+
+    // twice, so that the second round comes from the cache
+    for (int round = 0; round < 2; round++)
+      for (String v1 : NAMES)
+        for (String v2 : NAMES) {
+          double prob = plain.compare(v1, v2);
+          assertEquals(prob, cached.compare(v1, v2), 0.0);
+          assertEquals(prob, cached.comparePrepared(cached.prepare(v1),
+                                                    cached.prepare(v2), 0.0),
+                       0.0);
+        }
+    assertTrue(cached.getCache().getHitRate() > 0.7);
+  }
+
+  static class ExactComparatorStub implements Comparator {
+    public boolean isTokenized() {
+      return false;
+    }
+
+    public double compare(String v1, String v2) {
+      return v1.equals(v2) ? 1.0 : 0.0;
+    }
+  }
+}
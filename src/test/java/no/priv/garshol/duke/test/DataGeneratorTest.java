@@ -0,0 +1,132 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.Set;
+import java.util.HashSet;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.IOException;
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Link;
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.LinkDatabase;
+import no.priv.garshol.duke.DataGenerator;
+import no.priv.garshol.duke.RecordIterator;
+import no.priv.garshol.duke.StatementHandler;
+import no.priv.garshol.duke.DukeConfigException;
+import no.priv.garshol.duke.datasources.Column;
+import no.priv.garshol.duke.datasources.CSVDataSource;
+import no.priv.garshol.duke.utils.NTriplesParser;
+import no.priv.garshol.duke.utils.LinkDatabaseUtils;
+
+public class DataGeneratorTest {
+  private DataGenerator generator;
+
+  @Before
+  public void setup() {
+    generator = new DataGenerator();
+    generator.setSpread(100);
+  }
+
+  @Test
+  public void testCSV() throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    StringWriter test = new StringWriter();
+    generator.generate(1000, data, test);
+
+    Set<String> ids = readCSV(data.toString("utf-8"));
+    assertEquals(1000, ids.size());
+
+    // every link must be between two records which exist, and around
+    // a fifth of the records should be duplicates
+    LinkDatabase linkdb =
+      LinkDatabaseUtils.loadTestFile(new StringReader(test.toString()));
+    Set<String> duplicates = new HashSet();
+    for (Link link : linkdb.getAllLinks()) {
+      assertTrue(ids.contains(link.getID1()));
+      assertTrue(ids.contains(link.getID2()));
+      duplicates.add(link.getID1());
+      duplicates.add(link.getID2());
+    }
+    assertTrue("too few duplicates: " + duplicates.size(),
+               duplicates.size() > 200);
+    assertTrue("too many duplicates: " + duplicates.size(),
+               duplicates.size() < 600);
+  }
+
+  @Test
+  public void testNoDuplicates() throws IOException {
+    generator.setDuplicates(0.0);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    StringWriter test = new StringWriter();
+    generator.generate(100, data, test);
+
+    assertEquals(100, readCSV(data.toString("utf-8")).size());
+    assertEquals("", test.toString());
+  }
+
+  @Test
+  public void testRepeatable() throws IOException {
+    ByteArrayOutputStream data1 = new ByteArrayOutputStream();
+    generator.generate(100, data1, new StringWriter());
+    ByteArrayOutputStream data2 = new ByteArrayOutputStream();
+    generator.generate(100, data2, new StringWriter());
+    assertEquals(data1.toString("utf-8"), data2.toString("utf-8"));
+  }
+
+  @Test
+  public void testNTriples() throws IOException {
+    generator.setNTriples(true);
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    StringWriter test = new StringWriter();
+    generator.generate(100, data, test);
+
+    final Set<String> subjects = new HashSet();
+    NTriplesParser.parse(new StringReader(data.toString("utf-8")),
+                         new StatementHandler() {
+      public void statement(String subject, String property, String object,
+                            boolean literal) {
+        subjects.add(subject);
+      }
+    });
+    assertEquals(100, subjects.size());
+
+    LinkDatabase linkdb =
+      LinkDatabaseUtils.loadTestFile(new StringReader(test.toString()));
+    for (Link link : linkdb.getAllLinks())
+      assertTrue(subjects.contains(link.getID1()));
+  }
+
+  @Test
+  public void testUnknownField() {
+    try {
+      generator.setNoise("NOSUCHFIELD", 0.5);
+      fail("accepted unknown field");
+    } catch (DukeConfigException e) {
+      // this is what we expect
+    }
+  }
+
+  private Set<String> readCSV(String csv) {
+    CSVDataSource source = new CSVDataSource();
+    for (String field : DataGenerator.FIELDS)
+      source.addColumn(new Column(field, null, null, null));
+    source.setReader(new StringReader(csv));
+
+    Set<String> ids = new HashSet();
+    RecordIterator it = source.getRecords();
+    while (it.hasNext()) {
+      Record r = it.next();
+      assertTrue(r.getValue("ID") != null);
+      ids.add(r.getValue("ID"));
+    }
+    return ids;
+  }
+}
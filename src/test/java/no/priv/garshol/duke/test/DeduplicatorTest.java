@@ -233,8 +233,117 @@ public class DeduplicatorTest {
                  2, source.getBatchCount());
   }
 
+  @Test
+  public void testBoundedScoring() throws IOException {
+    processor.setBoundedScoring(true);
+
+    Collection<Record> records = new ArrayList();
+    records.add(TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB"));
+    records.add(TestUtils.makeRecord("ID", "3", "NAME", "zzzzz", "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    assertEquals(3, listener.getRecordCount());
+    assertEquals(2, listener.getMatches().size());
+    assertEquals(1, listener.getNoMatchCount());
+  }
+
+  @Test
+  public void testBoundedCompare() throws IOException {
+    Record r1 = TestUtils.makeRecord("ID", "1", "NAME", "aaaaa", "EMAIL", "BBBBB");
+    Record r2 = TestUtils.makeRecord("ID", "2", "NAME", "aaaaa", "EMAIL", "BBBBB");
+    Record r3 = TestUtils.makeRecord("ID", "3", "NAME", "zzzzz", "EMAIL", "CCCCC");
+
+    // above the cutoff we get the exact probability
+    assertEquals(processor.compare(r1, r2),
+                 processor.compare(r1, r2, 0.85), 0.0001);
+
+    // below it we only get something no higher than the cutoff
+    assertTrue(processor.compare(r1, r3, 0.85) <= 0.85);
+  }
+
+  @Test
+  public void testThreadsAndReadAhead() throws IOException {
+    processor.setThreads(3);
+    processor.setReadAhead(true);
+
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 50; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", ix % 2 == 0 ? "aaaaa" : "zzzzz",
+                                       "EMAIL", "BBBBB"));
+    TestDataSource source = new TestDataSource(records);
+    config.addDataSource(0, source);
+
+    processor.deduplicate(20); // two full batches, plus remaining ten
+
+    assertEquals("wrong number of records processed",
+                 50, listener.getRecordCount());
+    assertEquals("wrong number of batches",
+                 3, source.getBatchCount());
+    // each record matches the records with the same name indexed so
+    // far, so 20 * 9 + 20 * 19 + 10 * 24
+    assertEquals("wrong number of matches",
+                 800, listener.getMatches().size());
+  }
+
+  @Test
+  public void testThreadedIndexing() throws IOException {
+    processor.setThreads(4);
+
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 100; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix, "NAME", "n" + ix));
+    processor.index(records);
+
+    for (int ix = 0; ix < 100; ix++)
+      assertEquals("" + ix,
+                   processor.getDatabase().findRecordById("" + ix).getValue("ID"));
+  }
+
+  @Test
+  public void testAsyncCallbacks() throws IOException {
+    processor.setThreads(3);
+    processor.setAsyncCallbacks(true);
+    OrderListener order = new OrderListener();
+    processor.addMatchListener(order);
+
+    Collection<Record> records = new ArrayList();
+    for (int ix = 0; ix < 50; ix++)
+      records.add(TestUtils.makeRecord("ID", "" + ix,
+                                       "NAME", ix % 2 == 0 ? "aaaaa" : "zzzzz",
+                                       "EMAIL", "BBBBB"));
+    processor.deduplicate(records);
+
+    // all events must have been delivered by the time we get here
+    assertEquals(50, listener.getRecordCount());
+    assertEquals(50 * 24, listener.getMatches().size());
+    assertTrue("events for a record were interleaved with other records",
+               order.isOrdered());
+  }
+
   // ===== UTILITIES
 
+  // verifies that all the events for one record arrive together
+  static class OrderListener extends AbstractMatchListener {
+    private Record current;
+    private Collection<Record> seen = new ArrayList();
+    private boolean ordered = true;
+
+    public void matches(Record r1, Record r2, double confidence) {
+      if (r1 != current) {
+        if (seen.contains(r1))
+          ordered = false;
+        seen.add(r1);
+        current = r1;
+      }
+    }
+
+    public boolean isOrdered() {
+      return ordered;
+    }
+  }
+
   static class TestDataSource extends InMemoryDataSource {
     private int batch_count;
 
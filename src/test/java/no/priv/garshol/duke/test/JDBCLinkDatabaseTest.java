@@ -196,6 +196,39 @@ public class JDBCLinkDatabaseTest {
                all.iterator().next());
   }
   
+  @Test
+  public void testPendingLinksVisible() {
+    Link l1 = new Link("1", "2", LinkStatus.INFERRED, LinkKind.SAME, 1.0);
+    linkdb.assertLink(l1);
+    Link l2 = new Link("1", "3", LinkStatus.INFERRED, LinkKind.SAME, 1.0);
+    linkdb.assertLink(l2);
+
+    // not committed yet, but must still be visible
+    Collection<Link> links = linkdb.getAllLinksFor("1");
+    assertEquals(2, links.size());
+    assertEquals(1, linkdb.getAllLinksFor("3").size());
+  }
+
+  @Test
+  public void testPendingOverridesDatabase() {
+    Link l1 = new Link("1", "2", LinkStatus.INFERRED, LinkKind.SAME, 1.0);
+    linkdb.assertLink(l1);
+    linkdb.commit();
+    pause();
+
+    Link l2 = new Link("1", "2", LinkStatus.INFERRED, LinkKind.DIFFERENT, 0.5);
+    linkdb.assertLink(l2);
+
+    Collection<Link> links = linkdb.getAllLinksFor("2");
+    assertEquals(1, links.size());
+    LinkDatabaseMatchListenerTest.verifySame(l2, links.iterator().next());
+
+    linkdb.commit();
+    links = linkdb.getAllLinksFor("2");
+    assertEquals(1, links.size());
+    LinkDatabaseMatchListenerTest.verifySame(l2, links.iterator().next());
+  }
+
   private void pause() {
     try {
       Thread.sleep(10); // ensure that timestamps are different
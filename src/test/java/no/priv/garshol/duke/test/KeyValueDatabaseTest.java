@@ -1,6 +1,13 @@
 
 package no.priv.garshol.duke.test;
 
+import java.util.Collection;
+import java.util.Iterator;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
 import no.priv.garshol.duke.Database;
 import no.priv.garshol.duke.Configuration;
 import no.priv.garshol.duke.databases.KeyValueDatabase;
@@ -12,5 +19,45 @@ public class KeyValueDatabaseTest extends DatabaseTest {
     db.setConfiguration(config);
     return db;
   }
-  
-}
\ No newline at end of file
+
+  @Test
+  public void testMaxSearchHits() {
+    // the more tokens a record shares with the query, the higher up it
+    // should be in the results
+    ((KeyValueDatabase) db).setMaxSearchHits(2);
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "a"));
+    db.index(TestUtils.makeRecord("ID", "2", "EMAIL", "a b c"));
+    db.index(TestUtils.makeRecord("ID", "3", "EMAIL", "a b"));
+    db.index(TestUtils.makeRecord("ID", "4", "EMAIL", "d"));
+    db.commit();
+
+    Record query = TestUtils.makeRecord("EMAIL", "a b c");
+    Collection<Record> cands = db.findCandidateMatches(query);
+    assertEquals(2, cands.size());
+    Iterator<Record> it = cands.iterator();
+    assertEquals("2", it.next().getValue("ID"));
+    assertEquals("3", it.next().getValue("ID"));
+  }
+
+  @Test
+  public void testMinRelevance() {
+    // with min_relevance set the most common token is not used to
+    // collect candidates, only to bump the scores of the others
+    KeyValueDatabase kvdb = (KeyValueDatabase) db;
+    kvdb.setMaxSearchHits(2);
+    kvdb.setMinRelevance(0.1f);
+    db.index(TestUtils.makeRecord("ID", "2", "EMAIL", "a b c"));
+    db.index(TestUtils.makeRecord("ID", "3", "EMAIL", "b a"));
+    db.index(TestUtils.makeRecord("ID", "4", "EMAIL", "b"));
+    for (int ix = 5; ix < 25; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "a"));
+    db.commit();
+
+    Record query = TestUtils.makeRecord("EMAIL", "a b c");
+    Collection<Record> cands = db.findCandidateMatches(query);
+    assertEquals(2, cands.size());
+    Iterator<Record> it = cands.iterator();
+    assertEquals("2", it.next().getValue("ID"));
+    assertEquals("3", it.next().getValue("ID"));
+  }
+}
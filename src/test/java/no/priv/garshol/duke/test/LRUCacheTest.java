@@ -0,0 +1,35 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.utils.LRUCache;
+
+public class LRUCacheTest {
+
+  @Test
+  public void testMaxSize() {
+    LRUCache<String, String> cache = new LRUCache(2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.put("c", "3");
+
+    assertEquals(2, cache.size());
+    assertNull(cache.get("a"));
+    assertEquals("3", cache.get("c"));
+  }
+
+  @Test
+  public void testLeastRecentlyUsed() {
+    LRUCache<String, String> cache = new LRUCache(2);
+    cache.put("a", "1");
+    cache.put("b", "2");
+    cache.get("a"); // now b is the least recently used
+    cache.put("c", "3");
+
+    assertEquals("1", cache.get("a"));
+    assertNull(cache.get("b"));
+  }
+}
@@ -1,6 +1,8 @@
 
 package no.priv.garshol.duke.test;
 
+import java.util.Random;
+
 import org.junit.Test;
 import org.junit.Before;
 import static junit.framework.Assert.assertTrue;
@@ -32,6 +34,18 @@ public class LevenshteinTest {
   public void testComparatorOneInFour() {
     assertEquals(0.75, comp.compare("fooz", "foos"));
   }
+
+  @Test
+  public void testComparatorExactBelowHalf() {
+    // distance 7, so the exact similarity is 0.3
+    assertEquals(0.3, comp.compare("abcdefghij", "abcxyzwvuq"), 0.0001);
+  }
+
+  @Test
+  public void testComparatorUnreachableMinimum() {
+    assertTrue(comp.compare("abcdefghij", "zzzzzzzzzz", 1.2) < 1.2);
+    assertEquals(0.0, comp.compare("abcdefghij", "zzzzzzzzzz", 1.2));
+  }
   
   // tests for the original algorithm
   
@@ -113,4 +127,96 @@ public class LevenshteinTest {
     // the edit distance is 4, but we will return only 3, because of the cutoff
     assertEquals(3, Levenshtein.compactDistance("abcd", "efgh"));
   }
+
+  // tests for the bounded versions
+
+  @Test
+  public void testBoundedKitten() {
+    assertEquals(3, Levenshtein.distance("kitten", "sitting", 3));
+    assertEquals(3, Levenshtein.distance("kitten", "sitting", 2));
+    assertEquals(2, Levenshtein.distance("kitten", "sitting", 1));
+    assertEquals(3, Levenshtein.bandedDistance("kitten", "sitting", 5));
+    assertEquals(2, Levenshtein.bandedDistance("kitten", "sitting", 1));
+  }
+
+  @Test
+  public void testLongStrings() {
+    // too long for the bit-parallel algorithm
+    String s1 = repeat("abcdefghij", 10);
+    String s2 = s1.substring(0, 50) + "x" + s1.substring(51) + "yz";
+    assertEquals(3, Levenshtein.distance(s1, s2));
+    assertEquals(3, Levenshtein.distance(s2, s1));
+    assertEquals(2, Levenshtein.distance(s1, s2, 1));
+  }
+
+  @Test
+  public void testNonLatin1() {
+    assertEquals(1, Levenshtein.distance("\u0416\u0416a", "\u0416\u0417a"));
+    assertEquals(0, Levenshtein.distance("\u0416\u0416a", "\u0416\u0416a"));
+  }
+
+  @Test
+  public void testRandom() {
+    // all the implementations must agree with the plain algorithm
+    Random random = new Random(4711);
+    for (int ix = 0; ix < 2000; ix++) {
+      String s1 = randomString(random, random.nextInt(ix < 1000 ? 20 : 150));
+      String s2 = mutate(random, s1);
+      int dist = referenceDistance(s1, s2);
+      assertEquals(dist, Levenshtein.distance(s1, s2));
+      int max = random.nextInt(10);
+      assertEquals(Math.min(dist, max + 1),
+                   Levenshtein.distance(s1, s2, max));
+      assertEquals(Math.min(dist, max + 1),
+                   Levenshtein.bandedDistance(s1, s2, max));
+      if (Math.min(s1.length(), s2.length()) <= 64)
+        assertEquals(Math.min(dist, max + 1),
+                     Levenshtein.bitParallelDistance(s1, s2, max));
+    }
+  }
+
+  private static String repeat(String str, int times) {
+    StringBuilder buf = new StringBuilder();
+    for (int ix = 0; ix < times; ix++)
+      buf.append(str);
+    return buf.toString();
+  }
+
+  private static String randomString(Random random, int length) {
+    char[] tmp = new char[length];
+    for (int ix = 0; ix < length; ix++)
+      tmp[ix] = (char) ('a' + random.nextInt(4));
+    return new String(tmp);
+  }
+
+  private static String mutate(Random random, String str) {
+    StringBuilder buf = new StringBuilder(str);
+    int edits = random.nextInt(8);
+    for (int ix = 0; ix < edits; ix++) {
+      int pos = random.nextInt(buf.length() + 1);
+      int op = random.nextInt(3);
+      if (op == 0 || pos == buf.length())
+        buf.insert(pos, (char) ('a' + random.nextInt(5)));
+      else if (op == 1)
+        buf.deleteCharAt(pos);
+      else
+        buf.setCharAt(pos, (char) ('a' + random.nextInt(5)));
+    }
+    return buf.toString();
+  }
+
+  private static int referenceDistance(String s1, String s2) {
+    int[][] d = new int[s1.length() + 1][s2.length() + 1];
+    for (int i = 0; i <= s1.length(); i++)
+      d[i][0] = i;
+    for (int j = 0; j <= s2.length(); j++)
+      d[0][j] = j;
+    for (int i = 1; i <= s1.length(); i++)
+      for (int j = 1; j <= s2.length(); j++) {
+        int cost = s1.charAt(i - 1) == s2.charAt(j - 1) ? 0 : 1;
+        d[i][j] = Math.min(d[i - 1][j - 1] + cost,
+                           Math.min(d[i - 1][j], d[i][j - 1]) + 1);
+      }
+    return d[s1.length()][s2.length()];
+  }
 }
\ No newline at end of file
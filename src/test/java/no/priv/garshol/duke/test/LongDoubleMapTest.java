@@ -0,0 +1,61 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.utils.LongDoubleMap;
+
+public class LongDoubleMapTest {
+  private LongDoubleMap map;
+
+  @Before
+  public void setup() {
+    map = new LongDoubleMap();
+  }
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, map.size());
+    assertEquals(-1, map.indexOf(0));
+  }
+
+  @Test
+  public void testAdd() {
+    map.add(5, 1.0);
+    map.add(3, 0.5);
+    map.add(5, 0.25);
+
+    assertEquals(2, map.size());
+    assertEquals(5, map.getKey(0));
+    assertEquals(1.25, map.getValue(0), 0.0001);
+    assertEquals(3, map.getKey(1));
+    assertEquals(0.5, map.getValue(map.indexOf(3)), 0.0001);
+  }
+
+  @Test
+  public void testGrowAndClear() {
+    for (int round = 0; round < 3; round++) {
+      for (long key = 0; key < 10000; key++)
+        map.add(key * 1000, key);
+      for (long key = 0; key < 10000; key++)
+        map.add(key * 1000, 1.0);
+
+      assertEquals(10000, map.size());
+      for (long key = 0; key < 10000; key++)
+        assertEquals(key + 1.0, map.getValue(map.indexOf(key * 1000)), 0.0001);
+
+      map.clear();
+      assertEquals(0, map.size());
+      assertEquals(-1, map.indexOf(1000));
+    }
+  }
+
+  @Test
+  public void testAddValue() {
+    map.add(42, 1.0);
+    map.addValue(map.indexOf(42), 2.0);
+    assertEquals(3.0, map.getValue(0), 0.0001);
+  }
+}
@@ -1,8 +1,15 @@
-
 package no.priv.garshol.duke.test;
 
+import java.util.Collection;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
 import no.priv.garshol.duke.Database;
 import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.comparators.Levenshtein;
 import no.priv.garshol.duke.databases.LuceneDatabase;
 
 public class LuceneDatabaseTest extends DatabaseTest {
@@ -13,5 +20,112 @@ public class LuceneDatabaseTest extends DatabaseTest {
     db.setConfiguration(config);
     return db;
   }
-  
-}
\ No newline at end of file
+
+  @Test
+  public void testFuzzy() {
+    // a tokenized comparator makes the lookup fuzzy
+    PropertyImpl email = (PropertyImpl) config.getPropertyByName("EMAIL");
+    email.setComparator(new Levenshtein());
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "larsga"));
+    db.commit();
+
+    // the second time round the query comes from the cache
+    for (int ix = 0; ix < 2; ix++) {
+      Record query = TestUtils.makeRecord("EMAIL", "larsgo");
+      Collection<Record> cands = db.findCandidateMatches(query);
+      assertEquals(1, cands.size());
+      assertEquals("1", cands.iterator().next().getValue("ID"));
+    }
+
+    // new records must be found, despite the cached query
+    db.index(TestUtils.makeRecord("ID", "2", "EMAIL", "larsgu"));
+    db.commit();
+    Record query = TestUtils.makeRecord("EMAIL", "larsgo");
+    assertEquals(2, db.findCandidateMatches(query).size());
+  }
+
+  @Test
+  public void testFuzzyPrefixLength() {
+    ((LuceneDatabase) db).setFuzzyPrefixLength(2);
+    makeFuzzy();
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "larsga"));
+    db.commit();
+
+    assertEquals(1, find("larsgo").size());
+    assertEquals(0, find("lbrsga").size()); // differs in prefix
+  }
+
+  @Test
+  public void testFuzzyCharsPerEdit() {
+    ((LuceneDatabase) db).setFuzzyCharsPerEdit(4);
+    makeFuzzy();
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "abc"));
+    db.index(TestUtils.makeRecord("ID", "2", "EMAIL", "larsga"));
+    db.commit();
+
+    assertEquals(0, find("abd").size());     // too short for edits
+    assertEquals(1, find("larsgo").size());  // one edit allowed
+    assertEquals(0, find("lursgo").size());  // but not two
+  }
+
+  @Test
+  public void testFuzzySettingsChanged() {
+    makeFuzzy();
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "larsga"));
+    db.commit();
+    assertEquals(1, find("lursgo").size()); // two edits
+
+    // the cached query must not survive the change
+    ((LuceneDatabase) db).setFuzzyMaxEdits(1);
+    assertEquals(0, find("lursgo").size());
+  }
+
+  @Test
+  public void testFuzzyFallback() {
+    ((LuceneDatabase) db).setFuzzyFallbackHits(1);
+    makeFuzzy();
+    db.index(TestUtils.makeRecord("ID", "1", "EMAIL", "larsga"));
+    db.index(TestUtils.makeRecord("ID", "2", "EMAIL", "larsgo"));
+    db.commit();
+
+    // exact search finds enough, so no fuzzy search
+    assertEquals(1, find("larsga").size());
+    // exact search finds nothing, so fall back to fuzzy
+    assertEquals(2, find("larsgu").size());
+    // but each lookup still counts as one search
+    assertEquals(2, ((LuceneDatabase) db).getQueryCount());
+  }
+
+  @Test
+  public void testResultSizeEstimate() {
+    LuceneDatabase lucene = (LuceneDatabase) db;
+    lucene.setFuzzySearch(false);
+    for (int ix = 0; ix < 150; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "common " + ix));
+    db.commit();
+
+    // more hits than the initial limit of 100, so we need a rerun
+    assertEquals(150, find("common").size());
+    assertEquals(1, lucene.getQueryCount());
+    assertEquals(1, lucene.getRequeryCount());
+
+    // lots of small results make the limit shrink
+    for (int ix = 0; ix < 50; ix++)
+      assertEquals(1, find("" + ix).size());
+    assertEquals(1, lucene.getRequeryCount());
+
+    // so now we need two reruns, from 10 to 50 to 250
+    assertEquals(150, find("common").size());
+    assertEquals(3, lucene.getRequeryCount());
+  }
+
+  private void makeFuzzy() {
+    // a tokenized comparator makes the lookup fuzzy
+    PropertyImpl email = (PropertyImpl) config.getPropertyByName("EMAIL");
+    email.setComparator(new Levenshtein());
+  }
+
+  private Collection<Record> find(String email) {
+    return db.findCandidateMatches(TestUtils.makeRecord("EMAIL", email));
+  }
+}
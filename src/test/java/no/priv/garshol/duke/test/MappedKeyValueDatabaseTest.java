@@ -0,0 +1,24 @@
+
+package no.priv.garshol.duke.test;
+
+import java.io.IOException;
+
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.databases.KeyValueDatabase;
+import no.priv.garshol.duke.databases.MappedKeyValueStore;
+
+public class MappedKeyValueDatabaseTest extends PersistentDatabaseTest {
+  private String dbdir;
+
+  public Database createDatabase(Configuration config) throws IOException {
+    if (dbdir == null)
+      dbdir = tmpdir.newFolder().getAbsolutePath(); // ensure same every time
+
+    KeyValueDatabase db = new KeyValueDatabase();
+    db.setStore(new MappedKeyValueStore(dbdir));
+    db.setConfiguration(config);
+    return db;
+  }
+  
+}
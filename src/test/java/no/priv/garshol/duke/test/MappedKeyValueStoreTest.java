@@ -0,0 +1,173 @@
+
+package no.priv.garshol.duke.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.databases.Bucket;
+import no.priv.garshol.duke.databases.MappedKeyValueStore;
+
+public class MappedKeyValueStoreTest {
+  private MappedKeyValueStore store;
+  private String path;
+
+  @Rule
+  public TemporaryFolder tmpdir = new TemporaryFolder();
+
+  @Before
+  public void setup() throws IOException {
+    path = tmpdir.newFolder().getAbsolutePath();
+    store = new MappedKeyValueStore(path);
+  }
+
+  @Test
+  public void testNoSuchToken() {
+    assertNull(store.lookupToken("NAME", "foo"));
+  }
+
+  @Test
+  public void testNoSuchId() {
+    assertNull(store.findRecordById("foo"));
+  }
+
+  @Test
+  public void testUncommitted() {
+    add("a", "foo");
+    verify(store.lookupToken("NAME", "foo"), 0);
+    assertEquals("a", store.findRecordById("a").getValue("ID"));
+  }
+
+  @Test
+  public void testCommittedAndUncommitted() {
+    add("a", "foo");
+    store.commit();
+    add("b", "foo");
+
+    verify(store.lookupToken("NAME", "foo"), 0, 1);
+    assertEquals("a", store.findRecordById(0).getValue("ID"));
+    assertEquals("b", store.findRecordById(1).getValue("ID"));
+  }
+
+  @Test
+  public void testReopen() {
+    add("a", "foo bar");
+    add("b", "foo");
+    store.close();
+
+    store = new MappedKeyValueStore(path);
+    verify(store.lookupToken("NAME", "foo"), 0, 1);
+    verify(store.lookupToken("NAME", "bar"), 0);
+    assertEquals("foo bar", store.findRecordById("a").getValue("NAME"));
+    assertEquals(2, store.makeNewRecordId());
+  }
+
+  @Test
+  public void testUncommittedLostOnCrash() {
+    add("a", "foo");
+    store.commit();
+    add("b", "foo");
+    // no commit, and no close
+
+    store = new MappedKeyValueStore(path);
+    verify(store.lookupToken("NAME", "foo"), 0);
+    assertNull(store.findRecordById("b"));
+  }
+
+  @Test
+  public void testOverwrite() {
+    add("a", "foo");
+    store.close();
+
+    store = new MappedKeyValueStore(path);
+    store.setOverwrite(true);
+    assertNull(store.lookupToken("NAME", "foo"));
+    assertNull(store.findRecordById("a"));
+    assertEquals(0, store.makeNewRecordId());
+  }
+
+  @Test
+  public void testReplaceRecord() {
+    add("a", "foo");
+    store.commit();
+    add("a", "bar");
+
+    assertNull(store.lookupToken("NAME", "foo"));
+    verify(store.lookupToken("NAME", "bar"), 1);
+    assertEquals("bar", store.findRecordById("a").getValue("NAME"));
+    assertNull(store.findRecordById(0));
+  }
+
+  @Test
+  public void testReplaceRecordAfterReopen() {
+    add("a", "foo");
+    add("b", "foo");
+    store.commit();
+    add("a", "bar"); // replaces committed record
+    add("c", "baz");
+    add("c", "quux"); // replaces uncommitted record
+    store.close();
+
+    store = new MappedKeyValueStore(path);
+    verify(store.lookupToken("NAME", "foo"), 1);
+    verify(store.lookupToken("NAME", "bar"), 2);
+    assertNull(store.lookupToken("NAME", "baz"));
+    assertNull(store.findRecordById(0));
+    assertNull(store.findRecordById(3));
+    assertEquals("quux", store.findRecordById("c").getValue("NAME"));
+
+    add("b", "bar"); // replaces record in older segment after reopen
+    verify(store.lookupToken("NAME", "bar"), 2, 5);
+    assertNull(store.lookupToken("NAME", "foo"));
+  }
+
+  @Test
+  public void testMerging() {
+    // enough commits to trigger several rounds of merging
+    for (int ix = 0; ix < 100; ix++) {
+      add("r" + ix, "t" + (ix % 10) + " all");
+      if (ix % 7 == 0)
+        add("r" + (ix / 2), "replaced"); // replaces an older record
+      store.commit();
+    }
+    store.close();
+
+    File[] files = new File(path).listFiles();
+    assertTrue("segments not merged: " + files.length, files.length < 50);
+
+    store = new MappedKeyValueStore(path);
+    for (int ix = 0; ix < 100; ix++) {
+      Record r = store.findRecordById("r" + ix);
+      assertEquals("r" + ix, r.getValue("ID"));
+    }
+
+    Bucket all = store.lookupToken("NAME", "all");
+    Bucket replaced = store.lookupToken("NAME", "replaced");
+    assertEquals(100, all.nextfree + replaced.nextfree);
+    for (int ix = 1; ix < all.nextfree; ix++)
+      assertTrue("postings not sorted", all.records[ix - 1] < all.records[ix]);
+  }
+
+  private void add(String id, String name) {
+    Record r = TestUtils.makeRecord("ID", id, "NAME", name);
+    long internal = store.makeNewRecordId();
+    store.registerRecord(internal, r);
+    store.registerId(internal, id);
+    for (String token : name.split(" "))
+      store.registerToken(internal, "NAME", token);
+  }
+
+  private void verify(Bucket b, long... ids) {
+    assertEquals(ids.length, b.nextfree);
+    for (int ix = 0; ix < ids.length; ix++)
+      assertEquals(ids[ix], b.records[ix]);
+  }
+}
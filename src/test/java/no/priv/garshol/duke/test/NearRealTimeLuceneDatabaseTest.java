@@ -0,0 +1,20 @@
+
+package no.priv.garshol.duke.test;
+
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.databases.LuceneDatabase;
+
+public class NearRealTimeLuceneDatabaseTest extends PersistentDatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    LuceneDatabase db = new LuceneDatabase();
+    db.setOverwrite(false);
+    db.setConfiguration(config);
+    db.setPath(tmpdir.getRoot().getAbsolutePath());
+    db.setNearRealTime(true);
+    db.setCommitInterval(3600); // so only close() makes durable commits
+    return db;
+  }
+  
+}
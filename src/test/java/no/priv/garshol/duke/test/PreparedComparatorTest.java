@@ -0,0 +1,179 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.PreparedComparator;
+import no.priv.garshol.duke.comparators.*;
+
+public class PreparedComparatorTest {
+  private static final String[] NAMES = {
+    "lars marius garshol", "lars m. garshol", "marius garshol", "garshol",
+    "lars garshol", "l. m. garshol", "robert smith", "smith robert", ""
+  };
+  private static final String[] NUMBERS = {
+    "1", "1.5", "0", "200", "-3", "abc", "0.0"
+  };
+  private static final String[] POSITIONS = {
+    "59.917516,10.757933", "59.917000,10.757000", "59.9,10.7", "bad",
+    "91.0,10.0"
+  };
+
+  // the expected values below were produced by the comparators as
+  // they were before they were made prepared comparators. for many
+  // of them compare() now goes through the prepared values, so
+  // checking that the two agree isn't enough.
+
+  @Test
+  public void testDice() {
+    DiceCoefficientComparator comp = new DiceCoefficientComparator();
+    check(comp, NAMES);
+    check(comp, "lars marius garshol", "marius garshol", 0.8);
+    check(comp, "lars marius garshol", "l. m. garshol", 1.0 / 3.0);
+    check(comp, "lars garshol", "garshol", 2.0 / 3.0);
+    check(comp, "robert smith", "smith robert", 1.0);
+    check(comp, "garshol", "robert smith", 0.0);
+    check(comp, "lars garshol", "lors garsol", 0.0);
+  }
+
+  @Test
+  public void testDiceWithPreparedSubcomparator() {
+    DiceCoefficientComparator comp = new DiceCoefficientComparator();
+    comp.setComparator(new SoundexComparator());
+    check(comp, NAMES);
+    check(comp, "lars marius garshol", "marius garshol", 0.8);
+    check(comp, "lars garshol", "lors garsol", 0.9);
+    check(comp, "garshol", "robert smith", 0.0);
+  }
+
+  @Test
+  public void testJaccard() {
+    JaccardIndexComparator comp = new JaccardIndexComparator();
+    comp.setComparator(new MetaphoneComparator());
+    check(comp, NAMES);
+    check(comp, "lars marius garshol", "marius garshol", 2.0 / 3.0);
+    check(comp, "lars m. garshol", "marius garshol", 0.25);
+    check(comp, "lars marius garshol", "l. m. garshol", 0.2);
+    check(comp, "robert smith", "robbert smyth jr", 0.5625);
+    check(comp, "garshol", "robert smith", 0.0);
+  }
+
+  @Test
+  public void testJaroWinklerTokenized() {
+    JaroWinklerTokenized comp = new JaroWinklerTokenized();
+    check(comp, NAMES);
+    check(comp, "lars marius garshol", "lars m. garshol", 0.8666666666666666);
+    check(comp, "lars marius garshol", "l. m. garshol", 0.7416666666666666);
+    check(comp, "lars garshol", "l. m. garshol", 0.8125);
+    check(comp, "lars garshol", "robert smith", 0.2698412698412698);
+    check(comp, "lars garshol", "lers garsholl", 0.9125);
+  }
+
+  @Test
+  public void testPersonName() {
+    check(new PersonNameComparator(), NAMES);
+  }
+
+  @Test
+  public void testPhonetic() {
+    check(new SoundexComparator(), NAMES);
+    check(new MetaphoneComparator(), NAMES);
+    check(new NorphoneComparator(), NAMES);
+  }
+
+  @Test
+  public void testNumeric() {
+    NumericComparator comp = new NumericComparator();
+    check(comp, NUMBERS);
+    check(comp, "1", "1.5", 2.0 / 3.0);
+    check(comp, "200", "1.5", 0.0075);
+    check(comp, "0", "0.0", 1.0);
+    check(comp, "1", "-3", 0.0);
+    check(comp, "abc", "1", 0.5);
+  }
+
+  @Test
+  public void testGeoposition() {
+    GeopositionComparator comp = new GeopositionComparator();
+    check(comp, POSITIONS);
+    check(comp, "59.917516,10.757933", "59.917000,10.757000",
+          0.6128213136969654);
+    check(comp, "59.917516,10.757933", "59.9,10.7", 0.0);
+    check(comp, "59.917516,10.757933", "bad", 0.5);
+    check(comp, "59.917516,10.757933", "91.0,10.0", 0.5);
+  }
+
+  @Test
+  public void testPreparedOncePerRecord() {
+    // the record being matched should have its value prepared only
+    // once, however many candidates it is compared with
+    CountingComparator comp = new CountingComparator();
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", comp, 0.3, 0.8));
+    ConfigurationImpl config = new ConfigurationImpl();
+    config.setProperties(props);
+    config.setThreshold(0.85);
+
+    TestProcessor processor = new TestProcessor(config);
+    Record record = TestUtils.makeRecord("ID", "0", "NAME", "a");
+    Collection<Record> candidates = new ArrayList();
+    for (int ix = 1; ix <= 10; ix++)
+      candidates.add(TestUtils.makeRecord("ID", "" + ix, "NAME", "b" + ix));
+    processor.compareAll(record, candidates);
+    processor.close();
+
+    assertEquals(11, comp.prepared);
+  }
+
+  // checks both ways of comparing against the expected similarity
+  private void check(PreparedComparator comp, String v1, String v2,
+                     double expected) {
+    assertEquals(v1 + " ~ " + v2, expected, comp.compare(v1, v2), 0.0000001);
+    assertEquals(v1 + " ~ " + v2 + " (prepared)", expected,
+                 comp.comparePrepared(comp.prepare(v1), comp.prepare(v2)),
+                 0.0000001);
+  }
+
+  private void check(PreparedComparator comp, String[] values) {
+    for (String v1 : values)
+      for (String v2 : values)
+        assertEquals(v1 + " ~ " + v2, comp.compare(v1, v2),
+                     comp.comparePrepared(comp.prepare(v1), comp.prepare(v2)),
+                     0.0);
+  }
+
+  static class CountingComparator extends ExactComparator
+    implements PreparedComparator {
+    private int prepared;
+
+    public Object prepare(String value) {
+      prepared++;
+      return value;
+    }
+
+    public double comparePrepared(Object v1, Object v2) {
+      return compare((String) v1, (String) v2);
+    }
+  }
+
+  static class TestProcessor extends Processor {
+    public TestProcessor(ConfigurationImpl config) {
+      super(config, true);
+    }
+
+    public void compareAll(Record record, Collection<Record> candidates) {
+      compareCandidatesSimple(record, candidates);
+    }
+  }
+}
@@ -0,0 +1,115 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.lang.management.ManagementFactory;
+import javax.management.ObjectName;
+import javax.management.MBeanServer;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.PropertyStatistics;
+import no.priv.garshol.duke.comparators.ExactComparator;
+
+public class PropertyStatisticsTest {
+  private ConfigurationImpl config;
+
+  @Before
+  public void setup() {
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", new ExactComparator(), 0.3, 0.8));
+    config = new ConfigurationImpl();
+    config.setProperties(props);
+    config.setThreshold(0.85);
+  }
+
+  @Test
+  public void testOffByDefault() {
+    Processor processor = new Processor(config, true);
+    assertTrue(processor.getPropertyStatistics().isEmpty());
+    processor.close();
+  }
+
+  @Test
+  public void testCounting() {
+    TestProcessor processor = new TestProcessor(config);
+    processor.setPropertyStatistics(true);
+    Record record = TestUtils.makeRecord("ID", "0", "NAME", "a");
+    Collection<Record> candidates = new ArrayList();
+    for (int ix = 1; ix <= 200; ix++)
+      candidates.add(TestUtils.makeRecord("ID", "" + ix, "NAME", "b" + ix));
+    processor.compareAll(record, candidates);
+    processor.close();
+
+    Collection<PropertyStatistics> stats = processor.getPropertyStatistics();
+    assertEquals(1, stats.size());
+    PropertyStatistics name = stats.iterator().next();
+    assertEquals("NAME", name.getProperty());
+    assertEquals(200, name.getCalls());
+    // with one in 64 timed, 200 comparisons must give 3 or 4 samples
+    assertTrue(name.getSampledCalls() >= 3 && name.getSampledCalls() <= 4);
+    long total = 0;
+    for (long count : name.getLengthHistogram())
+      total += count;
+    assertEquals(name.getSampledCalls(), total);
+    assertEquals(-1.0, name.getCacheHitRate(), 0.0);
+
+    name.reset();
+    assertEquals(0, name.getCalls());
+  }
+
+  @Test
+  public void testLengthHistogram() {
+    PropertyStatistics stats =
+      new PropertyStatistics(new PropertyImpl("NAME"));
+    int[] lengths = { 0, 3, 4, 7, 8, 16, 63, 64, 127, 128, 5000 };
+    for (int length : lengths)
+      stats.addSample(100, length);
+    long[] histogram = stats.getLengthHistogram();
+    assertEquals(stats.getLengthBuckets().length, histogram.length);
+    assertEquals(2, histogram[0]); // 0-3
+    assertEquals(2, histogram[1]); // 4-7
+    assertEquals(1, histogram[2]); // 8-15
+    assertEquals(1, histogram[3]); // 16-31
+    assertEquals(1, histogram[4]); // 32-63
+    assertEquals(2, histogram[5]); // 64-127
+    assertEquals(2, histogram[6]); // 128+
+    assertEquals(100.0, stats.getAverageTime(), 0.0);
+  }
+
+  @Test
+  public void testMBeans() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName query =
+      new ObjectName("no.priv.garshol.duke:type=PropertyStatistics,*");
+    int before = server.queryNames(query, null).size();
+
+    Processor processor = new Processor(config, true);
+    processor.setPropertyStatistics(true);
+    assertEquals(before + 1, server.queryNames(query, null).size());
+
+    processor.close();
+    assertEquals(before, server.queryNames(query, null).size());
+  }
+
+  static class TestProcessor extends Processor {
+    public TestProcessor(ConfigurationImpl config) {
+      super(config, true);
+    }
+
+    public void compareAll(Record record, Collection<Record> candidates) {
+      compareCandidatesSimple(record, candidates);
+    }
+  }
+}
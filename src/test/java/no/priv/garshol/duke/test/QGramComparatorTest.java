@@ -84,4 +84,27 @@ public class QGramComparatorTest {
     comp.setTokenizer(QGramComparator.Tokenizer.ENDS);
     assertEquals((2.0 / 5.0), comp.compare("gail", "gayle"));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testCachedProfileAfterSetQ() {
+    // profiles cached with q=2 must not be used with q=3
+    assertEquals((1.0 / 3.0), comp.compare("gail", "gayle"));
+    comp.setQ(3);
+    assertEquals(0.0, comp.compare("gail", "gayle"));
+  }
+
+  @Test
+  public void testNoCache() {
+    comp.setCacheSize(0);
+    assertEquals((4.0 / 6.0), comp.compare("abc def", "cab def"));
+    assertEquals((4.0 / 6.0), comp.compare("abc def", "cab def"));
+  }
+
+  @Test
+  public void testSmallCache() {
+    comp.setCacheSize(1);
+    assertEquals((1.0 / 2.0), comp.compare("kakadu", "cacadu"));
+    assertEquals((1.0 / 3.0), comp.compare("gail", "gayle"));
+    assertEquals((1.0 / 2.0), comp.compare("kakadu", "cacadu"));
+  }
+}
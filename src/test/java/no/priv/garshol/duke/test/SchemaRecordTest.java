@@ -0,0 +1,138 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.io.StringReader;
+
+import org.junit.Test;
+import org.junit.Before;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Property;
+import no.priv.garshol.duke.Processor;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.RecordSchema;
+import no.priv.garshol.duke.SchemaRecord;
+import no.priv.garshol.duke.RecordIterator;
+import no.priv.garshol.duke.ConfigurationImpl;
+import no.priv.garshol.duke.datasources.Column;
+import no.priv.garshol.duke.datasources.CSVDataSource;
+import no.priv.garshol.duke.comparators.ExactComparator;
+import no.priv.garshol.duke.comparators.Levenshtein;
+
+public class SchemaRecordTest {
+  private ConfigurationImpl config;
+  private RecordSchema schema;
+
+  @Before
+  public void setup() {
+    List<Property> props = new ArrayList();
+    props.add(new PropertyImpl("ID"));
+    props.add(new PropertyImpl("NAME", new Levenshtein(), 0.3, 0.8));
+    props.add(new PropertyImpl("EMAIL", new ExactComparator(), 0.4, 0.9));
+    config = new ConfigurationImpl();
+    config.setProperties(props);
+    schema = config.getRecordSchema();
+  }
+
+  @Test
+  public void testSchema() {
+    assertEquals(3, schema.size());
+    assertEquals(1, schema.getSlot("NAME"));
+    assertEquals("NAME", schema.getName(1));
+    assertEquals(-1, schema.getSlot("UNKNOWN"));
+  }
+
+  @Test
+  public void testEmpty() {
+    SchemaRecord r = new SchemaRecord(schema);
+    assertTrue(r.isEmpty());
+    assertTrue(r.getProperties().isEmpty());
+    assertNull(r.getValue("NAME"));
+    assertTrue(r.getValues("NAME").isEmpty());
+    assertNull(r.getValues(1));
+  }
+
+  @Test
+  public void testValues() {
+    SchemaRecord r = new SchemaRecord(schema);
+    r.addValue("NAME", "lars");
+    r.addValue("EMAIL", "a@b");
+    r.addValue("EMAIL", "c@d");
+
+    assertTrue(!r.isEmpty());
+    assertEquals("lars", r.getValue("NAME"));
+    assertEquals("a@b", r.getValue("EMAIL"));
+    assertEquals(2, r.getValues("EMAIL").size());
+    assertArrayEquals(new String[] { "a@b", "c@d" }, r.getValues(2));
+    assertNull(r.getValues(0));
+
+    Collection<String> props = r.getProperties();
+    assertEquals(2, props.size());
+    assertTrue(props.contains("NAME"));
+    assertTrue(props.contains("EMAIL"));
+  }
+
+  @Test
+  public void testPropertyNotInSchema() {
+    SchemaRecord r = new SchemaRecord(schema);
+    r.addValue("PHONE", "1");
+    r.addValue("PHONE", "2");
+    r.addValue("FAX", "3");
+
+    assertEquals("1", r.getValue("PHONE"));
+    assertEquals(2, r.getValues("PHONE").size());
+    assertEquals("3", r.getValue("FAX"));
+    assertEquals(2, r.getProperties().size());
+  }
+
+  @Test
+  public void testCSVDataSource() {
+    CSVDataSource source = new CSVDataSource();
+    source.addColumn(new Column("ID", null, null, null));
+    source.addColumn(new Column("NAME", null, null, null));
+    source.addColumn(new Column("EXTRA", null, null, null));
+    source.setRecordSchema(schema);
+    source.setReader(new StringReader("ID,NAME,EXTRA\n1,lars,x"));
+
+    RecordIterator it = source.getRecords();
+    Record r = it.next();
+    assertTrue(r instanceof SchemaRecord);
+    assertEquals("1", r.getValue("ID"));
+    assertEquals("lars", r.getValue("NAME"));
+    assertEquals("x", r.getValue("EXTRA"));
+  }
+
+  @Test
+  public void testSameProbability() {
+    // comparing by slot must give the same result as going by name
+    Processor processor = new Processor(config);
+    Record r1 = TestUtils.makeRecord("ID", "1", "NAME", "lars marius",
+                                     "EMAIL", "a@b");
+    Record r2 = TestUtils.makeRecord("ID", "2", "NAME", "lars marus",
+                                     "EMAIL", "a@b");
+    SchemaRecord s1 = copy(r1);
+    SchemaRecord s2 = copy(r2);
+
+    double prob = processor.compare(r1, r2);
+    assertEquals(prob, processor.compare(s1, s2), 0.0);
+    assertEquals(prob, processor.compare(s1, r2), 0.0);
+    assertEquals(prob, processor.compare(r1, s2), 0.0);
+    assertEquals(prob, processor.compare(s1, s2, 0.0), 0.0);
+    processor.close();
+  }
+
+  private SchemaRecord copy(Record record) {
+    SchemaRecord copy = new SchemaRecord(schema);
+    for (String prop : record.getProperties())
+      for (String value : record.getValues(prop))
+        copy.addValue(prop, value);
+    return copy;
+  }
+}
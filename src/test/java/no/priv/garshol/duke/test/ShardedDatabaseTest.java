@@ -0,0 +1,144 @@
+
+package no.priv.garshol.duke.test;
+
+import java.util.List;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import no.priv.garshol.duke.Record;
+import no.priv.garshol.duke.Database;
+import no.priv.garshol.duke.PropertyImpl;
+import no.priv.garshol.duke.Configuration;
+import no.priv.garshol.duke.comparators.Levenshtein;
+import no.priv.garshol.duke.databases.ShardedDatabase;
+import no.priv.garshol.duke.databases.LuceneDatabase;
+import no.priv.garshol.duke.databases.KeyValueDatabase;
+
+public class ShardedDatabaseTest extends DatabaseTest {
+
+  public Database createDatabase(Configuration config) {
+    List<Database> shards = new ArrayList();
+    for (int ix = 0; ix < 3; ix++)
+      shards.add(new KeyValueDatabase());
+
+    ShardedDatabase db = new ShardedDatabase();
+    db.setShards(shards);
+    db.setConfiguration(config);
+    return db;
+  }
+
+  @Test
+  public void testManyRecords() {
+    // enough records to fill several chunks on each shard
+    for (int ix = 0; ix < 2000; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "e" + ix + " all"));
+    db.commit();
+
+    for (int ix = 0; ix < 2000; ix += 97)
+      assertEquals("" + ix, db.findRecordById("" + ix).getValue("ID"));
+
+    Record query = TestUtils.makeRecord("EMAIL", "e1234");
+    Collection<Record> cands = db.findCandidateMatches(query);
+    assertEquals(1, cands.size());
+    assertEquals("1234", cands.iterator().next().getValue("ID"));
+  }
+
+  @Test
+  public void testMaxSearchHits() {
+    ((ShardedDatabase) db).setMaxSearchHits(5);
+    for (int ix = 0; ix < 30; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "a"));
+    db.commit();
+
+    Record query = TestUtils.makeRecord("EMAIL", "a");
+    Collection<Record> cands = db.findCandidateMatches(query);
+    assertEquals(5, cands.size());
+
+    // candidates must come from more than one shard
+    Collection<Integer> shards = new HashSet();
+    for (Record cand : cands)
+      shards.add(shardOf(cand.getValue("ID")));
+    assertTrue("all candidates from one shard", shards.size() > 1);
+  }
+
+  @Test
+  public void testMergeByScore() {
+    // the best record must not be in the first shard, since merging
+    // by interleaving would then also find it. the shard only depends
+    // on the ID, so we find one using the throwaway default database
+    String best = null;
+    for (int ix = 0; best == null || shardOf(best) == 0; ix++) {
+      best = "best" + ix;
+      db.index(TestUtils.makeRecord("ID", best, "EMAIL", "foo bar baz"));
+      db.commit();
+    }
+
+    // lucene shards have scores, so the best candidate must win
+    db.close();
+    db = makeLuceneShards(0);
+    ((ShardedDatabase) db).setMaxSearchHits(1);
+    for (int ix = 0; ix < 30; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "foo"));
+    db.index(TestUtils.makeRecord("ID", best, "EMAIL", "foo bar baz"));
+    db.commit();
+    assertTrue(shardOf(best) > 0);
+
+    Record query = TestUtils.makeRecord("EMAIL", "foo bar baz");
+    Collection<Record> cands = db.findCandidateMatches(query);
+    assertEquals(1, cands.size());
+    assertEquals(best, cands.iterator().next().getValue("ID"));
+  }
+
+  @Test
+  public void testFuzzyFallback() {
+    // the scored search used for merging must also try exact search
+    // first, so fuzzy-only matches are left out when every shard
+    // finds enough exact matches
+    PropertyImpl email = (PropertyImpl) config.getPropertyByName("EMAIL");
+    email.setComparator(new Levenshtein());
+    db.close();
+    db = makeLuceneShards(1);
+    for (int ix = 0; ix < 30; ix++)
+      db.index(TestUtils.makeRecord("ID", "" + ix, "EMAIL", "larsga"));
+    db.index(TestUtils.makeRecord("ID", "fuzzy", "EMAIL", "larsgo"));
+    db.commit();
+    for (Database shard : ((ShardedDatabase) db).getShards())
+      assertTrue(findIn(shard, "larsga").size() > 0);
+
+    assertEquals(30, findIn(db, "larsga").size());
+    assertEquals(31, findIn(db, "larsgu").size()); // falls back to fuzzy
+  }
+
+  private ShardedDatabase makeLuceneShards(int fallback) {
+    List<Database> shards = new ArrayList();
+    for (int ix = 0; ix < 3; ix++) {
+      LuceneDatabase shard = new LuceneDatabase();
+      shard.setOverwrite(true);
+      shard.setFuzzyFallbackHits(fallback);
+      shards.add(shard);
+    }
+    ShardedDatabase sharded = new ShardedDatabase();
+    sharded.setShards(shards);
+    sharded.setConfiguration(config);
+    return sharded;
+  }
+
+  private Collection<Record> findIn(Database database, String email) {
+    return database.findCandidateMatches(TestUtils.makeRecord("EMAIL", email));
+  }
+
+  private int shardOf(String id) {
+    int ix = 0;
+    for (Database shard : ((ShardedDatabase) db).getShards()) {
+      if (shard.findRecordById(id) != null)
+        return ix;
+      ix++;
+    }
+    return -1;
+  }
+}
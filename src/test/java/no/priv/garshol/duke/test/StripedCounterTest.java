@@ -0,0 +1,51 @@
+
+package no.priv.garshol.duke.test;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+import no.priv.garshol.duke.utils.StripedCounter;
+
+public class StripedCounterTest {
+
+  @Test
+  public void testEmpty() {
+    assertEquals(0, new StripedCounter().sum());
+  }
+
+  @Test
+  public void testAdd() {
+    StripedCounter counter = new StripedCounter();
+    counter.add(5);
+    counter.increment();
+    assertEquals(6, counter.sum());
+  }
+
+  @Test
+  public void testReset() {
+    StripedCounter counter = new StripedCounter();
+    counter.add(5);
+    counter.reset();
+    assertEquals(0, counter.sum());
+  }
+
+  @Test
+  public void testThreaded() throws InterruptedException {
+    final StripedCounter counter = new StripedCounter();
+    Thread[] threads = new Thread[8];
+    for (int ix = 0; ix < threads.length; ix++) {
+      threads[ix] = new Thread() {
+          public void run() {
+            for (int ix = 0; ix < 100000; ix++)
+              counter.increment();
+          }
+        };
+      threads[ix].start();
+    }
+    for (int ix = 0; ix < threads.length; ix++)
+      threads[ix].join();
+
+    // no updates may be lost
+    assertEquals(800000, counter.sum());
+  }
+}
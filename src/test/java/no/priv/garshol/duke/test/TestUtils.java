@@ -47,35 +47,35 @@ public class TestUtils {
       this.matches = new ArrayList();
     }
     
-    public List<Pair> getMatches() {
+    public synchronized List<Pair> getMatches() {
       return matches;
     }
 
-    public int getRecordCount() {
+    public synchronized int getRecordCount() {
       return records;
     }
 
-    public int getNoMatchCount() {
+    public synchronized int getNoMatchCount() {
       return nomatch;
     }
 
-    public int getMaybeCount() {
+    public synchronized int getMaybeCount() {
       return maybes;
     }
 
-    public void batchReady(int size) {
+    public synchronized void batchReady(int size) {
       records += size;
     }
     
-    public void matches(Record r1, Record r2, double confidence) {
+    public synchronized void matches(Record r1, Record r2, double confidence) {
       matches.add(new Pair(r1, r2, confidence));
     }
 
-    public void matchesPerhaps(Record r1, Record r2, double confidence) {
+    public synchronized void matchesPerhaps(Record r1, Record r2, double confidence) {
       maybes++;
     }
     
-    public void noMatchFor(Record r) {
+    public synchronized void noMatchFor(Record r) {
       nomatch++;
     }
   }